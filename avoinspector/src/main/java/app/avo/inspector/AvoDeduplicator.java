@@ -1,121 +1,313 @@
 package app.avo.inspector;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static app.avo.inspector.Util.mapsEqual;
 
+/**
+ * Detects events reported both by Avo Codegen and manually within a short window.
+ * State is striped by event name: threads tracking different events never share a lock.
+ */
 class AvoDeduplicator {
 
-	private static final ConcurrentHashMap<Long, String> avoFunctionsEvents = new ConcurrentHashMap<>();
-	private static final ConcurrentHashMap<Long, String> manualEvents = new ConcurrentHashMap<>();
+	static final long DEFAULT_WINDOW_MILLIS = 300;
 
-	private static final ConcurrentHashMap<String, Map<String, ?>> avoFunctionsEventsParams = new ConcurrentHashMap<>();
-	private static final ConcurrentHashMap<String, Map<String, ?>> manualEventsParams = new ConcurrentHashMap<>();
+	// Registrations are swept from every stripe at this interval, so event names that are not tracked again
+	// don't keep their stripe
+	static final int SWEEP_INTERVAL = 256;
 
-	private static final AvoSchemaExtractor avoSchemaExtractor = new AvoSchemaExtractor();
+	// Event names are supplied by the caller and can be unbounded, so a stripe is dropped once it holds
+	// no registration
+	private final ConcurrentMap<String, Stripe> stripes = new ConcurrentHashMap<>();
 
-	static boolean shouldRegisterEvent(String eventName, Map<String, ?> params, boolean fromAvoFunction) {
-		clearOldEvents();
+	private final AtomicInteger registrationsSinceSweep = new AtomicInteger();
 
-		if (fromAvoFunction) {
-			avoFunctionsEvents.put(System.currentTimeMillis(), eventName);
-			avoFunctionsEventsParams.put(eventName, params);
-		} else {
-			manualEvents.put(System.currentTimeMillis(), eventName);
-			manualEventsParams.put(eventName, params);
+	// The inspector's extractor, so schemas are compared with its limits and type inferrers
+	private final AvoSchemaExtractor avoSchemaExtractor;
+
+	private volatile long windowNanos;
+	private volatile boolean enabled = true;
+
+	@VisibleForTesting
+	AvoDeduplicator() {
+		this(new AvoSchemaExtractor());
+	}
+
+	AvoDeduplicator(@NonNull AvoSchemaExtractor avoSchemaExtractor) {
+		this.avoSchemaExtractor = avoSchemaExtractor;
+		setWindowMillis(DEFAULT_WINDOW_MILLIS);
+	}
+
+	void setWindowMillis(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("Deduplication window can't be negative: " + windowMillis);
 		}
+		windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
 
-		boolean checkInAvoFunctions = !fromAvoFunction;
+	long getWindowMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+	}
 
-		return !hasSameEventAs(eventName, params, checkInAvoFunctions);
+	/**
+	 * When disabled every event is registered and nothing is stored,
+	 * for apps that never report the same event from Avo Codegen and manually.
+	 */
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			clearEvents();
+		}
 	}
 
-	private static boolean hasSameEventAs(String eventName, Map<String, ?> params, boolean checkInAvoFunctions) {
+	boolean isEnabled() {
+		return enabled;
+	}
 
-		boolean result = false;
+	private static final class Registration {
+		final long fingerprint;
+		@Nullable final Map<String, ?> params;
+		final long schemaFingerprint;
+		@Nullable final Map<String, AvoEventSchemaType> schema;
+		// Read under the stripe's monitor when registered, so each ring gets its timestamps in order
+		long timestampNanos;
+
+		Registration(@Nullable Map<String, ?> params, @Nullable Map<String, AvoEventSchemaType> schema) {
+			this.fingerprint = Util.fingerprint(params);
+			this.params = params;
+			this.schemaFingerprint = schema != null ? Util.fingerprint(schema) : 0;
+			this.schema = schema;
+		}
+	}
 
-		if (checkInAvoFunctions) {
-			if (lookForEventIn(eventName, params, avoFunctionsEventsParams)) {
-				result = true;
+	/**
+	 * Registrations of a single event name. Guarded by its own monitor.
+	 */
+	private static final class Stripe {
+		// Registrations in the order they happened, expired from the head
+		final ExpiryRing avoFunctionsEvents = new ExpiryRing();
+		final ExpiryRing manualEvents = new ExpiryRing();
+
+		// Latest registration per params fingerprint
+		final Map<Long, Registration> avoFunctionsEventsParams = new HashMap<>();
+		final Map<Long, Registration> manualEventsParams = new HashMap<>();
+
+		// Avo function registrations by schema fingerprint, for manually tracked schemas
+		final Map<Long, Registration> avoFunctionsEventsSchemas = new HashMap<>();
+
+		// Set when the stripe is dropped from stripes. A registration then goes to a new stripe.
+		boolean retired = false;
+
+		boolean register(Registration registration, boolean fromAvoFunction) {
+			if (fromAvoFunction) {
+				avoFunctionsEvents.add(registration);
+				Registration replaced = avoFunctionsEventsParams.put(registration.fingerprint, registration);
+				removeAvoFunctionRegistration(replaced);
+				if (registration.schema != null) {
+					avoFunctionsEventsSchemas.put(registration.schemaFingerprint, registration);
+				}
+			} else {
+				manualEvents.add(registration);
+				manualEventsParams.put(registration.fingerprint, registration);
 			}
-		} else {
-			if (lookForEventIn(eventName, params, manualEventsParams)) {
-				result = true;
+
+			boolean checkInAvoFunctions = !fromAvoFunction;
+
+			return !hasSameEventAs(registration, checkInAvoFunctions);
+		}
+
+		private boolean hasSameEventAs(Registration registration, boolean checkInAvoFunctions) {
+			Map<Long, Registration> eventsStorage = checkInAvoFunctions ? avoFunctionsEventsParams : manualEventsParams;
+
+			Registration other = eventsStorage.get(registration.fingerprint);
+			// Same fingerprint is a strong hint, the full comparison only rules out collisions
+			boolean result = other != null && mapsEqual(registration.params, other.params);
+
+			if (result) {
+				removeAvoFunctionRegistration(avoFunctionsEventsParams.remove(registration.fingerprint));
+				manualEventsParams.remove(registration.fingerprint);
 			}
+
+			return result;
 		}
 
-		if (result) {
-			avoFunctionsEventsParams.remove(eventName);
-			manualEventsParams.remove(eventName);
+		boolean hasParams(long fingerprint, Map<String, ?> params, boolean checkInAvoFunctions) {
+			Map<Long, Registration> eventsStorage = checkInAvoFunctions ? avoFunctionsEventsParams : manualEventsParams;
+
+			Registration registration = eventsStorage.get(fingerprint);
+			return registration != null && mapsEqual(params, registration.params);
 		}
 
-		return result;
-	}
+		boolean consumeAvoFunctionSchema(Map<String, AvoEventSchemaType> shapes) {
+			Registration match = avoFunctionsEventsSchemas.get(Util.fingerprint(shapes));
+			boolean result = match != null && mapsEqual(shapes, match.schema);
 
-	private static boolean lookForEventIn(String eventName, Map<String, ?> params, Map<String, Map<String, ?>> eventsStorage) {
-		for (String otherEventName : eventsStorage.keySet()) {
-			if (otherEventName.equals(eventName)) {
-				Map<String, ?> otherParams = eventsStorage.get(eventName);
-				if (mapsEqual(params, otherParams)) {
-					return true;
-				}
+			if (result) {
+				removeAvoFunctionRegistration(match);
 			}
+
+			return result;
 		}
-		return false;
-	}
 
-	static boolean hasSeenEventParams(Map<String, ?> params, boolean checkInAvoFunctions) {
-		boolean result = false;
+		private void removeAvoFunctionRegistration(@Nullable Registration registration) {
+			if (registration == null) {
+				return;
+			}
+			removeIfSame(avoFunctionsEventsParams, registration.fingerprint, registration);
+			if (registration.schema != null) {
+				removeIfSame(avoFunctionsEventsSchemas, registration.schemaFingerprint, registration);
+			}
+		}
 
-		if (checkInAvoFunctions) {
-			if (lookForEventParamsIn(params, avoFunctionsEventsParams)) {
-				result = true;
+		void clearOldEvents(long nowNanos, long windowNanos) {
+			// A newer event with the same key owns the entry by then and is kept
+			for (Registration expired = avoFunctionsEvents.pollExpired(nowNanos, windowNanos); expired != null;
+			     expired = avoFunctionsEvents.pollExpired(nowNanos, windowNanos)) {
+				removeAvoFunctionRegistration(expired);
 			}
-		} else {
-			if (lookForEventParamsIn(params, manualEventsParams)) {
-				result = true;
+
+			for (Registration expired = manualEvents.pollExpired(nowNanos, windowNanos); expired != null;
+			     expired = manualEvents.pollExpired(nowNanos, windowNanos)) {
+				removeIfSame(manualEventsParams, expired.fingerprint, expired);
 			}
 		}
 
-		return result;
+		int size() {
+			return avoFunctionsEvents.size() + manualEvents.size();
+		}
+
+		void clear() {
+			avoFunctionsEvents.clear();
+			manualEvents.clear();
+
+			avoFunctionsEventsParams.clear();
+			manualEventsParams.clear();
+			avoFunctionsEventsSchemas.clear();
+		}
+	}
+
+	// Map.remove(key, value) needs API 24
+	private static void removeIfSame(Map<Long, Registration> storage, long key, Registration registration) {
+		if (storage.get(key) == registration) {
+			storage.remove(key);
+		}
 	}
 
-	private static boolean lookForEventParamsIn(Map<String, ?> params, Map<String, Map<String, ?>> eventsStorage) {
-		for (String otherEventName : eventsStorage.keySet()) {
-			Map<String, ?> otherParams = eventsStorage.get(otherEventName);
-			if (mapsEqual(params, otherParams)) {
-				return true;
+	/**
+	 * Circular FIFO of registrations. Their timestamps are taken under the stripe's monitor, so they never
+	 * decrease along the ring and expiring is popping from the head: O(1) per event, however many arrive
+	 * in the same millisecond.
+	 */
+	private static final class ExpiryRing {
+		private Registration[] items = new Registration[64];
+		private int head = 0;
+		private int size = 0;
+
+		void add(@NonNull Registration registration) {
+			if (size == items.length) {
+				grow();
 			}
+			items[(head + size) & (items.length - 1)] = registration;
+			size++;
 		}
 
-		return false;
-	}
+		@Nullable Registration pollExpired(long nowNanos, long windowNanos) {
+			if (size == 0) {
+				return null;
+			}
+			Registration oldest = items[head];
+			if (nowNanos - oldest.timestampNanos <= windowNanos) {
+				return null;
+			}
+			items[head] = null;
+			head = (head + 1) & (items.length - 1);
+			size--;
+			return oldest;
+		}
 
-	static boolean shouldRegisterSchemaFromManually(String eventName, Map<String, AvoEventSchemaType> shapes) {
-		clearOldEvents();
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			Arrays.fill(items, null);
+			head = 0;
+			size = 0;
+		}
 
-		return !hasSameShapeInAvoFunctionsAs(eventName, shapes);
+		private void grow() {
+			Registration[] grown = new Registration[items.length * 2];
+			for (int i = 0; i < size; i++) {
+				grown[i] = items[(head + i) & (items.length - 1)];
+			}
+			items = grown;
+			head = 0;
+		}
 	}
 
-	private static boolean hasSameShapeInAvoFunctionsAs(String eventName, Map<String, AvoEventSchemaType> shapes) {
-		boolean result = lookForEventSchemaIn(eventName, shapes, avoFunctionsEventsParams);
+	boolean shouldRegisterEvent(String eventName, Map<String, ?> params, boolean fromAvoFunction) {
+		if (!enabled) {
+			return true;
+		}
+		Map<String, AvoEventSchemaType> schema = fromAvoFunction ? avoSchemaExtractor.extractSchema(params, false) : null;
+		return shouldRegisterEvent(eventName, params, schema, fromAvoFunction);
+	}
 
-        if (result) {
-			avoFunctionsEventsParams.remove(eventName);
+	/**
+	 * @param schema schema already extracted from the params. Kept for Avo function events
+	 *               so manually tracked schemas are matched without extracting again.
+	 */
+	boolean shouldRegisterEvent(String eventName, Map<String, ?> params,
+	                            @Nullable Map<String, AvoEventSchemaType> schema, boolean fromAvoFunction) {
+		if (!enabled) {
+			return true;
 		}
+		// Fingerprinting happens outside of the lock
+		Registration registration = new Registration(params, fromAvoFunction ? schema : null);
 
-		return result;
+		if (registrationsSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+			registrationsSinceSweep.set(0);
+			sweep();
+		}
+
+		while (true) {
+			Stripe stripe = stripeFor(eventName);
+			synchronized (stripe) {
+				if (stripe.retired) {
+					continue;
+				}
+				long now = System.nanoTime();
+				stripe.clearOldEvents(now, windowNanos);
+				registration.timestampNanos = now;
+				return stripe.register(registration, fromAvoFunction);
+			}
+		}
 	}
 
-	private static boolean lookForEventSchemaIn(String eventName, Map<String, AvoEventSchemaType> shapes, Map<String, Map<String, ?>> eventsStorage) {
-		for (String otherEventName : eventsStorage.keySet()) {
-			if (otherEventName.equals(eventName)) {
-				Map<String, ?> otherShapes = avoSchemaExtractor.extractSchema(eventsStorage.get(eventName), false);
-				if (mapsEqual(shapes, otherShapes)) {
+	boolean hasSeenEventParams(Map<String, ?> params, boolean checkInAvoFunctions) {
+		if (!enabled || stripes.isEmpty()) {
+			return false;
+		}
+
+		long fingerprint = Util.fingerprint(params);
+		long now = System.nanoTime();
+		for (Map.Entry<String, Stripe> entry : stripes.entrySet()) {
+			Stripe stripe = entry.getValue();
+			synchronized (stripe) {
+				if (clearOldEvents(entry.getKey(), stripe, now)) {
+					continue;
+				}
+				if (stripe.hasParams(fingerprint, params, checkInAvoFunctions)) {
 					return true;
 				}
 			}
@@ -124,37 +316,88 @@ class AvoDeduplicator {
 		return false;
 	}
 
-	private static void clearOldEvents() {
-		long now = System.currentTimeMillis();
-		long msToConsiderOld = 300;
+	boolean shouldRegisterSchemaFromManually(String eventName, Map<String, AvoEventSchemaType> shapes) {
+		if (!enabled) {
+			return true;
+		}
+		Stripe stripe = stripes.get(eventName);
+		if (stripe == null) {
+			return true;
+		}
+		synchronized (stripe) {
+			// A retired stripe is empty
+			return clearOldEvents(eventName, stripe, System.nanoTime()) || !stripe.consumeAvoFunctionSchema(shapes);
+		}
+	}
+
+	/**
+	 * Drops the expired registrations of a stripe, and the stripe itself once it is empty.
+	 * Called with the stripe's monitor held.
+	 *
+	 * @return true if the stripe is retired
+	 */
+	private boolean clearOldEvents(String eventName, Stripe stripe, long nowNanos) {
+		if (stripe.retired) {
+			return true;
+		}
+		stripe.clearOldEvents(nowNanos, windowNanos);
+		if (stripe.size() == 0) {
+			stripe.retired = true;
+			stripes.remove(eventName, stripe);
+		}
+		return stripe.retired;
+	}
 
-		for(Iterator<Map.Entry<Long, String>> it = avoFunctionsEvents.entrySet().iterator(); it.hasNext();) {
-			Map.Entry<Long, String> entry = it.next();
-			Long timestamp = entry.getKey();
-			String eventName = entry.getValue();
-			if(now - timestamp > msToConsiderOld) {
-				it.remove();
-				avoFunctionsEventsParams.remove(eventName);
+	private void sweep() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, Stripe> entry : stripes.entrySet()) {
+			Stripe stripe = entry.getValue();
+			synchronized (stripe) {
+				clearOldEvents(entry.getKey(), stripe, now);
 			}
 		}
+	}
 
-		for(Iterator<Map.Entry<Long, String>> it = manualEvents.entrySet().iterator(); it.hasNext();) {
-			Map.Entry<Long, String> entry = it.next();
-			Long timestamp = entry.getKey();
-			String eventName = entry.getValue();
-			if(now - timestamp > msToConsiderOld) {
-				it.remove();
-				manualEventsParams.remove(eventName);
+	private Stripe stripeFor(String eventName) {
+		Stripe stripe = stripes.get(eventName);
+		if (stripe == null) {
+			Stripe created = new Stripe();
+			stripe = stripes.putIfAbsent(eventName, created);
+			if (stripe == null) {
+				stripe = created;
 			}
 		}
+		return stripe;
 	}
 
 	@VisibleForTesting
-	static  void clearEvents() {
-		avoFunctionsEvents.clear();
-		manualEvents.clear();
+	int pendingEventsCount() {
+		int count = 0;
+		long now = System.nanoTime();
+		for (Map.Entry<String, Stripe> entry : stripes.entrySet()) {
+			Stripe stripe = entry.getValue();
+			synchronized (stripe) {
+				if (!clearOldEvents(entry.getKey(), stripe, now)) {
+					count += stripe.size();
+				}
+			}
+		}
+		return count;
+	}
 
-		avoFunctionsEventsParams.clear();
-		manualEventsParams.clear();
+	@VisibleForTesting
+	int stripeCount() {
+		return stripes.size();
+	}
+
+	void clearEvents() {
+		for (Map.Entry<String, Stripe> entry : stripes.entrySet()) {
+			Stripe stripe = entry.getValue();
+			synchronized (stripe) {
+				stripe.clear();
+				stripe.retired = true;
+				stripes.remove(entry.getKey(), stripe);
+			}
+		}
 	}
 }
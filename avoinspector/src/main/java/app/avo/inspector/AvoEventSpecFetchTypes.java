@@ -57,15 +57,106 @@ class EventSpecResponse {
 
 class EventSpecCacheEntry {
     public EventSpecResponse spec;
+    // Compiled from spec when it is cached. Null for "no spec" entries and malformed specs.
+    public ValidationPlan plan;
     public long timestamp;
-    public long lastAccessed;
-    public int eventCount;
+    public volatile int eventCount;
+    public boolean refreshing;
+    // When a spec persisted by a previous launch was loaded, 0 for a spec fetched by this process
+    public long preloadedAt;
+    // Estimated retained size of the spec, in bytes
+    public long weight;
+}
+
+/**
+ * Cache key of an event spec. Built once per tracked event and reused for every cache call of that event.
+ */
+final class EventSpecKey {
+    public final String apiKey;
+    public final String streamId;
+    public final String eventName;
+    private final int hash;
+
+    EventSpecKey(String apiKey, String streamId, String eventName) {
+        this.apiKey = apiKey;
+        this.streamId = streamId;
+        this.eventName = eventName;
+        this.hash = 31 * (31 * hashOf(apiKey) + hashOf(streamId)) + hashOf(eventName);
+    }
+
+    private static int hashOf(String value) {
+        return value != null ? value.hashCode() : 0;
+    }
+
+    private static boolean same(String value, String other) {
+        return value == null ? other == null : value.equals(other);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EventSpecKey)) {
+            return false;
+        }
+        EventSpecKey other = (EventSpecKey) obj;
+        return hash == other.hash
+                && same(eventName, other.eventName)
+                && same(streamId, other.streamId)
+                && same(apiKey, other.apiKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return apiKey + ":" + streamId + ":" + eventName;
+    }
 }
 
 class FetchEventSpecParams {
     public String apiKey;
     public String streamId;
     public String eventName;
+    // Version of the spec the caller already has, see AvoEventSpecFetcher#specVersion. Null for a full fetch.
+    public String knownVersion;
+}
+
+/**
+ * Spec request sent by a {@link StreamingEventSpecRequestClient}.
+ */
+class EventSpecHttpRequest {
+    public final String url;
+    public final int timeoutMillis;
+    public final Map<String, String> headers;
+
+    EventSpecHttpRequest(String url, int timeoutMillis, Map<String, String> headers) {
+        this.url = url;
+        this.timeoutMillis = timeoutMillis;
+        this.headers = headers;
+    }
+}
+
+/**
+ * Answer to an {@link EventSpecHttpRequest}: 200 with a spec, 404 when the event has no spec,
+ * or 304 when the known version sent in If-None-Match is still current.
+ */
+class EventSpecHttpResponse {
+    static final int OK = 200;
+    static final int NOT_MODIFIED = 304;
+    static final int NOT_FOUND = 404;
+
+    public final int status;
+    public final EventSpecResponse spec;
+
+    EventSpecHttpResponse(int status, EventSpecResponse spec) {
+        this.status = status;
+        this.spec = spec;
+    }
 }
 
 class PropertyValidationResult {
@@ -77,5 +168,7 @@ class PropertyValidationResult {
 class ValidationResult {
     public EventSpecMetadata metadata;
     public Map<String, PropertyValidationResult> propertyResults;
+    // Validation ran out of budget, the properties it did not finish have empty results
+    public boolean partial;
 }
 
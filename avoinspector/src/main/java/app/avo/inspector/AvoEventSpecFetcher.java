@@ -1,15 +1,20 @@
 package app.avo.inspector;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import androidx.annotation.Nullable;
+
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import javax.net.ssl.HttpsURLConnection;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -23,22 +28,39 @@ import java.util.concurrent.ExecutionException;
 import android.util.Log;
 
 interface EventSpecRequestClient {
+    /**
+     * @return null when the server has no spec for the event. Throws when the request fails.
+     */
     EventSpecResponseWire get(String url, int timeoutMillis) throws Exception;
 }
 
-class DefaultEventSpecRequestClient implements EventSpecRequestClient {
+/**
+ * Client that parses the response straight into the runtime model and supports conditional requests,
+ * used by the fetcher instead of {@link EventSpecRequestClient#get(String, int)} when available.
+ */
+interface StreamingEventSpecRequestClient extends EventSpecRequestClient {
+    /**
+     * @return the status of the answer, with the spec when it is 200. The shape of the spec is not checked.
+     * Throws when the request fails.
+     */
+    EventSpecHttpResponse getSpec(EventSpecHttpRequest request) throws Exception;
+}
+
+class DefaultEventSpecRequestClient implements StreamingEventSpecRequestClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     @Override
     public EventSpecResponseWire get(String url, int timeoutMillis) throws Exception {
-        HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+        HttpURLConnection connection = open(url, timeoutMillis, Collections.<String, String>emptyMap());
         try {
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(timeoutMillis);
-            connection.setReadTimeout(timeoutMillis);
-            connection.setRequestProperty("Content-Type", "application/json");
             int status = connection.getResponseCode();
-            if (status != 200) {
+            if (status == EventSpecHttpResponse.NOT_FOUND) {
                 return null;
             }
+            if (status != EventSpecHttpResponse.OK) {
+                throw new IOException("Event spec request failed with status " + status);
+            }
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
                 StringBuilder response = new StringBuilder();
                 String line = reader.readLine();
@@ -49,14 +71,50 @@ class DefaultEventSpecRequestClient implements EventSpecRequestClient {
                 JSONObject json = new JSONObject(response.toString());
                 return parseResponse(json);
             }
-        } catch (JSONException e) {
-            return null;
         } finally {
             connection.disconnect();
         }
     }
 
-    private EventSpecResponseWire parseResponse(JSONObject json) {
+    @Override
+    public EventSpecHttpResponse getSpec(EventSpecHttpRequest request) throws Exception {
+        HttpURLConnection connection = open(request.url, request.timeoutMillis, request.headers);
+        try {
+            int status = checkStatus(connection.getResponseCode());
+            if (status != EventSpecHttpResponse.OK) {
+                return new EventSpecHttpResponse(status, null);
+            }
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), UTF_8)) {
+                return new EventSpecHttpResponse(status, EventSpecResponseParser.parse(reader));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // HTTPS in production, the tests' stand-in endpoint is plain HTTP
+    private static HttpURLConnection open(String url, int timeoutMillis, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestProperty("Content-Type", "application/json");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
+    }
+
+    // 200, 304 and 404 are answers, anything else is a failed request
+    private static int checkStatus(int status) throws IOException {
+        if (status != EventSpecHttpResponse.OK && status != EventSpecHttpResponse.NOT_MODIFIED
+                && status != EventSpecHttpResponse.NOT_FOUND) {
+            throw new IOException("Event spec request failed with status " + status);
+        }
+        return status;
+    }
+
+    static EventSpecResponseWire parseResponse(JSONObject json) {
         EventSpecResponseWire response = new EventSpecResponseWire();
         response.events = new ArrayList<>();
         JSONArray events = json.optJSONArray("events");
@@ -82,7 +140,7 @@ class DefaultEventSpecRequestClient implements EventSpecRequestClient {
         return response;
     }
 
-    private EventSpecEntryWire parseEntry(JSONObject json) {
+    private static EventSpecEntryWire parseEntry(JSONObject json) {
         EventSpecEntryWire entry = new EventSpecEntryWire();
         entry.b = json.optString("b", null);
         entry.id = json.optString("id", null);
@@ -108,7 +166,7 @@ class DefaultEventSpecRequestClient implements EventSpecRequestClient {
         return entry;
     }
 
-    private PropertyConstraintsWire parseConstraints(JSONObject json) {
+    private static PropertyConstraintsWire parseConstraints(JSONObject json) {
         PropertyConstraintsWire constraints = new PropertyConstraintsWire();
         constraints.t = json.optString("t", null);
         if (json.has("r")) {
@@ -135,7 +193,7 @@ class DefaultEventSpecRequestClient implements EventSpecRequestClient {
         return constraints;
     }
 
-    private Map<String, List<String>> parseStringListMap(JSONObject json) {
+    private static Map<String, List<String>> parseStringListMap(JSONObject json) {
         Map<String, List<String>> result = new HashMap<>();
         if (json == null) {
             return result;
@@ -155,7 +213,7 @@ class DefaultEventSpecRequestClient implements EventSpecRequestClient {
         return result;
     }
 
-    private Map<String, PropertyConstraintsWire> parseChildren(JSONObject json) {
+    private static Map<String, PropertyConstraintsWire> parseChildren(JSONObject json) {
         Map<String, PropertyConstraintsWire> result = new HashMap<>();
         if (json == null) {
             return result;
@@ -176,13 +234,39 @@ interface EventSpecFetchCallback {
     void onResult(EventSpecResponse response);
 }
 
+/**
+ * Callback that tells a failed fetch apart from an event without spec.
+ * Other callbacks get a null result for both.
+ */
+interface EventSpecFetchFailureCallback extends EventSpecFetchCallback {
+    void onFetchFailed();
+
+    /**
+     * The fetch was not made because the circuit is open. Says nothing about the event, so unlike a failure
+     * it should not delay its next fetch.
+     */
+    void onFetchRejected();
+}
+
+/**
+ * Callback of a conditional fetch, told when the known version of the spec is still current.
+ * Fetches with other callbacks always download the spec.
+ */
+interface EventSpecRevalidationCallback extends EventSpecFetchFailureCallback {
+    void onNotModified();
+}
+
 public class AvoEventSpecFetcher {
+
+    private enum Outcome { SPEC, NO_SPEC, NOT_MODIFIED, FAILED, REJECTED }
+
     private final String baseUrl;
     private final int timeout;
     private final int wallTimeout;
     private final Map<String, List<EventSpecFetchCallback>> inFlightCallbacks = new HashMap<>();
     private final String env;
     private final EventSpecRequestClient requestClient;
+    final EventSpecCircuitBreaker circuitBreaker = new EventSpecCircuitBreaker();
 
     public AvoEventSpecFetcher(int timeout, String env) {
         this(timeout, timeout * 2, env, "https://api.avo.app", new DefaultEventSpecRequestClient());
@@ -208,12 +292,15 @@ public class AvoEventSpecFetcher {
         this.requestClient = requestClient;
     }
 
-    private String generateRequestKey(FetchEventSpecParams params) {
-        return params.apiKey + ":" + params.streamId + ":" + params.eventName;
+    // Conditional fetches get their own key: "not modified" is no answer for a caller without the spec
+    private String generateRequestKey(FetchEventSpecParams params, @Nullable String knownVersion) {
+        String requestKey = params.apiKey + ":" + params.streamId + ":" + params.eventName;
+        return knownVersion != null ? requestKey + "@" + knownVersion : requestKey;
     }
 
     public void fetch(FetchEventSpecParams params, EventSpecFetchCallback callback) {
-        String requestKey = generateRequestKey(params);
+        String knownVersion = callback instanceof EventSpecRevalidationCallback ? params.knownVersion : null;
+        String requestKey = generateRequestKey(params, knownVersion);
         synchronized (inFlightCallbacks) {
             List<EventSpecFetchCallback> existing = inFlightCallbacks.get(requestKey);
             if (existing != null) {
@@ -224,45 +311,67 @@ public class AvoEventSpecFetcher {
             callbacks.add(callback);
             inFlightCallbacks.put(requestKey, callbacks);
         }
-        fetchInternal(params, requestKey);
+        fetchInternal(params, knownVersion, requestKey);
     }
 
-    private void fetchInternal(FetchEventSpecParams params, String requestKey) {
+    private void fetchInternal(FetchEventSpecParams params, @Nullable String knownVersion, String requestKey) {
         if (!("dev".equals(env) || "staging".equals(env))) {
-            deliverResult(requestKey, null);
+            deliverResult(requestKey, null, Outcome.NO_SPEC);
+            return;
+        }
+        final EventSpecCircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == EventSpecCircuitBreaker.Permit.REJECTED) {
+            if (AvoInspector.isLogging()) {
+                Log.d("Avo Inspector", "Event spec fetching circuit is open. Not fetching: " + params.eventName);
+            }
+            deliverResult(requestKey, null, Outcome.REJECTED);
             return;
         }
         new Thread(() -> {
             EventSpecResponse result = null;
+            Outcome outcome = Outcome.FAILED;
             ExecutorService httpExecutor = Executors.newSingleThreadExecutor();
             try {
                 String url = buildUrl(params);
                 if (AvoInspector.isLogging()) {
                     Log.d("Avo Inspector", "Fetching event spec for event: " + params.eventName + " url: " + url);
                 }
-                Future<EventSpecResponseWire> future = httpExecutor.submit(() -> makeRequest(url));
-                EventSpecResponseWire wireResponse;
+                Future<EventSpecHttpResponse> future = httpExecutor.submit(() -> makeRequest(url, knownVersion));
+                EventSpecHttpResponse answer = null;
+                boolean timedOut = false;
                 try {
-                    wireResponse = future.get(wallTimeout, TimeUnit.MILLISECONDS);
+                    answer = future.get(wallTimeout, TimeUnit.MILLISECONDS);
                 } catch (TimeoutException e) {
                     future.cancel(true);
                     if (AvoInspector.isLogging()) {
                         Log.e("Avo Inspector", "Event spec fetch timed out (wall-clock " + wallTimeout + "ms) for: " + params.eventName);
                     }
-                    wireResponse = null;
+                    timedOut = true;
                 } catch (ExecutionException e) {
                     throw e.getCause() != null ? e.getCause() : e;
                 }
-                if (wireResponse == null) {
+                EventSpecResponse response = answer != null ? answer.spec : null;
+                if (timedOut) {
+                    // Logged above, reported as a failure
+                } else if (answer.status == EventSpecHttpResponse.NOT_MODIFIED
+                        || (knownVersion != null && hasExpectedShape(response) && knownVersion.equals(specVersion(response)))) {
+                    // A 304, or a server without conditional requests that sent the same version again
+                    outcome = Outcome.NOT_MODIFIED;
                     if (AvoInspector.isLogging()) {
-                        Log.e("Avo Inspector", "Failed to fetch event spec for: " + params.eventName);
+                        Log.d("Avo Inspector", "Event spec unchanged for: " + params.eventName);
                     }
-                } else if (!hasExpectedShape(wireResponse)) {
+                } else if (response == null) {
+                    outcome = Outcome.NO_SPEC;
+                    if (AvoInspector.isLogging()) {
+                        Log.d("Avo Inspector", "No event spec for: " + params.eventName);
+                    }
+                } else if (!hasExpectedShape(response)) {
                     if (AvoInspector.isLogging()) {
                         Log.e("Avo Inspector", "Invalid event spec response for: " + params.eventName);
                     }
                 } else {
-                    result = parseEventSpecResponse(wireResponse);
+                    result = response;
+                    outcome = Outcome.SPEC;
                     if (AvoInspector.isLogging()) {
                         Log.d("Avo Inspector", "Successfully fetched event spec for: " + params.eventName
                                 + " with " + (result.events != null ? result.events.size() : 0) + " events");
@@ -275,18 +384,31 @@ public class AvoEventSpecFetcher {
             } finally {
                 httpExecutor.shutdownNow();
             }
-            deliverResult(requestKey, result);
+            if (outcome == Outcome.FAILED) {
+                circuitBreaker.onFailure(permit);
+            } else {
+                circuitBreaker.onSuccess(permit);
+            }
+            deliverResult(requestKey, result, outcome);
         }).start();
     }
 
-    private void deliverResult(String requestKey, EventSpecResponse result) {
+    private void deliverResult(String requestKey, EventSpecResponse result, Outcome outcome) {
         List<EventSpecFetchCallback> callbacks;
         synchronized (inFlightCallbacks) {
             callbacks = inFlightCallbacks.remove(requestKey);
         }
         if (callbacks != null) {
             for (EventSpecFetchCallback cb : callbacks) {
-                cb.onResult(result);
+                if (outcome == Outcome.REJECTED && cb instanceof EventSpecFetchFailureCallback) {
+                    ((EventSpecFetchFailureCallback) cb).onFetchRejected();
+                } else if (outcome == Outcome.FAILED && cb instanceof EventSpecFetchFailureCallback) {
+                    ((EventSpecFetchFailureCallback) cb).onFetchFailed();
+                } else if (outcome == Outcome.NOT_MODIFIED && cb instanceof EventSpecRevalidationCallback) {
+                    ((EventSpecRevalidationCallback) cb).onNotModified();
+                } else {
+                    cb.onResult(result);
+                }
             }
         }
     }
@@ -306,11 +428,48 @@ public class AvoEventSpecFetcher {
         }
     }
 
-    private EventSpecResponseWire makeRequest(String url) throws Exception {
-        return requestClient.get(url, timeout);
+    private EventSpecHttpResponse makeRequest(String url, @Nullable String knownVersion) throws Exception {
+        if (requestClient instanceof StreamingEventSpecRequestClient) {
+            Map<String, String> headers = knownVersion != null
+                    ? Collections.singletonMap("If-None-Match", "\"" + knownVersion + "\"")
+                    : Collections.<String, String>emptyMap();
+            return ((StreamingEventSpecRequestClient) requestClient).getSpec(new EventSpecHttpRequest(url, timeout, headers));
+        }
+        EventSpecResponseWire wire = requestClient.get(url, timeout);
+        if (wire == null) {
+            return new EventSpecHttpResponse(EventSpecHttpResponse.NOT_FOUND, null);
+        }
+        if (!hasExpectedShape(wire)) {
+            // Converting would hide missing events behind an empty list
+            EventSpecResponse invalid = new EventSpecResponse();
+            invalid.metadata = wire.metadata;
+            return new EventSpecHttpResponse(EventSpecHttpResponse.OK, invalid);
+        }
+        return new EventSpecHttpResponse(EventSpecHttpResponse.OK, parseEventSpecResponse(wire));
+    }
+
+    /**
+     * @return the version of a spec, sent in If-None-Match to revalidate it. Null when its metadata is incomplete.
+     */
+    @Nullable
+    static String specVersion(@Nullable EventSpecResponse spec) {
+        if (spec == null || spec.metadata == null || spec.metadata.schemaId == null
+                || spec.metadata.branchId == null || spec.metadata.latestActionId == null) {
+            return null;
+        }
+        return spec.metadata.schemaId + ":" + spec.metadata.branchId + ":" + spec.metadata.latestActionId;
+    }
+
+    static boolean hasExpectedShape(EventSpecResponseWire response) {
+        return response != null
+                && response.events != null
+                && response.metadata != null
+                && response.metadata.schemaId != null
+                && response.metadata.branchId != null
+                && response.metadata.latestActionId != null;
     }
 
-    private boolean hasExpectedShape(EventSpecResponseWire response) {
+    static boolean hasExpectedShape(EventSpecResponse response) {
         return response != null
                 && response.events != null
                 && response.metadata != null
@@ -319,7 +478,7 @@ public class AvoEventSpecFetcher {
                 && response.metadata.latestActionId != null;
     }
 
-    private static EventSpecResponse parseEventSpecResponse(EventSpecResponseWire wire) {
+    static EventSpecResponse parseEventSpecResponse(EventSpecResponseWire wire) {
         EventSpecResponse response = new EventSpecResponse();
         response.events = new ArrayList<>();
         if (wire.events != null) {
@@ -12,10 +12,30 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static app.avo.inspector.Util.handleException;
 
@@ -33,6 +53,7 @@ public class AvoInspector implements Inspector {
 
     AvoBatcher avoBatcher;
     AvoSchemaExtractor avoSchemaExtractor;
+    AvoDeduplicator avoDeduplicator;
 
     boolean isHidden = true;
 
@@ -51,12 +72,29 @@ public class AvoInspector implements Inspector {
     private static final int EVENT_SPEC_FETCH_WALL_TIMEOUT_MS = 10_000;
 
     @Nullable EventSpecCache eventSpecCache;
+    @Nullable EventSpecDiskCache eventSpecDiskCache;
     @Nullable AvoEventSpecFetcher eventSpecFetcher;
     @Nullable volatile String currentBranchId;
     private final Object branchIdLock = new Object();
 
+    // Events waiting for the spec fetch of their event, by event. Guarded by itself.
+    private final Map<EventSpecKey, List<PendingValidation>> pendingValidations = new HashMap<>();
+
     public static AvoStorage avoStorage;
 
+    private static final int INGEST_QUEUE_CAPACITY = 1000;
+
+    // The pipeline thread stops after this long without events, and is started again by the next one
+    private static final long INGEST_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // Deeper values of async events are not copied, they are past the default extraction depth
+    private static final int MAX_SNAPSHOT_DEPTH = AvoSchemaExtractor.DEFAULT_MAX_DEPTH;
+
+    private volatile boolean asyncIngestEnabled = false;
+    // Guarded by this
+    @Nullable private ExecutorService ingestExecutor;
+    private final AtomicLong droppedIngestEvents = new AtomicLong();
+
     AvoInspector(String apiKey, Application application, String envString, @Nullable Activity rootActivityForVisualInspector) {
         this(apiKey, application,
                 envString.equalsIgnoreCase("prod") ? AvoInspectorEnv.Prod :
@@ -111,6 +149,7 @@ public class AvoInspector implements Inspector {
         }
 
         avoSchemaExtractor = new AvoSchemaExtractor();
+        avoDeduplicator = new AvoDeduplicator(avoSchemaExtractor);
 
         int stringId = application.getApplicationInfo().labelRes;
         appName = stringId == 0 ? application.getApplicationInfo().packageName : application.getString(stringId);
@@ -131,7 +170,9 @@ public class AvoInspector implements Inspector {
         String streamId = AvoAnonymousId.anonymousId();
         if (streamId != null && !streamId.isEmpty() && !"unknown".equals(streamId)) {
             this.eventSpecCache = new EventSpecCache();
+            this.eventSpecDiskCache = EventSpecDiskCache.inDirectory(application.getCacheDir());
             this.eventSpecFetcher = new AvoEventSpecFetcher(EVENT_SPEC_FETCH_TIMEOUT_MS, EVENT_SPEC_FETCH_WALL_TIMEOUT_MS, env.getName());
+            preloadEventSpecs(streamId);
         }
 
         if (env == AvoInspectorEnv.Dev) {
@@ -170,13 +211,16 @@ public class AvoInspector implements Inspector {
                         handleException(e, AvoInspector.this.env);
                     }
                 }
+                trimEventSpecCache(i);
             }
 
             @Override
             public void onConfigurationChanged(@NonNull Configuration configuration) {}
 
             @Override
-            public void onLowMemory() {}
+            public void onLowMemory() {
+                trimEventSpecCache(TRIM_MEMORY_COMPLETE);
+            }
         });
     }
 
@@ -199,14 +243,29 @@ public class AvoInspector implements Inspector {
     }
 
     @SuppressWarnings({"SameParameterValue"})
-    @NonNull Map<String, AvoEventSchemaType> avoFunctionTrackSchemaFromEvent(@NonNull String eventName, @Nullable Map<String, ?> eventProperties, @NonNull String eventId, @NonNull String eventHash) {
+    @NonNull Map<String, AvoEventSchemaType> avoFunctionTrackSchemaFromEvent(@NonNull final String eventName, @Nullable Map<String, ?> eventProperties, @NonNull final String eventId, @NonNull final String eventHash) {
+        if (asyncIngestEnabled) {
+            final Map<String, ?> snapshot = snapshot(eventProperties);
+            enqueue(new Callable<Map<String, AvoEventSchemaType>>() {
+                @Override
+                public Map<String, AvoEventSchemaType> call() {
+                    return avoFunctionTrackSchemaFromEventNow(eventName, snapshot, eventId, eventHash);
+                }
+            });
+            return new HashMap<>();
+        }
+        return avoFunctionTrackSchemaFromEventNow(eventName, eventProperties, eventId, eventHash);
+    }
+
+    @NonNull private Map<String, AvoEventSchemaType> avoFunctionTrackSchemaFromEventNow(@NonNull String eventName, @Nullable Map<String, ?> eventProperties, @NonNull String eventId, @NonNull String eventHash) {
         try {
-            if (AvoDeduplicator.shouldRegisterEvent(eventName, eventProperties, true)) {
+            // Extracted up front so the deduplicator can match manually tracked schemas against it
+            Map<String, AvoEventSchemaType> schema = avoSchemaExtractor.extractSchema(eventProperties, false);
+
+            if (avoDeduplicator.shouldRegisterEvent(eventName, eventProperties, schema, true)) {
                 logPreExtract(eventName, eventProperties);
                 visualInspector.showEventInVisualInspector(eventName, eventProperties, null);
 
-                Map<String, AvoEventSchemaType> schema = avoSchemaExtractor.extractSchema(eventProperties, false);
-
                 fetchAndValidateAsync(eventName, eventProperties, schema, eventId, eventHash);
 
                 return schema;
@@ -225,9 +284,219 @@ public class AvoInspector implements Inspector {
 
     @Override
     public @NonNull Map<String, AvoEventSchemaType> trackSchemaFromEvent(@NonNull String eventName, @Nullable JSONObject eventProperties) {
+        if (asyncIngestEnabled) {
+            trackSchemaFromEventAsync(eventName, eventProperties);
+            return new HashMap<>();
+        }
+        return trackSchemaFromEventNow(eventName, eventProperties);
+    }
+
+    @Override
+    public @NonNull Map<String, AvoEventSchemaType> trackSchemaFromEvent(@NonNull String eventName, @Nullable Map<String, ?> eventProperties) {
+        if (asyncIngestEnabled) {
+            trackSchemaFromEventAsync(eventName, eventProperties);
+            return new HashMap<>();
+        }
+        return trackSchemaFromEventNow(eventName, eventProperties);
+    }
+
+    /**
+     * Snapshots the properties and runs deduplication, extraction, validation and batching
+     * on the inspector pipeline thread. The returned future completes with the extracted schema.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public @NonNull Future<Map<String, AvoEventSchemaType>> trackSchemaFromEventAsync(@NonNull final String eventName, @Nullable JSONObject eventProperties) {
+        final JSONObject snapshot;
+        try {
+            snapshot = eventProperties != null ? snapshot(eventProperties, 0) : null;
+        } catch (Exception e) {
+            handleException(e, AvoInspector.this.env);
+            return completedFuture(new HashMap<String, AvoEventSchemaType>());
+        }
+        return enqueue(new Callable<Map<String, AvoEventSchemaType>>() {
+            @Override
+            public Map<String, AvoEventSchemaType> call() {
+                return trackSchemaFromEventNow(eventName, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Snapshots the properties and runs deduplication, extraction, validation and batching
+     * on the inspector pipeline thread. The returned future completes with the extracted schema.
+     * Nested maps and collections are copied too, so they can be reused once the call returns.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public @NonNull Future<Map<String, AvoEventSchemaType>> trackSchemaFromEventAsync(@NonNull final String eventName, @Nullable Map<String, ?> eventProperties) {
+        final Map<String, ?> snapshot = snapshot(eventProperties);
+        return enqueue(new Callable<Map<String, AvoEventSchemaType>>() {
+            @Override
+            public Map<String, AvoEventSchemaType> call() {
+                return trackSchemaFromEventNow(eventName, snapshot);
+            }
+        });
+    }
+
+    /**
+     * In async ingest mode the track* methods return an empty schema right away and the work
+     * happens on a single background pipeline thread, in the order the events were tracked.
+     * Disabling it lets the events already queued finish, then releases the pipeline thread.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void enableAsyncIngest(boolean enabled) {
+        asyncIngestEnabled = enabled;
+        if (!enabled) {
+            shutdownIngestExecutor();
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isAsyncIngestEnabled() {
+        return asyncIngestEnabled;
+    }
+
+    /**
+     * For monitoring: how many events were dropped because the async ingest queue was full.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getDroppedIngestEventCount() {
+        return droppedIngestEvents.get();
+    }
+
+    // Copies the nested maps, collections and JSON containers, the leaves are immutable. Lists stay lists and
+    // sets stay sets, so deduplication compares the copies like the originals, and cycles are copied as cycles.
+    // A container reported by a registered type inferrer is its own value and is not copied.
+    @Nullable private Map<String, ?> snapshot(@Nullable Map<String, ?> eventProperties) {
+        if (eventProperties == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, ?> copy = (Map<String, ?>) snapshotValue(eventProperties, new IdentityHashMap<Object, Object>(), 0);
+        return copy;
+    }
+
+    @Nullable private Object snapshotValue(@Nullable Object value, @NonNull Map<Object, Object> copies, int depth) {
+        if (value instanceof JSONObject || value instanceof JSONArray) {
+            try {
+                return snapshotJsonValue(value, depth);
+            } catch (JSONException e) {
+                return value;
+            }
+        }
+        if (!(value instanceof Map) && !(value instanceof Collection)) {
+            return value;
+        }
+        Object copied = copies.get(value);
+        if (copied != null) {
+            return copied;
+        }
+        if (depth > MAX_SNAPSHOT_DEPTH || (depth > 0 && avoSchemaExtractor.hasTypeInferrer(value.getClass()))) {
+            return value;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new HashMap<>();
+            copies.put(value, copy);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), snapshotValue(entry.getValue(), copies, depth + 1));
+            }
+            return copy;
+        }
+        Collection<Object> items = value instanceof Set ? new LinkedHashSet<>() : new ArrayList<>();
+        // Neither a list nor a set, like the original
+        Collection<Object> copy = value instanceof List || value instanceof Set
+                ? items : Collections.unmodifiableCollection(items);
+        copies.put(value, copy);
+        for (Object item : (Collection<?>) value) {
+            items.add(snapshotValue(item, copies, depth + 1));
+        }
+        return copy;
+    }
+
+    // Copies the nested objects and arrays, the leaves are immutable
+    @NonNull private static JSONObject snapshot(@NonNull JSONObject eventProperties, int depth) throws JSONException {
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = eventProperties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, snapshotJsonValue(eventProperties.get(key), depth + 1));
+        }
+        return copy;
+    }
+
+    private static Object snapshotJsonValue(Object value, int depth) throws JSONException {
+        if (depth > MAX_SNAPSHOT_DEPTH) {
+            return value;
+        }
+        if (value instanceof JSONObject) {
+            return snapshot((JSONObject) value, depth);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+                copy.put(snapshotJsonValue(array.get(i), depth + 1));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    // Submitting under the lock so that a task is never handed to an executor being shut down
+    private synchronized Future<Map<String, AvoEventSchemaType>> submitIngestTask(
+            @NonNull Callable<Map<String, AvoEventSchemaType>> task) {
+        if (ingestExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    INGEST_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(INGEST_QUEUE_CAPACITY), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Avo Inspector ingest");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            ingestExecutor = executor;
+        }
+        return ingestExecutor.submit(task);
+    }
+
+    private synchronized void shutdownIngestExecutor() {
+        if (ingestExecutor != null) {
+            ingestExecutor.shutdown();
+            ingestExecutor = null;
+        }
+    }
+
+    @NonNull private Future<Map<String, AvoEventSchemaType>> enqueue(@NonNull Callable<Map<String, AvoEventSchemaType>> task) {
+        try {
+            return submitIngestTask(task);
+        } catch (RejectedExecutionException e) {
+            long dropped = droppedIngestEvents.incrementAndGet();
+            // Reported even with logging off, once, so that a prod build shows the queue overflowing
+            if (isLogging() || dropped == 1) {
+                Log.w("Avo Inspector", "Ingest queue is full (" + INGEST_QUEUE_CAPACITY + " events). Dropping event. "
+                        + dropped + " events dropped so far.");
+            }
+            return completedFuture(new HashMap<String, AvoEventSchemaType>());
+        }
+    }
+
+    @NonNull private static Future<Map<String, AvoEventSchemaType>> completedFuture(@NonNull final Map<String, AvoEventSchemaType> value) {
+        FutureTask<Map<String, AvoEventSchemaType>> future = new FutureTask<>(new Callable<Map<String, AvoEventSchemaType>>() {
+            @Override
+            public Map<String, AvoEventSchemaType> call() {
+                return value;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    @NonNull private Map<String, AvoEventSchemaType> trackSchemaFromEventNow(@NonNull String eventName, @Nullable JSONObject eventProperties) {
         try {
             Map<String, Object> eventPropsMap = eventProperties != null ? Util.jsonToMap(eventProperties) : null;
-            if (AvoDeduplicator.shouldRegisterEvent(eventName, eventPropsMap, false)) {
+            if (avoDeduplicator.shouldRegisterEvent(eventName, eventPropsMap, false)) {
                 logPreExtract(eventName, eventProperties);
                 visualInspector.showEventInVisualInspector(eventName, null, eventProperties);
 
@@ -248,10 +517,9 @@ public class AvoInspector implements Inspector {
         }
     }
 
-    @Override
-    public @NonNull Map<String, AvoEventSchemaType> trackSchemaFromEvent(@NonNull String eventName, @Nullable Map<String, ?> eventProperties) {
+    @NonNull private Map<String, AvoEventSchemaType> trackSchemaFromEventNow(@NonNull String eventName, @Nullable Map<String, ?> eventProperties) {
         try {
-            if (AvoDeduplicator.shouldRegisterEvent(eventName, eventProperties, false)) {
+            if (avoDeduplicator.shouldRegisterEvent(eventName, eventProperties, false)) {
                 logPreExtract(eventName, eventProperties);
                 visualInspector.showEventInVisualInspector(eventName, eventProperties, null);
 
@@ -279,9 +547,24 @@ public class AvoInspector implements Inspector {
     }
 
     @Override
-    public void trackSchema(@NonNull String eventName, @Nullable Map<String, AvoEventSchemaType> eventSchema) {
+    public void trackSchema(@NonNull final String eventName, @Nullable final Map<String, AvoEventSchemaType> eventSchema) {
+        if (asyncIngestEnabled) {
+            // Keep manual schemas ordered with the tracked events they may deduplicate against
+            enqueue(new Callable<Map<String, AvoEventSchemaType>>() {
+                @Override
+                public Map<String, AvoEventSchemaType> call() {
+                    trackSchemaNow(eventName, eventSchema);
+                    return eventSchema != null ? eventSchema : new HashMap<String, AvoEventSchemaType>();
+                }
+            });
+            return;
+        }
+        trackSchemaNow(eventName, eventSchema);
+    }
+
+    private void trackSchemaNow(@NonNull String eventName, @Nullable Map<String, AvoEventSchemaType> eventSchema) {
         try {
-            if (AvoDeduplicator.shouldRegisterSchemaFromManually(eventName, eventSchema)) {
+            if (avoDeduplicator.shouldRegisterSchemaFromManually(eventName, eventSchema)) {
                 trackSchemaInternal(eventName, eventSchema, null, null, null);
             } else {
                 if (isLogging()) {
@@ -336,7 +619,7 @@ public class AvoInspector implements Inspector {
             }
             try {
                 //noinspection unchecked
-                if (AvoDeduplicator.hasSeenEventParams(eventPropsToCheck, true)) {
+                if (avoDeduplicator.hasSeenEventParams(eventPropsToCheck, true)) {
                     Log.w("Avo Inspector", "WARNING! You are trying to extract schema shape that was just reported by your Avo Codegen. " +
                             "This is an indicator of duplicate inspector reporting. " +
                             "Please reach out to support@avo.app for advice if you are not sure how to handle this.");
@@ -357,6 +640,194 @@ public class AvoInspector implements Inspector {
         return visualInspector.getDebuggerManager();
     }
 
+    @Override
+    public void prefetchEventSpecs(@NonNull Collection<String> eventNames) {
+        prefetchEventSpecs(eventNames, null);
+    }
+
+    @Override
+    public void prefetchEventSpecs(@NonNull Collection<String> eventNames, @Nullable final EventSpecPrefetchListener listener) {
+        try {
+            final String streamId = AvoAnonymousId.anonymousId();
+            Set<String> toFetch = new LinkedHashSet<>();
+            if (eventSpecFetcher != null && eventSpecCache != null && !"prod".equals(env)
+                    && streamId != null && !streamId.isEmpty()) {
+                for (String eventName : eventNames) {
+                    if (eventName != null && !eventSpecCache.contains(apiKey, streamId, eventName)) {
+                        toFetch.add(eventName);
+                    }
+                }
+            }
+            if (isLogging()) {
+                Log.d("Avo Inspector", "Prefetching event specs for " + toFetch.size() + " of " + eventNames.size() + " events");
+            }
+
+            new EventSpecPrefetch(toFetch, new EventSpecPrefetch.SpecFetch() {
+                @Override
+                public void fetch(String eventName, EventSpecFetchFailureCallback callback) {
+                    prefetchEventSpec(eventName, streamId, callback);
+                }
+            }, listener == null ? null : new EventSpecPrefetchListener() {
+                @Override
+                public void onPrefetchComplete(int fetched, int withoutSpec, int failed) {
+                    try {
+                        listener.onPrefetchComplete(fetched, withoutSpec, failed);
+                    } catch (Exception e) {
+                        handleException(e, AvoInspector.this.env);
+                    }
+                }
+            }).start(EventSpecPrefetch.DEFAULT_MAX_CONCURRENT_FETCHES);
+        } catch (Exception e) {
+            handleException(e, AvoInspector.this.env);
+        }
+    }
+
+    /**
+     * Events reported both by Avo Codegen and manually within this window are sent once. Default is 300 ms.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setDeduplicationWindowMillis(long windowMillis) {
+        avoDeduplicator.setWindowMillis(windowMillis);
+    }
+
+    /**
+     * Deduplication is on by default. Disable it if the app never reports the same event
+     * from Avo Codegen and manually, to skip its cost on every tracked event.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void enableDeduplication(boolean enabled) {
+        avoDeduplicator.setEnabled(enabled);
+    }
+
+    /**
+     * Limits of the in-memory event spec cache used for validation in dev and staging.
+     * Specs are refetched after ttlMillis or after being used maxUsesPerEntry times (0 for no use limit),
+     * and the least recently used spec is dropped above maxEntries.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecCacheLimits(int maxEntries, long ttlMillis, int maxUsesPerEntry) {
+        if (eventSpecCache != null) {
+            eventSpecCache.setLimits(maxEntries, ttlMillis, maxUsesPerEntry);
+        }
+    }
+
+    /**
+     * Event spec fetching stops for coolDownMillis after failureThreshold consecutive failures or timeouts,
+     * and events are sent unvalidated right away meanwhile. Defaults are 5 failures and 30 seconds.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecFetchCircuitBreaker(int failureThreshold, long coolDownMillis) {
+        if (eventSpecFetcher != null) {
+            eventSpecFetcher.circuitBreaker.setLimits(failureThreshold, coolDownMillis);
+        }
+    }
+
+    /**
+     * For monitoring: whether event specs are currently fetched. Always CLOSED in prod, where specs are not fetched.
+     */
+    @SuppressWarnings("WeakerAccess")
+    @NonNull
+    public EventSpecFetchCircuitState getEventSpecFetchCircuitState() {
+        return eventSpecFetcher != null ? eventSpecFetcher.circuitBreaker.getState() : EventSpecFetchCircuitState.CLOSED;
+    }
+
+    /**
+     * Memory budget of the in-memory event spec cache, in estimated bytes retained by the cached specs.
+     * The least recently used specs are dropped above it, and a spec bigger than the budget is not cached.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecCacheMemoryBudget(long maxBytes) {
+        if (eventSpecCache != null) {
+            eventSpecCache.setMaxWeight(maxBytes);
+        }
+    }
+
+    /**
+     * When enabled, an expired event spec keeps being used for validation, for at most maxStalenessMillis,
+     * while a single background fetch refreshes it. Events are then never held back by the network
+     * once their spec has been fetched. Disabled by default. Specs persisted by a previous launch are served
+     * stale this way in any case, for at most the TTL plus maxStalenessMillis after the launch.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecStaleWhileRevalidate(boolean enabled, long maxStalenessMillis) {
+        if (eventSpecCache != null) {
+            eventSpecCache.setStaleWhileRevalidate(enabled, maxStalenessMillis);
+        }
+    }
+
+    /**
+     * Limits of the cache of events that have no spec. It is separate from the spec cache, so unknown events
+     * never evict a spec. Events whose spec fetch failed are retried with an exponential backoff instead.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecNegativeCacheLimits(int maxEntries, long noSpecTtlMillis) {
+        if (eventSpecCache != null) {
+            eventSpecCache.setNegativeLimits(maxEntries, noSpecTtlMillis);
+        }
+    }
+
+    /**
+     * Number of regex constraint results remembered for short string values, so that the same enum-like values
+     * are not matched again on every event. 0 disables it. Defaults to 256.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecRegexMatchCacheSize(int maxEntries) {
+        if (eventSpecCache != null) {
+            eventSpecCache.validationContext.setRegexMatchCacheSize(maxEntries);
+        }
+    }
+
+    /**
+     * Number of validation results remembered per event spec for short values of primitive properties, so that
+     * repeated values like screen names are not validated again. 0 disables it. Defaults to 128.
+     * Applies to specs fetched afterwards.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecValidationMemoSize(int maxResults) {
+        if (eventSpecCache != null) {
+            eventSpecCache.validationContext.setMaxMemoizedResults(maxResults);
+        }
+    }
+
+    /**
+     * Bounds event validation in dev and staging: values nested deeper than maxDepth are not validated,
+     * and an event stops being validated after maxNodes values or timeBudgetMillis. The properties that were
+     * not validated are then sent without validation results. Defaults are 2, 10000 values and 20 ms.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setEventSpecValidationLimits(int maxDepth, int maxNodes, long timeBudgetMillis) {
+        if (eventSpecCache != null) {
+            eventSpecCache.validationContext.setLimits(maxDepth, maxNodes, timeBudgetMillis);
+        }
+    }
+
+    /**
+     * For monitoring: how many events were only partially validated because they ran out of validation budget.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getPartialEventValidationCount() {
+        return eventSpecCache != null ? eventSpecCache.validationContext.partialValidationCount() : 0;
+    }
+
+    /**
+     * Bounds schema extraction of very large or deeply nested payloads.
+     * When a limit is hit the partial schema is reported, with values that were not visited as "unknown".
+     * {@link AvoSchemaExtractor#isTruncated(Map)} tells such a schema apart.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setSchemaExtractionLimits(int maxDepth, int maxNodes, long timeBudgetMillis) {
+        avoSchemaExtractor.setLimits(maxDepth, maxNodes, timeBudgetMillis);
+    }
+
+    /**
+     * Registers how values of the given class, and of its subclasses, are reported in event schemas.
+     * Takes precedence over the built in handling of that class, including for collections, maps and JSONArrays.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void registerTypeInferrer(@NonNull Class<?> type, @NonNull AvoTypeInferrer inferrer) {
+        avoSchemaExtractor.registerTypeInferrer(type, inferrer);
+    }
+
     @SuppressWarnings("WeakerAccess")
     static public boolean isLogging() {
         return logsEnabled;
@@ -391,6 +862,24 @@ public class AvoInspector implements Inspector {
         AvoBatcher.batchFlushSeconds = newBatchFlushSeconds;
     }
 
+    // Specs are refetched when needed, so they are the first thing to give back under memory pressure
+    private void trimEventSpecCache(int level) {
+        if (eventSpecCache == null) {
+            return;
+        }
+        try {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                eventSpecCache.clear();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                eventSpecCache.trimToWeight(eventSpecCache.weight() / 2);
+            }
+        } catch (Exception e) {
+            handleException(e, env);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private void fetchAndValidateAsync(String eventName, @Nullable Map<String, ?> eventProperties,
                                         Map<String, AvoEventSchemaType> schema,
@@ -417,32 +906,27 @@ public class AvoInspector implements Inspector {
         }
 
         // Check cache first (synchronous)
-        if (eventSpecCache.contains(apiKey, streamId, eventName)) {
-            EventSpecResponse cached = eventSpecCache.get(apiKey, streamId, eventName);
+        EventSpecKey cacheKey = new EventSpecKey(apiKey, streamId, eventName);
+        EventSpecCacheEntry cacheEntry = eventSpecCache.lookup(cacheKey);
+        if (cacheEntry != null) {
+            EventSpecResponse cached = cacheEntry.spec;
             if (cached != null) {
                 if (isLogging()) {
                     Log.d("Avo Inspector", "Event spec cache hit for event: " + eventName);
                 }
-                try {
-                    if (isLogging()) {
-                        Log.d("Avo Inspector", "Validating event: " + eventName
-                                + " with " + ((Map<String, Object>) eventProperties).size() + " properties"
-                                + " against " + (cached.events != null ? cached.events.size() : 0) + " spec events");
-                    }
-                    ValidationResult result = EventValidator.validateEvent(
-                            (Map<String, Object>) eventProperties, cached);
+                // A hit doesn't reset the entry, so its TTL and use limit still apply
+                if (trackBranch(cached)) {
+                    eventSpecCache.set(cacheKey, cached, cacheEntry.plan);
+                }
+                validateAndSend(eventName, schema, eventId, eventHash, cached, cacheEntry.plan, streamId, eventProperties);
+                if (eventSpecCache.claimRefresh(cacheKey)) {
                     if (isLogging()) {
-                        Log.d("Avo Inspector", "Validation complete for event: " + eventName
-                                + " with " + (result.propertyResults != null ? result.propertyResults.size() : 0) + " property results");
+                        Log.d("Avo Inspector", "Event spec for event: " + eventName + " is stale. Refreshing in background.");
                     }
-                    handleBranchChangeAndCache(cached, eventName);
-                    sendEventWithValidation(eventName, schema, eventId, eventHash, result, streamId, eventProperties);
-                } catch (Exception e) {
-                    Util.handleException(e, env);
-                    trackSchemaInternal(eventName, schema, eventId, eventHash, eventProperties);
+                    refreshEventSpec(eventName, streamId, cached);
                 }
             } else {
-                // Cached empty response — no spec exists for this event
+                // No spec exists for this event, or its last fetch failed and is backing off
                 if (isLogging()) {
                     Log.d("Avo Inspector", "Event spec cache hit (empty) for event: " + eventName + ". Sending without validation.");
                 }
@@ -456,75 +940,371 @@ public class AvoInspector implements Inspector {
             Log.d("Avo Inspector", "Event spec cache miss for event: " + eventName + ". Fetching before sending.");
         }
 
+        // An expired spec still in memory is only downloaded again if it changed
+        final EventSpecCacheEntry expired = eventSpecCache.expiredEntry(cacheKey);
+
         FetchEventSpecParams params = new FetchEventSpecParams();
         params.apiKey = this.apiKey;
         params.streamId = streamId;
         params.eventName = eventName;
+        params.knownVersion = expired != null ? AvoEventSpecFetcher.specVersion(expired.spec) : null;
 
         // Defensive copy to prevent caller mutations affecting async validation
-        final Map<String, ?> capturedProperties = new HashMap<>(eventProperties);
-        final String capturedStreamId = streamId;
-        eventSpecFetcher.fetch(params, new EventSpecFetchCallback() {
+        PendingValidation pending = new PendingValidation(eventName, schema, eventId, eventHash,
+                new HashMap<>(eventProperties));
+        // Events that miss while the spec is being fetched wait for that fetch, and are handled with it
+        List<PendingValidation> waitingForFetch;
+        synchronized (pendingValidations) {
+            waitingForFetch = pendingValidations.get(cacheKey);
+            if (waitingForFetch != null) {
+                waitingForFetch.add(pending);
+                return;
+            }
+            waitingForFetch = new ArrayList<>();
+            waitingForFetch.add(pending);
+            pendingValidations.put(cacheKey, waitingForFetch);
+        }
+
+        try {
+            fetchForPendingValidations(cacheKey, params, expired, streamId);
+        } catch (Exception e) {
+            // Otherwise nothing drains the events waiting for this fetch, nor the ones that miss after them
+            boolean registered;
+            synchronized (pendingValidations) {
+                // Unless the fetch delivered a result before throwing
+                registered = pendingValidations.get(cacheKey) == waitingForFetch;
+                if (registered) {
+                    pendingValidations.remove(cacheKey);
+                }
+            }
+            if (registered) {
+                trackSchemasInternal(waitingForFetch);
+            }
+            handleException(e, env);
+        }
+    }
+
+    private void fetchForPendingValidations(final EventSpecKey cacheKey, FetchEventSpecParams params,
+                                            @Nullable final EventSpecCacheEntry expired, final String capturedStreamId) {
+        final String eventName = cacheKey.eventName;
+        // Each outcome is cached before the waiting events are taken, so an event tracked in between finds
+        // either the cache or the waiting list, and never starts a second fetch
+        eventSpecFetcher.fetch(params, new EventSpecRevalidationCallback() {
             @Override
-            @SuppressWarnings("unchecked")
             public void onResult(EventSpecResponse specResponse) {
-                if (specResponse != null) {
-                    handleBranchChangeAndCache(specResponse, eventName);
-                    try {
-                        if (isLogging()) {
-                            Log.d("Avo Inspector", "Validating event: " + eventName
-                                    + " with " + ((Map<String, Object>) capturedProperties).size() + " properties"
-                                    + " against " + (specResponse.events != null ? specResponse.events.size() : 0) + " spec events");
-                        }
-                        ValidationResult result = EventValidator.validateEvent(
-                                (Map<String, Object>) capturedProperties, specResponse);
-                        if (isLogging()) {
-                            Log.d("Avo Inspector", "Validation complete for event: " + eventName
-                                    + " with " + (result.propertyResults != null ? result.propertyResults.size() : 0) + " property results");
-                        }
-                        sendEventWithValidation(eventName, schema, eventId, eventHash, result, capturedStreamId, capturedProperties);
-                    } catch (Exception e) {
-                        Util.handleException(e, env);
-                        trackSchemaInternal(eventName, schema, eventId, eventHash, capturedProperties);
+                List<PendingValidation> waiting;
+                ValidationPlan plan = null;
+                try {
+                    if (specResponse != null) {
+                        plan = compileEventSpec(specResponse);
+                        handleBranchChangeAndCache(specResponse, plan, eventName);
+                        persistEventSpec(capturedStreamId, eventName, specResponse);
+                    } else if (eventSpecCache != null) {
+                        // Cache the empty response so we don't re-fetch
+                        eventSpecCache.set(cacheKey, null);
                     }
+                } finally {
+                    waiting = takePendingValidations(cacheKey);
+                }
+                if (specResponse != null) {
+                    validateAndSendAll(waiting, specResponse, plan, capturedStreamId);
                 } else {
-                    // Cache the empty response so we don't re-fetch
+                    if (isLogging()) {
+                        Log.d("Avo Inspector", "Event spec fetch returned null for event: " + eventName + ". Cached empty response. Sending without validation.");
+                    }
+                    trackSchemasInternal(waiting);
+                }
+            }
+
+            @Override
+            public void onFetchFailed() {
+                List<PendingValidation> waiting;
+                try {
+                    // Not cached as "no spec": the event is fetched again once the backoff is over
                     if (eventSpecCache != null) {
-                        eventSpecCache.set(apiKey, capturedStreamId, eventName, null);
+                        eventSpecCache.setFetchFailed(cacheKey);
                     }
+                } finally {
+                    waiting = takePendingValidations(cacheKey);
+                }
+                if (isLogging()) {
+                    Log.d("Avo Inspector", "Event spec fetch failed for event: " + eventName + ". Backing off. Sending without validation.");
+                }
+                trackSchemasInternal(waiting);
+            }
+
+            @Override
+            public void onFetchRejected() {
+                List<PendingValidation> waiting = takePendingValidations(cacheKey);
+                // Nothing is recorded: the event is fetched again once the circuit lets fetches through
+                if (isLogging()) {
+                    Log.d("Avo Inspector", "Event spec fetch not made for event: " + eventName + ". Sending without validation.");
+                }
+                trackSchemasInternal(waiting);
+            }
+
+            @Override
+            public void onNotModified() {
+                if (expired == null || expired.spec == null) {
+                    // A server answering 304 to a request without a version leaves no spec to keep.
+                    // Nothing is cached, the next event fetches again.
+                    List<PendingValidation> waiting = takePendingValidations(cacheKey);
                     if (isLogging()) {
-                        Log.d("Avo Inspector", "Event spec fetch returned null for event: " + eventName + ". Cached empty response. Sending without validation.");
+                        Log.d("Avo Inspector", "Event spec unchanged for event: " + eventName + " but no spec was cached. Sending without validation.");
+                    }
+                    trackSchemasInternal(waiting);
+                    return;
+                }
+                List<PendingValidation> waiting;
+                try {
+                    if (eventSpecCache != null) {
+                        eventSpecCache.revalidated(cacheKey, expired.spec, expired.plan);
                     }
-                    trackSchemaInternal(eventName, schema, eventId, eventHash, capturedProperties);
+                    // The persisted copy starts a new TTL too, for the next launch
+                    persistEventSpec(capturedStreamId, eventName, expired.spec);
+                } finally {
+                    waiting = takePendingValidations(cacheKey);
                 }
+                if (isLogging()) {
+                    Log.d("Avo Inspector", "Event spec unchanged for event: " + eventName + ". Validating with the cached spec.");
+                }
+                validateAndSendAll(waiting, expired.spec, expired.plan, capturedStreamId);
             }
         });
     }
 
-    private void handleBranchChangeAndCache(EventSpecResponse specResponse, String eventName) {
-        if (specResponse.metadata == null) {
-            String streamId = AvoAnonymousId.anonymousId();
-            if (eventSpecCache != null && streamId != null) {
-                eventSpecCache.set(apiKey, streamId, eventName, specResponse);
+    private List<PendingValidation> takePendingValidations(EventSpecKey cacheKey) {
+        synchronized (pendingValidations) {
+            List<PendingValidation> waiting = pendingValidations.remove(cacheKey);
+            return waiting != null ? waiting : Collections.<PendingValidation>emptyList();
+        }
+    }
+
+    private void trackSchemasInternal(List<PendingValidation> waiting) {
+        for (PendingValidation event : waiting) {
+            trackSchemaInternal(event.eventName, event.schema, event.eventId, event.eventHash, event.properties);
+        }
+    }
+
+    /**
+     * Validates the events that waited for the same spec fetch, and sends them in a single request.
+     * Events that fail to validate are batched without validation, like in validateAndSend.
+     */
+    private void validateAndSendAll(List<PendingValidation> waiting, EventSpecResponse spec,
+                                    @Nullable ValidationPlan plan, String streamId) {
+        if (waiting.size() == 1) {
+            PendingValidation event = waiting.get(0);
+            validateAndSend(event.eventName, event.schema, event.eventId, event.eventHash, spec, plan,
+                    streamId, event.properties);
+            return;
+        }
+        AvoNetworkCallsHandler networkHandler = avoBatcher.getNetworkCallsHandler();
+        List<Map<String, Object>> eventBodies = new ArrayList<>(waiting.size());
+        for (PendingValidation event : waiting) {
+            try {
+                ValidationResult result = validate(event.eventName, event.properties, spec, plan);
+                eventBodies.add(networkHandler.bodyForValidatedEventSchemaCall(event.eventName, event.schema,
+                        event.eventId, event.eventHash, result, streamId, event.properties));
+                visualInspector.showSchemaInVisualInspector(event.eventName, event.schema);
+            } catch (Exception e) {
+                Util.handleException(e, env);
+                trackSchemaInternal(event.eventName, event.schema, event.eventId, event.eventHash, event.properties);
             }
+        }
+        if (!eventBodies.isEmpty()) {
+            if (isLogging()) {
+                Log.d("Avo Inspector", "Sending " + eventBodies.size() + " validated events that waited for the same event spec");
+            }
+            networkHandler.reportValidatedEvents(eventBodies);
+        }
+    }
+
+    private void validateAndSend(String eventName, Map<String, AvoEventSchemaType> schema,
+                                 @Nullable String eventId, @Nullable String eventHash,
+                                 EventSpecResponse spec, @Nullable ValidationPlan plan,
+                                 String streamId, Map<String, ?> eventProperties) {
+        try {
+            ValidationResult result = validate(eventName, eventProperties, spec, plan);
+            sendEventWithValidation(eventName, schema, eventId, eventHash, result, streamId, eventProperties);
+        } catch (Exception e) {
+            Util.handleException(e, env);
+            trackSchemaInternal(eventName, schema, eventId, eventHash, eventProperties);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ValidationResult validate(String eventName, Map<String, ?> eventProperties,
+                                      EventSpecResponse spec, @Nullable ValidationPlan plan) {
+        if (isLogging()) {
+            Log.d("Avo Inspector", "Validating event: " + eventName
+                    + " with " + ((Map<String, Object>) eventProperties).size() + " properties"
+                    + " against " + (spec.events != null ? spec.events.size() : 0) + " spec events");
+        }
+        // Without a plan the spec is malformed: compiling it again throws, and the event is sent without validation
+        ValidationResult result = EventValidator.validateEvent(
+                (Map<String, Object>) eventProperties, plan != null ? plan : ValidationPlan.compile(spec));
+        if (isLogging()) {
+            Log.d("Avo Inspector", "Validation complete for event: " + eventName
+                    + " with " + (result.propertyResults != null ? result.propertyResults.size() : 0) + " property results");
+        }
+        return result;
+    }
+
+    // Fetches a newer spec than knownSpec for the caches without holding back any event
+    private void refreshEventSpec(final String eventName, final String streamId, final EventSpecResponse knownSpec) {
+        if (eventSpecFetcher == null) {
             return;
         }
+        final EventSpecKey cacheKey = new EventSpecKey(apiKey, streamId, eventName);
+        FetchEventSpecParams params = new FetchEventSpecParams();
+        params.apiKey = this.apiKey;
+        params.streamId = streamId;
+        params.eventName = eventName;
+        params.knownVersion = AvoEventSpecFetcher.specVersion(knownSpec);
+        eventSpecFetcher.fetch(params, new EventSpecRevalidationCallback() {
+            @Override
+            public void onResult(EventSpecResponse specResponse) {
+                if (specResponse != null) {
+                    handleBranchChangeAndCache(specResponse, null, eventName);
+                    persistEventSpec(streamId, eventName, specResponse);
+                }
+            }
+
+            @Override
+            public void onFetchFailed() {
+                // Not retried, the stale spec is dropped once it is too old to be served
+            }
+
+            @Override
+            public void onFetchRejected() {
+                // Refreshed by a later event once the circuit lets fetches through
+            }
+
+            @Override
+            public void onNotModified() {
+                if (eventSpecCache != null) {
+                    eventSpecCache.revalidated(cacheKey, knownSpec, null);
+                }
+                persistEventSpec(streamId, eventName, knownSpec);
+            }
+        });
+    }
+
+    // Caches the outcome like a fetch on first tracking, then reports it to the prefetch
+    private void prefetchEventSpec(final String eventName, String streamId, final EventSpecFetchFailureCallback prefetchCallback) {
+        final EventSpecKey cacheKey = new EventSpecKey(apiKey, streamId, eventName);
+        final String capturedStreamId = streamId;
+        FetchEventSpecParams params = new FetchEventSpecParams();
+        params.apiKey = this.apiKey;
+        params.streamId = streamId;
+        params.eventName = eventName;
+        eventSpecFetcher.fetch(params, new EventSpecFetchFailureCallback() {
+            @Override
+            public void onResult(EventSpecResponse specResponse) {
+                try {
+                    if (specResponse != null) {
+                        handleBranchChangeAndCache(specResponse, null, eventName);
+                        persistEventSpec(capturedStreamId, eventName, specResponse);
+                    } else {
+                        eventSpecCache.set(cacheKey, null);
+                    }
+                } catch (Exception e) {
+                    handleException(e, AvoInspector.this.env);
+                }
+                prefetchCallback.onResult(specResponse);
+            }
+
+            @Override
+            public void onFetchFailed() {
+                eventSpecCache.setFetchFailed(cacheKey);
+                prefetchCallback.onFetchFailed();
+            }
+
+            @Override
+            public void onFetchRejected() {
+                prefetchCallback.onFetchRejected();
+            }
+        });
+    }
+
+    // Specs persisted by a previous launch are read once, off the calling thread, and cached with the time
+    // they were fetched. An expired one is still served to the first events, while it is refreshed in the background.
+    private void preloadEventSpecs(final String streamId) {
+        if (eventSpecDiskCache == null || eventSpecCache == null || "prod".equals(env)) {
+            return;
+        }
+        eventSpecDiskCache.preload(apiKey, streamId, eventSpecCache.maxEntries(), new EventSpecDiskCache.PreloadListener() {
+            @Override
+            public void onPreloaded(EventSpecDiskCache.PersistedSpec persisted) {
+                seedEventSpec(streamId, persisted);
+            }
+        });
+    }
+
+    private void seedEventSpec(String streamId, EventSpecDiskCache.PersistedSpec persisted) {
+        EventSpecCache cache = eventSpecCache;
+        if (cache == null || persisted.spec.metadata == null) {
+            return;
+        }
+        ValidationPlan plan = cache.compile(persisted.spec);
+        String branchId = persisted.spec.metadata.branchId;
+        synchronized (branchIdLock) {
+            // A spec fetched meanwhile from another branch already flushed the persisted ones
+            if (currentBranchId != null && !currentBranchId.equals(branchId)) {
+                return;
+            }
+            currentBranchId = branchId;
+            cache.seed(new EventSpecKey(apiKey, streamId, persisted.eventName), persisted.spec, plan, persisted.fetchedAt);
+        }
+    }
+
+    private void persistEventSpec(String streamId, String eventName, EventSpecResponse specResponse) {
+        if (eventSpecDiskCache != null) {
+            eventSpecDiskCache.write(apiKey, streamId, eventName, specResponse);
+        }
+    }
+
+    @Nullable
+    private ValidationPlan compileEventSpec(EventSpecResponse specResponse) {
+        EventSpecCache cache = eventSpecCache;
+        return cache != null
+                ? cache.compile(specResponse) : ValidationPlan.tryCompile(specResponse, new EventValidationContext());
+    }
+
+    // A null plan is compiled by the cache
+    private void handleBranchChangeAndCache(EventSpecResponse specResponse, @Nullable ValidationPlan plan, String eventName) {
+        trackBranch(specResponse);
+
+        String streamId = AvoAnonymousId.anonymousId();
+        if (eventSpecCache != null && streamId != null) {
+            eventSpecCache.set(new EventSpecKey(apiKey, streamId, eventName), specResponse, plan);
+        }
+    }
+
+    /**
+     * Flushes the caches when the spec comes from another branch than the previous ones.
+     * @return true if the caches were flushed
+     */
+    private boolean trackBranch(EventSpecResponse specResponse) {
+        if (specResponse.metadata == null) {
+            return false;
+        }
         String newBranchId = specResponse.metadata.branchId;
         synchronized (branchIdLock) {
-            if (currentBranchId != null && !currentBranchId.equals(newBranchId)) {
+            boolean changed = currentBranchId != null && !currentBranchId.equals(newBranchId);
+            if (changed) {
                 if (isLogging()) {
                     Log.d("Avo Inspector", "Branch changed from " + currentBranchId + " to " + newBranchId + ". Flushing cache.");
                 }
                 if (eventSpecCache != null) {
                     eventSpecCache.clear();
                 }
+                if (eventSpecDiskCache != null) {
+                    eventSpecDiskCache.onBranch(newBranchId);
+                }
             }
             currentBranchId = newBranchId;
-        }
-
-        String streamId = AvoAnonymousId.anonymousId();
-        if (eventSpecCache != null && streamId != null) {
-            eventSpecCache.set(apiKey, streamId, eventName, specResponse);
+            return changed;
         }
     }
 
@@ -544,4 +1324,22 @@ public class AvoInspector implements Inspector {
 
         visualInspector.showSchemaInVisualInspector(eventName, schema);
     }
+
+    // An event held back until the spec fetch of its event completes
+    private static final class PendingValidation {
+        final String eventName;
+        final Map<String, AvoEventSchemaType> schema;
+        @Nullable final String eventId;
+        @Nullable final String eventHash;
+        final Map<String, ?> properties;
+
+        PendingValidation(String eventName, Map<String, AvoEventSchemaType> schema,
+                          @Nullable String eventId, @Nullable String eventHash, Map<String, ?> properties) {
+            this.eventName = eventName;
+            this.schema = schema;
+            this.eventId = eventId;
+            this.eventHash = eventHash;
+            this.properties = properties;
+        }
+    }
 }
@@ -15,7 +15,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -139,11 +139,20 @@ class AvoNetworkCallsHandler {
     private static final int NETWORK_WALL_TIMEOUT_MS = 10_000;
 
     void reportValidatedEvent(final Map<String, Object> eventData) {
+        reportValidatedEvents(Collections.singletonList(eventData));
+    }
+
+    /**
+     * Sends validated events in a single request.
+     */
+    void reportValidatedEvents(final List<Map<String, Object>> data) {
         if (AvoInspector.isLogging()) {
-            Object eventName = eventData.get("eventName");
-            Object eventProps = eventData.get("eventProperties");
-            if (eventName != null && eventProps != null) {
-                Log.d("Avo Inspector", "Sending validated event " + eventName + " with schema {\n" + eventProps + "\n}");
+            for (Map<String, Object> eventData : data) {
+                Object eventName = eventData.get("eventName");
+                Object eventProps = eventData.get("eventProperties");
+                if (eventName != null && eventProps != null) {
+                    Log.d("Avo Inspector", "Sending validated event " + eventName + " with schema {\n" + eventProps + "\n}");
+                }
             }
         }
 
@@ -168,8 +177,6 @@ class AvoNetworkCallsHandler {
 
                                 writeTrackingCallHeader(connection);
 
-                                List<Map<String, Object>> data = new ArrayList<>();
-                                data.add(eventData);
                                 writeTrackingCallBody(data, connection);
 
                                 connection.connect();
@@ -1,5 +1,7 @@
 package app.avo.inspector;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -8,17 +10,66 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class AvoSchemaExtractor {
 
+	static final int DEFAULT_MAX_DEPTH = 32;
+	static final int DEFAULT_MAX_NODES = 20_000;
+	static final long DEFAULT_TIME_BUDGET_MS = 50;
+
+	private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+	private volatile int maxNodes = DEFAULT_MAX_NODES;
+	private volatile long timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_BUDGET_MS);
+
+	private final TypeInferrerRegistry typeInferrers = new TypeInferrerRegistry();
+
+	/**
+	 * Schema returned when extraction stopped early because of the depth, node or time limit,
+	 * or because a cyclic reference was found. Values that were not visited are reported as unknown.
+	 */
+	static final class TruncatedSchema extends HashMap<String, AvoEventSchemaType> {
+		private static final long serialVersionUID = 1L;
+
+		TruncatedSchema(Map<String, AvoEventSchemaType> partial) {
+			super(partial);
+		}
+	}
+
+	/**
+	 * Whether a schema returned by extractSchema or trackSchemaFromEvent is partial: extraction stopped early
+	 * because of the limits set with setSchemaExtractionLimits, or because of a cyclic reference.
+	 */
+	public static boolean isTruncated(@Nullable Map<String, AvoEventSchemaType> schema) {
+		return schema instanceof TruncatedSchema;
+	}
+
+	void setLimits(int maxDepth, int maxNodes, long timeBudgetMillis) {
+		this.maxDepth = Math.max(1, maxDepth);
+		this.maxNodes = Math.max(1, maxNodes);
+		this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeBudgetMillis));
+	}
+
+	void registerTypeInferrer(@NonNull Class<?> type, @NonNull AvoTypeInferrer inferrer) {
+		typeInferrers.register(type, inferrer);
+	}
+
+	boolean hasTypeInferrer(@NonNull Class<?> type) {
+		return typeInferrers.find(type) != null;
+	}
+
 	@NonNull Map<String, AvoEventSchemaType> extractSchema(@Nullable Object eventProperties, boolean shouldLogIfEnabled) {
 		Map<String, AvoEventSchemaType> result;
 
@@ -41,6 +92,7 @@ public class AvoSchemaExtractor {
 
 	private Map<String, AvoEventSchemaType> extractSchemaFromObject(@NonNull Object eventProperties) {
 		Map<String, AvoEventSchemaType> result = new HashMap<>();
+		Extraction extraction = new Extraction(result);
 
 		List<Field> eventPropertiesFields = new ArrayList<>();
 
@@ -53,120 +105,196 @@ public class AvoSchemaExtractor {
 		}
 
 		for (Field eventPropertyField: eventPropertiesFields) {
-			AvoEventSchemaType propertyType = getAvoSchemaType(eventProperties, eventPropertyField);
-			result.put(eventPropertyField.getName(), propertyType);
+			try {
+				extraction.add(eventPropertyField.getName(), eventPropertyField.get(eventProperties));
+			} catch (IllegalAccessException ignored) {
+				result.put(eventPropertyField.getName(), new AvoEventSchemaType.AvoUnknownType());
+			}
 		}
-		return result;
+		return extraction.run();
 	}
 
-	private AvoEventSchemaType getAvoSchemaType(Object eventProperties, Field eventPropertyField) {
-		try {
-			return objectToAvoType(eventPropertyField.get(eventProperties));
-		} catch (IllegalAccessException ignored) {
-			return new AvoEventSchemaType.AvoUnknownType();
+	/**
+	 * Unit of work on the extraction stack. A container frame is visited twice: once to push
+	 * its children and once, after all of them are done, to attach the finished type to its parent.
+	 * Attaching on exit matters for lists because subtypes are hashed by their reported name.
+	 */
+	private static final class Frame {
+		@Nullable final Object value;
+		final int depth;
+		@Nullable final Map<String, AvoEventSchemaType> targetMap;
+		@Nullable final String targetKey;
+		@Nullable final Set<AvoEventSchemaType> targetSet;
+
+		@Nullable AvoEventSchemaType type;
+		boolean expanded;
+
+		Frame(@Nullable Object value, int depth, @NonNull Map<String, AvoEventSchemaType> targetMap, @NonNull String targetKey) {
+			this.value = value;
+			this.depth = depth;
+			this.targetMap = targetMap;
+			this.targetKey = targetKey;
+			this.targetSet = null;
+		}
+
+		Frame(@Nullable Object value, int depth, @NonNull Set<AvoEventSchemaType> targetSet) {
+			this.value = value;
+			this.depth = depth;
+			this.targetMap = null;
+			this.targetKey = null;
+			this.targetSet = targetSet;
+		}
+
+		void attach(@NonNull AvoEventSchemaType resolved) {
+			if (targetMap != null) {
+				targetMap.put(targetKey, resolved);
+			} else if (targetSet != null) {
+				targetSet.add(resolved);
+			}
 		}
 	}
 
-	private AvoEventSchemaType objectToAvoType(@Nullable Object val) {
-		if (val == null || val instanceof AvoEventSchemaType.AvoNull || val == JSONObject.NULL) {
-			return new AvoEventSchemaType.AvoNull();
-		} else {
-			if (val instanceof List) {
-				Set<AvoEventSchemaType> subtypes = new HashSet<>();
-				List list = (List) val;
-				for (Object v : list) {
-					subtypes.add(objectToAvoType(v));
-				}
+	/**
+	 * Single extraction pass with an explicit work stack, so deeply nested payloads
+	 * can't overflow the caller's stack. Depth, node count and wall time are bounded,
+	 * and containers already on the current path are detected by identity.
+	 */
+	private final class Extraction {
+		private final Map<String, AvoEventSchemaType> result;
+		private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+		private final Set<Object> path = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		private final long deadline = System.nanoTime() + timeBudgetNanos;
+		private final int depthLimit = maxDepth;
+		private final int nodeLimit = maxNodes;
 
-				return new AvoEventSchemaType.AvoList(subtypes);
-			} else if (val instanceof JSONArray) {
-				Set<AvoEventSchemaType> subItems = new HashSet<>();
-				JSONArray jsonArray = (JSONArray) val;
-				for (int i = 0; i < jsonArray.length(); i++) {
-					try {
-						subItems.add(objectToAvoType(jsonArray.get(i)));
-					} catch (JSONException ignored) { }
+		private int visitedNodes = 0;
+		private boolean budgetExhausted = false;
+		private boolean truncated = false;
+
+		Extraction(@NonNull Map<String, AvoEventSchemaType> result) {
+			this.result = result;
+		}
+
+		void add(@NonNull String key, @Nullable Object value) {
+			stack.push(new Frame(value, 0, result, key));
+		}
+
+		@NonNull Map<String, AvoEventSchemaType> run() {
+			while (!stack.isEmpty()) {
+				Frame frame = stack.peek();
+
+				if (frame.expanded) {
+					stack.pop();
+					path.remove(frame.value);
+					frame.attach(frame.type);
+					continue;
 				}
 
-				return new AvoEventSchemaType.AvoList(subItems);
-			} else if (val instanceof Map) {
-				AvoEventSchemaType.AvoObject result = new AvoEventSchemaType.AvoObject(new HashMap<String, AvoEventSchemaType>());
+				if (!budgetExhausted && !hasBudget()) {
+					budgetExhausted = true;
+					truncated = true;
+				}
 
-				for (Object childName: ((Map)val).keySet()) {
-					String childNameString = (String) childName;
+				if (budgetExhausted) {
+					stack.pop();
+					// Keep known keys, but don't invent list subtypes that were never looked at
+					if (frame.targetMap != null) {
+						frame.attach(new AvoEventSchemaType.AvoUnknownType());
+					}
+					continue;
+				}
 
-					AvoEventSchemaType paramType = objectToAvoType(((Map)val).get(childName));
+				visitedNodes++;
+				visit(frame);
+			}
 
-					result.children.put(childNameString, paramType);
+			if (truncated) {
+				if (AvoInspector.isLogging()) {
+					Log.w("Avo Inspector", "Schema extraction stopped early after " + visitedNodes
+							+ " values. Reporting a partial schema.");
 				}
+				return new TruncatedSchema(result);
+			}
+			return result;
+		}
 
-				return result;
-			} else if (val instanceof Integer || val instanceof  Byte || val instanceof Long || val instanceof  Short) {
-				return new AvoEventSchemaType.AvoInt();
-			} else if (val instanceof Boolean) {
-				return new AvoEventSchemaType.AvoBoolean();
-			} else if (val instanceof Float || val instanceof  Double) {
-				return new AvoEventSchemaType.AvoFloat();
-			} else if (val instanceof String || val instanceof  Character) {
-				return new AvoEventSchemaType.AvoString();
-			} else {
-				return arrayOrUnknownToAvoType(val);
+		private boolean hasBudget() {
+			if (visitedNodes >= nodeLimit) {
+				return false;
 			}
+			// nanoTime is cheap but not free, sample it every 64 values
+			return (visitedNodes & 63) != 0 || System.nanoTime() < deadline;
 		}
-	}
 
-	private AvoEventSchemaType arrayOrUnknownToAvoType(@NonNull Object val) {
-		String className = val.getClass().getName();
-		switch (className) {
-			case "[Ljava.lang.String;":
+		private void visit(@NonNull Frame frame) {
+			Object val = frame.value;
+
+			boolean isContainer = val instanceof Collection || val instanceof JSONArray || val instanceof Map;
+			if (!isContainer) {
+				stack.pop();
+				frame.attach(leafToAvoType(val));
+				return;
+			}
+
+			// A registered inferrer takes precedence over walking the container
+			AvoTypeInferrer registered = typeInferrers.find(val.getClass());
+			if (registered != null) {
+				stack.pop();
+				frame.attach(registered.inferType(val));
+				return;
+			}
+
+			if (path.contains(val)) {
+				stack.pop();
+				truncated = true;
+				frame.attach(new AvoEventSchemaType.AvoUnknownType());
+				return;
+			}
+
+			boolean expandChildren = frame.depth < depthLimit;
+			if (!expandChildren) {
+				truncated = true;
+			}
+
+			frame.expanded = true;
+			path.add(val);
+
+			if (val instanceof Collection) {
 				Set<AvoEventSchemaType> subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoString());
-				subtypes.add(new AvoEventSchemaType.AvoNull());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[Ljava.lang.Integer;":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoInt());
-				subtypes.add(new AvoEventSchemaType.AvoNull());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[I":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoInt());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[Ljava.lang.Boolean;":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoBoolean());
-				subtypes.add(new AvoEventSchemaType.AvoNull());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[Z":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoBoolean());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[Ljava.lang.Float;":
-			case "[Ljava.lang.Double;":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoFloat());
-				subtypes.add(new AvoEventSchemaType.AvoNull());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			case "[D":
-			case "[F":
-				subtypes = new HashSet<>();
-				subtypes.add(new AvoEventSchemaType.AvoFloat());
-				return new AvoEventSchemaType.AvoList(subtypes);
-			default:
-				if (className.startsWith("[L") && className.contains("List")) {
-					subtypes = new HashSet<>();
-					subtypes.add(new AvoEventSchemaType.AvoList(new HashSet<AvoEventSchemaType>()));
-					subtypes.add(new AvoEventSchemaType.AvoNull());
-					return new AvoEventSchemaType.AvoList(subtypes);
-				} else if (className.startsWith("[L")) {
-					subtypes = new HashSet<>();
-					subtypes.add(new AvoEventSchemaType.AvoObject(new HashMap<String, AvoEventSchemaType>()));
-					subtypes.add(new AvoEventSchemaType.AvoNull());
-					return new AvoEventSchemaType.AvoList(subtypes);
-				} else {
-					return new AvoEventSchemaType.AvoUnknownType();
+				frame.type = new AvoEventSchemaType.AvoList(subtypes);
+				if (expandChildren) {
+					for (Object v : (Collection) val) {
+						stack.push(new Frame(v, frame.depth + 1, subtypes));
+					}
+				}
+			} else if (val instanceof JSONArray) {
+				Set<AvoEventSchemaType> subItems = new HashSet<>();
+				frame.type = new AvoEventSchemaType.AvoList(subItems);
+				if (expandChildren) {
+					JSONArray jsonArray = (JSONArray) val;
+					for (int i = 0; i < jsonArray.length(); i++) {
+						try {
+							stack.push(new Frame(jsonArray.get(i), frame.depth + 1, subItems));
+						} catch (JSONException ignored) { }
+					}
 				}
+			} else {
+				AvoEventSchemaType.AvoObject object = new AvoEventSchemaType.AvoObject(new HashMap<String, AvoEventSchemaType>());
+				frame.type = object;
+				if (expandChildren) {
+					for (Object childName: ((Map) val).keySet()) {
+						stack.push(new Frame(((Map) val).get(childName), frame.depth + 1, object.children, (String) childName));
+					}
+				}
+			}
+		}
+	}
+
+	private AvoEventSchemaType leafToAvoType(@Nullable Object val) {
+		if (val == null || val instanceof AvoEventSchemaType.AvoNull || val == JSONObject.NULL) {
+			return new AvoEventSchemaType.AvoNull();
 		}
+		return typeInferrers.inferType(val);
 	}
 
 	private Map<String, AvoEventSchemaType> extractSchemaFromMap(@Nullable Map<?, ?> eventSchema) {
@@ -174,14 +302,13 @@ public class AvoSchemaExtractor {
 			return new HashMap<>();
 		}
 
-		Map<String, AvoEventSchemaType> result = new HashMap<>();
+		Extraction extraction = new Extraction(new HashMap<String, AvoEventSchemaType>());
 
 		for (Map.Entry<?, ?> entry: eventSchema.entrySet()) {
-			AvoEventSchemaType propertyType = objectToAvoType(entry.getValue());
-			result.put(entry.getKey().toString(), propertyType);
+			extraction.add(entry.getKey().toString(), entry.getValue());
 		}
 
-		return result;
+		return extraction.run();
 	}
 
 	private Map<String, AvoEventSchemaType> extractSchemaFromJson(@Nullable JSONObject eventSchema) {
@@ -189,18 +316,15 @@ public class AvoSchemaExtractor {
 			return new HashMap<>();
 		}
 
-		Map<String, AvoEventSchemaType> result = new HashMap<>();
+		Extraction extraction = new Extraction(new HashMap<String, AvoEventSchemaType>());
 
 		for (Iterator<String> it = eventSchema.keys(); it.hasNext(); ) {
 			String key = it.next();
 			try {
-				Object value = eventSchema.get(key);
-
-				AvoEventSchemaType propertyType = objectToAvoType(value);
-				result.put(key, propertyType);
+				extraction.add(key, eventSchema.get(key));
 			} catch (JSONException ignored) {}
 		}
 
-		return result;
+		return extraction.run();
 	}
 }
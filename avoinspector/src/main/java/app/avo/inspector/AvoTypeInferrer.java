@@ -0,0 +1,12 @@
+package app.avo.inspector;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Maps a runtime property value to the schema type reported to Avo.
+ * Register one with {@link AvoInspector#registerTypeInferrer(Class, AvoTypeInferrer)}
+ * to describe your own value types, e.g. enums, dates or Kotlin value classes.
+ */
+public interface AvoTypeInferrer {
+    @NonNull AvoEventSchemaType inferType(@NonNull Object value);
+}
@@ -0,0 +1,109 @@
+package app.avo.inspector;
+
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe LRU map bounded by its number of entries and by the total weight of its entries.
+ * android.util.LruCache is not used so that it also runs in plain JVM unit tests.
+ */
+final class BoundedLruCache<K, V> {
+
+    interface Weigher<K, V> {
+        /**
+         * @return the estimated bytes retained by the entry
+         */
+        long weigh(K key, V value);
+    }
+
+    private final Weigher<K, V> weigher;
+
+    // Access ordered: the eldest entry is the least recently used. Guarded by this.
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalWeight = 0;
+    private int maxEntries;
+    private long maxWeight;
+
+    BoundedLruCache(int maxEntries, long maxWeight, Weigher<K, V> weigher) {
+        this.weigher = weigher;
+        setLimits(maxEntries, maxWeight);
+    }
+
+    /**
+     * A maxEntries of 0 disables the cache.
+     */
+    synchronized void setLimits(int maxEntries, long maxWeight) {
+        if (maxEntries < 0 || maxWeight < 0) {
+            throw new IllegalArgumentException("Invalid cache limits: maxEntries=" + maxEntries
+                    + ", maxWeight=" + maxWeight);
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        evictOverCapacity();
+    }
+
+    @Nullable
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * An entry heavier than the whole budget is not cached.
+     */
+    synchronized void put(K key, V value) {
+        long weight = weigher.weigh(key, value);
+        if (maxEntries == 0 || weight > maxWeight) {
+            remove(key);
+            return;
+        }
+        Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+        if (previous != null) {
+            totalWeight -= previous.weight;
+        }
+        totalWeight += weight;
+        evictOverCapacity();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long weight() {
+        return totalWeight;
+    }
+
+    private void remove(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    private void evictOverCapacity() {
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && eldest.hasNext()) {
+            totalWeight -= eldest.next().getValue().weight;
+            eldest.remove();
+        }
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
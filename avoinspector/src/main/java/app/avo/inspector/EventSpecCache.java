@@ -2,125 +2,604 @@ package app.avo.inspector;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 class EventSpecCache {
 
-    private final HashMap<String, EventSpecCacheEntry> cache;
+    static final int DEFAULT_MAX_ENTRIES = 500;
+
+    static final long DEFAULT_TTL_MS = 60_000;
+
+    static final int DEFAULT_MAX_USES_PER_ENTRY = 50;
+
+    static final long DEFAULT_MAX_WEIGHT_BYTES = 4L * 1024 * 1024;
+
+    static final long DEFAULT_MAX_STALENESS_MS = 10 * 60_000;
+
+    static final int DEFAULT_MAX_NEGATIVE_ENTRIES = 1000;
+
+    static final long DEFAULT_NO_SPEC_TTL_MS = 60_000;
+
+    static final long DEFAULT_FAILURE_BACKOFF_MS = 5_000;
+
+    static final long DEFAULT_MAX_FAILURE_BACKOFF_MS = 5 * 60_000;
+
+    private static final float LOAD_FACTOR = 0.75f;
 
-    private static final long TTL_MS = 60_000;
+    private static final AtomicIntegerFieldUpdater<EventSpecCacheEntry> EVENT_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(EventSpecCacheEntry.class, "eventCount");
 
-    private static final int MAX_EVENT_COUNT = 50;
+    // Read without locking
+    private final ConcurrentHashMap<EventSpecKey, EventSpecCacheEntry> entries = new ConcurrentHashMap<>();
 
-    private int globalEventCount = 0;
+    // Access ordered: the eldest entry is the least recently used. Guarded by evictionLock.
+    // Holds every key of entries, and can briefly hold keys that were just removed from it.
+    private final LinkedHashMap<EventSpecKey, EventSpecCacheEntry> accessOrder =
+            new LinkedHashMap<>(16, LOAD_FACTOR, true);
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Sum of the weights of the entries of accessOrder. Guarded by evictionLock.
+    private long totalWeight = 0;
+
+    // Events without a spec and failed fetches, with their own capacity so they never evict a spec.
+    // Read without locking, written under negativeLock.
+    private final ConcurrentHashMap<EventSpecKey, NegativeEntry> negativeEntries = new ConcurrentHashMap<>();
+
+    private final Object negativeLock = new Object();
+
+    private volatile int maxEntries;
+    private volatile long ttlMs;
+    // 0 means an entry is only refreshed when its TTL passes
+    private volatile int maxUsesPerEntry;
+    private volatile long maxWeightBytes = DEFAULT_MAX_WEIGHT_BYTES;
+
+    // Stale while revalidate: expired specs are still served, for at most maxStalenessMs past their TTL,
+    // while a single background refresh runs
+    private volatile boolean staleWhileRevalidate = false;
+    private volatile long maxStalenessMs = DEFAULT_MAX_STALENESS_MS;
+
+    private volatile int maxNegativeEntries = DEFAULT_MAX_NEGATIVE_ENTRIES;
+    private volatile long noSpecTtlMs = DEFAULT_NO_SPEC_TTL_MS;
+    // Doubled on every consecutive failed fetch of an event, up to maxFailureBackoffMs
+    private volatile long failureBackoffMs = DEFAULT_FAILURE_BACKOFF_MS;
+    private volatile long maxFailureBackoffMs = DEFAULT_MAX_FAILURE_BACKOFF_MS;
+
+    // Regex and allowed values caches of the plans compiled for this cache's specs
+    final EventValidationContext validationContext = new EventValidationContext();
 
     EventSpecCache() {
-        this.cache = new HashMap<>();
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, DEFAULT_MAX_USES_PER_ENTRY);
+    }
+
+    EventSpecCache(int maxEntries, long ttlMs, int maxUsesPerEntry) {
+        setLimits(maxEntries, ttlMs, maxUsesPerEntry);
     }
 
-    private String generateKey(String apiKey, String streamId, String eventName) {
-        return apiKey + ":" + streamId + ":" + eventName;
+    void setLimits(int maxEntries, long ttlMs, int maxUsesPerEntry) {
+        if (maxEntries < 1 || ttlMs < 0 || maxUsesPerEntry < 0) {
+            throw new IllegalArgumentException("Invalid event spec cache limits: maxEntries=" + maxEntries
+                    + ", ttlMs=" + ttlMs + ", maxUsesPerEntry=" + maxUsesPerEntry);
+        }
+        evictionLock.lock();
+        try {
+            this.maxEntries = maxEntries;
+            this.ttlMs = ttlMs;
+            this.maxUsesPerEntry = maxUsesPerEntry;
+            evictOverCapacity();
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    synchronized EventSpecResponse get(String apiKey, String streamId, String eventName) {
-        String key = generateKey(apiKey, streamId, eventName);
-        EventSpecCacheEntry entry = cache.get(key);
+    /**
+     * Total estimated size of the cached specs. The least recently used specs are dropped above it.
+     */
+    void setMaxWeight(long maxWeightBytes) {
+        if (maxWeightBytes < 1) {
+            throw new IllegalArgumentException("Invalid event spec cache memory budget: " + maxWeightBytes);
+        }
+        evictionLock.lock();
+        try {
+            this.maxWeightBytes = maxWeightBytes;
+            evictOverCapacity();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
 
+    /**
+     * Drops the least recently used specs until the cache weighs at most targetWeightBytes.
+     * Used on memory pressure, the budget itself is unchanged.
+     */
+    void trimToWeight(long targetWeightBytes) {
+        evictionLock.lock();
+        try {
+            evictLeastRecentlyUsed(Integer.MAX_VALUE, Math.max(targetWeightBytes, 0));
+        } finally {
+            evictionLock.unlock();
+        }
+        // Compiled plans keep their patterns and value sets, the shared caches only speed up the next compilations
+        validationContext.clearCaches();
+        if (AvoInspector.isLogging()) {
+            Log.d("Avo Inspector", "Cache trimmed to " + weight() + " bytes");
+        }
+    }
+
+    void setStaleWhileRevalidate(boolean enabled, long maxStalenessMs) {
+        if (maxStalenessMs < 0) {
+            throw new IllegalArgumentException("Max staleness can't be negative: " + maxStalenessMs);
+        }
+        this.maxStalenessMs = maxStalenessMs;
+        this.staleWhileRevalidate = enabled;
+    }
+
+    void setNegativeLimits(int maxEntries, long noSpecTtlMs) {
+        if (maxEntries < 1 || noSpecTtlMs < 0) {
+            throw new IllegalArgumentException("Invalid negative event spec cache limits: maxEntries=" + maxEntries
+                    + ", noSpecTtlMs=" + noSpecTtlMs);
+        }
+        synchronized (negativeLock) {
+            this.maxNegativeEntries = maxEntries;
+            this.noSpecTtlMs = noSpecTtlMs;
+            evictNegativeOverCapacity(System.currentTimeMillis());
+        }
+    }
+
+    void setFailureBackoff(long initialBackoffMs, long maxBackoffMs) {
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid event spec fetch backoff: initialBackoffMs=" + initialBackoffMs
+                    + ", maxBackoffMs=" + maxBackoffMs);
+        }
+        this.failureBackoffMs = initialBackoffMs;
+        this.maxFailureBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Single cache read for an event, counted as one use of the entry.
+     *
+     * @return null on a miss. An entry with a null spec is a cached "no spec" answer,
+     * or a failed fetch that is not retried yet.
+     */
+    @Nullable
+    EventSpecCacheEntry lookup(EventSpecKey key) {
+        EventSpecCacheEntry entry = entries.get(key);
         if (entry == null) {
-            return null;
+            return lookupNegative(key);
         }
 
-        if (shouldEvict(entry)) {
-            cache.remove(key);
-            return null;
+        long now = System.currentTimeMillis();
+        if (!isFresh(entry, now) && !canServeStale(entry, now)) {
+            removeUnlessRevalidatable(key, entry);
+            // A failed revalidation backs off like any failed fetch
+            return lookupNegative(key);
         }
 
         if (AvoInspector.isLogging()) {
             Log.d("Avo Inspector", "Cache hit for key: " + key);
         }
 
-        entry.lastAccessed = System.currentTimeMillis();
+        EVENT_COUNT.incrementAndGet(entry);
+        recordAccess(key);
 
-        entry.eventCount++;
-        globalEventCount++;
+        return entry;
+    }
 
-        if (globalEventCount >= MAX_EVENT_COUNT) {
-            evictOldest();
-            globalEventCount = 0;
-        }
+    @Nullable
+    EventSpecResponse get(String apiKey, String streamId, String eventName) {
+        EventSpecCacheEntry entry = lookup(new EventSpecKey(apiKey, streamId, eventName));
+        return entry != null ? entry.spec : null;
+    }
 
-        return entry.spec;
+    /**
+     * Caches a fetched spec with its compiled validation plan. A null spec records that the server
+     * has no spec for the event.
+     */
+    void set(EventSpecKey key, @Nullable EventSpecResponse spec) {
+        set(key, spec, null);
     }
 
-    synchronized void set(String apiKey, String streamId, String eventName, EventSpecResponse spec) {
-        String key = generateKey(apiKey, streamId, eventName);
+    /**
+     * Caches a fetched spec with the plan already compiled from it, or compiles it when null.
+     */
+    void set(EventSpecKey key, @Nullable EventSpecResponse spec, @Nullable ValidationPlan plan) {
+        if (spec == null) {
+            setNegative(key, new NegativeEntry(noSpecTtlMs, 0));
+            removeSpec(key);
+            return;
+        }
+        removeNegative(key);
 
-        long now = System.currentTimeMillis();
+        EventSpecCacheEntry entry = new EventSpecCacheEntry();
+        entry.spec = spec;
+        // Null for a malformed spec: validating with it throws and the event is sent without validation
+        entry.plan = plan != null ? plan : compile(spec);
+        entry.timestamp = System.currentTimeMillis();
+        entry.eventCount = 0;
+        entry.weight = EventSpecWeigher.weigh(spec);
 
+        if (entry.weight > maxWeightBytes) {
+            // Would evict every other spec and itself, the event is validated without caching its spec
+            if (AvoInspector.isLogging()) {
+                Log.d("Avo Inspector", "Spec of " + entry.weight + " bytes is over the cache budget, not cached: " + key);
+            }
+            removeSpec(key);
+            return;
+        }
+
+        evictionLock.lock();
+        try {
+            entries.put(key, entry);
+            EventSpecCacheEntry previous = accessOrder.put(key, entry);
+            if (previous != null) {
+                totalWeight -= previous.weight;
+            }
+            totalWeight += entry.weight;
+            evictOverCapacity();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Caches a spec persisted by a previous launch, unless the event was cached since. The entry keeps the time
+     * the spec was fetched, so it is refreshed on first use once its TTL has passed. Until then, and for at most
+     * ttlMs + maxStalenessMs after the launch, an expired preloaded spec is served stale while a single background
+     * fetch refreshes it, whether or not stale while revalidate is enabled.
+     */
+    void seed(EventSpecKey key, EventSpecResponse spec, @Nullable ValidationPlan plan, long fetchedAt) {
         EventSpecCacheEntry entry = new EventSpecCacheEntry();
         entry.spec = spec;
-        entry.timestamp = now;
-        entry.lastAccessed = now;
+        entry.timestamp = fetchedAt;
+        entry.preloadedAt = System.currentTimeMillis();
         entry.eventCount = 0;
+        entry.plan = plan != null ? plan : compile(spec);
+        entry.weight = EventSpecWeigher.weigh(spec);
+        if (entry.weight > maxWeightBytes) {
+            return;
+        }
+
+        evictionLock.lock();
+        try {
+            if (entries.containsKey(key) || negativeEntries.containsKey(key)) {
+                return;
+            }
+            entries.put(key, entry);
+            accessOrder.put(key, entry);
+            totalWeight += entry.weight;
+            evictOverCapacity();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
 
-        cache.put(key, entry);
+    void set(String apiKey, String streamId, String eventName, @Nullable EventSpecResponse spec) {
+        set(new EventSpecKey(apiKey, streamId, eventName), spec);
+    }
+
+    /**
+     * Records a fetch that failed, so the event is not fetched again before a backoff that grows
+     * with each consecutive failure. A later spec or "no spec" answer resets it.
+     */
+    void setFetchFailed(EventSpecKey key) {
+        NegativeEntry previous = negativeEntries.get(key);
+        int failures = previous != null && previous.failures > 0 ? previous.failures + 1 : 1;
+        setNegative(key, new NegativeEntry(failureBackoff(failures), failures));
+    }
+
+    /**
+     * @return an expired spec entry, kept so that it can be revalidated instead of downloaded again.
+     * Null when there is none or the entry is still served.
+     */
+    @Nullable
+    EventSpecCacheEntry expiredEntry(EventSpecKey key) {
+        EventSpecCacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        return isFresh(entry, now) || canServeStale(entry, now) ? null : entry;
+    }
 
-        // Cap cache size to prevent unbounded growth
-        while (cache.size() > MAX_EVENT_COUNT) {
-            evictOldest();
+    /**
+     * Renews the entry of a spec the server reported as unchanged: its TTL and use limit start over,
+     * its plan is kept. The spec is cached again if its entry was dropped in the meantime.
+     */
+    void revalidated(EventSpecKey key, EventSpecResponse spec, @Nullable ValidationPlan plan) {
+        evictionLock.lock();
+        try {
+            EventSpecCacheEntry current = entries.get(key);
+            if (current != null && current.spec == spec) {
+                EventSpecCacheEntry renewed = new EventSpecCacheEntry();
+                renewed.spec = spec;
+                renewed.plan = current.plan;
+                renewed.timestamp = System.currentTimeMillis();
+                renewed.eventCount = 0;
+                renewed.weight = current.weight;
+                entries.put(key, renewed);
+                EventSpecCacheEntry previous = accessOrder.put(key, renewed);
+                totalWeight += renewed.weight - (previous != null ? previous.weight : 0);
+                return;
+            }
+            if (current != null) {
+                // Replaced by a newer fetch, which wins
+                return;
+            }
+        } finally {
+            evictionLock.unlock();
         }
+        set(key, spec, plan);
     }
 
-    synchronized void clear() {
-        cache.clear();
-        globalEventCount = 0;
+    /**
+     * @return the plan of spec, compiled with the caches of this cache, or null when the spec is malformed
+     */
+    @Nullable
+    ValidationPlan compile(EventSpecResponse spec) {
+        return ValidationPlan.tryCompile(spec, validationContext);
+    }
+
+    void clear() {
+        evictionLock.lock();
+        try {
+            entries.clear();
+            accessOrder.clear();
+            totalWeight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+        synchronized (negativeLock) {
+            negativeEntries.clear();
+        }
+        validationContext.clearCaches();
         if (AvoInspector.isLogging()) {
             Log.d("Avo Inspector", "Cache cleared");
         }
     }
 
-    synchronized boolean contains(String apiKey, String streamId, String eventName) {
-        String key = generateKey(apiKey, streamId, eventName);
-        EventSpecCacheEntry entry = cache.get(key);
+    boolean contains(String apiKey, String streamId, String eventName) {
+        EventSpecKey key = new EventSpecKey(apiKey, streamId, eventName);
+        EventSpecCacheEntry entry = entries.get(key);
         if (entry == null) {
-            return false;
+            return lookupNegative(key) != null;
         }
-        if (shouldEvict(entry)) {
-            cache.remove(key);
-            return false;
+        long now = System.currentTimeMillis();
+        if (!isFresh(entry, now) && !canServeStale(entry, now)) {
+            removeUnlessRevalidatable(key, entry);
+            return lookupNegative(key) != null;
         }
         return true;
     }
 
-    synchronized int size() {
-        return cache.size();
+    /**
+     * @return true once for a stale entry that is still served: the caller owns its background refresh.
+     * A failed refresh is not retried, the entry is dropped when it gets too stale.
+     */
+    boolean claimRefresh(EventSpecKey key) {
+        EventSpecCacheEntry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.spec == null || isFresh(entry, now) || !canServeStale(entry, now)) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.refreshing) {
+                return false;
+            }
+            entry.refreshing = true;
+            return true;
+        }
+    }
+
+    boolean claimRefresh(String apiKey, String streamId, String eventName) {
+        return claimRefresh(new EventSpecKey(apiKey, streamId, eventName));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int maxEntries() {
+        return maxEntries;
+    }
+
+    long weight() {
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    int negativeSize() {
+        return negativeEntries.size();
+    }
+
+    @VisibleForTesting
+    @Nullable
+    EventSpecCacheEntry peek(String apiKey, String streamId, String eventName) {
+        EventSpecKey key = new EventSpecKey(apiKey, streamId, eventName);
+        EventSpecCacheEntry entry = entries.get(key);
+        return entry != null ? entry : negativeEntries.get(key);
     }
 
-    private boolean shouldEvict(EventSpecCacheEntry entry) {
-        long age = System.currentTimeMillis() - entry.timestamp;
-        boolean ageExpired = age > TTL_MS;
-        boolean countExpired = entry.eventCount >= MAX_EVENT_COUNT;
-        return ageExpired || countExpired;
+    @Nullable
+    private EventSpecCacheEntry lookupNegative(EventSpecKey key) {
+        NegativeEntry negative = negativeEntries.get(key);
+        if (negative == null || negative.isExpired(System.currentTimeMillis())) {
+            // Expired failures stay until replaced or evicted, so the next failure keeps growing the backoff
+            return null;
+        }
+        if (AvoInspector.isLogging()) {
+            Log.d("Avo Inspector", (negative.failures > 0 ? "Cached fetch failure for key: " : "Cached no spec for key: ") + key);
+        }
+        return negative;
+    }
+
+    private void setNegative(EventSpecKey key, NegativeEntry negative) {
+        synchronized (negativeLock) {
+            negativeEntries.put(key, negative);
+            evictNegativeOverCapacity(negative.timestamp);
+        }
+    }
+
+    private void removeSpec(EventSpecKey key) {
+        if (entries.containsKey(key)) {
+            evictionLock.lock();
+            try {
+                entries.remove(key);
+                EventSpecCacheEntry removed = accessOrder.remove(key);
+                if (removed != null) {
+                    totalWeight -= removed.weight;
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
     }
 
-    private void evictOldest() {
-        if (cache.isEmpty()) {
+    private void removeNegative(EventSpecKey key) {
+        if (negativeEntries.containsKey(key)) {
+            synchronized (negativeLock) {
+                negativeEntries.remove(key);
+            }
+        }
+    }
+
+    // Called with negativeLock held. Drops expired entries first, then the ones closest to expiry.
+    private void evictNegativeOverCapacity(long now) {
+        if (negativeEntries.size() <= maxNegativeEntries) {
             return;
         }
+        Iterator<NegativeEntry> expired = negativeEntries.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next().isExpired(now)) {
+                expired.remove();
+            }
+        }
+        while (negativeEntries.size() > maxNegativeEntries) {
+            EventSpecKey soonest = null;
+            long soonestExpiry = Long.MAX_VALUE;
+            for (Map.Entry<EventSpecKey, NegativeEntry> negative : negativeEntries.entrySet()) {
+                long expiry = negative.getValue().expiresAt();
+                if (expiry < soonestExpiry) {
+                    soonestExpiry = expiry;
+                    soonest = negative.getKey();
+                }
+            }
+            if (soonest == null) {
+                return;
+            }
+            negativeEntries.remove(soonest);
+        }
+    }
 
-        String lruKey = null;
-        long oldestAccessTime = Long.MAX_VALUE;
+    private long failureBackoff(int failures) {
+        long backoff = failureBackoffMs;
+        long maxBackoff = maxFailureBackoffMs;
+        for (int i = 1; i < failures && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, maxBackoff);
+    }
+
+    // A read never waits for the lock: under contention the access is not recorded and the LRU order is approximate
+    private void recordAccess(EventSpecKey key) {
+        if (evictionLock.tryLock()) {
+            try {
+                accessOrder.get(key);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Expired specs with a version stay until replaced or evicted, so the next fetch can be conditional
+    private void removeUnlessRevalidatable(EventSpecKey key, EventSpecCacheEntry entry) {
+        if (AvoEventSpecFetcher.specVersion(entry.spec) == null) {
+            remove(key, entry);
+        }
+    }
 
-        for (Map.Entry<String, EventSpecCacheEntry> mapEntry : cache.entrySet()) {
-            if (mapEntry.getValue().lastAccessed < oldestAccessTime) {
-                oldestAccessTime = mapEntry.getValue().lastAccessed;
-                lruKey = mapEntry.getKey();
+    // Unlike the recency update, this waits for the lock: a removal that is skipped would leave the entry
+    // in accessOrder and its weight in totalWeight.
+    private void remove(EventSpecKey key, EventSpecCacheEntry entry) {
+        if (entries.remove(key, entry)) {
+            evictionLock.lock();
+            try {
+                if (accessOrder.get(key) == entry) {
+                    accessOrder.remove(key);
+                    totalWeight -= entry.weight;
+                }
+            } finally {
+                evictionLock.unlock();
             }
         }
+    }
+
+    // Called with evictionLock held
+    private void evictOverCapacity() {
+        evictLeastRecentlyUsed(maxEntries, maxWeightBytes);
+    }
+
+    // Called with evictionLock held
+    private void evictLeastRecentlyUsed(int maxCount, long maxWeight) {
+        Iterator<Map.Entry<EventSpecKey, EventSpecCacheEntry>> lruFirst = accessOrder.entrySet().iterator();
+        while ((accessOrder.size() > maxCount || totalWeight > maxWeight) && lruFirst.hasNext()) {
+            Map.Entry<EventSpecKey, EventSpecCacheEntry> eldest = lruFirst.next();
+            entries.remove(eldest.getKey(), eldest.getValue());
+            totalWeight -= eldest.getValue().weight;
+            lruFirst.remove();
+        }
+    }
+
+    private boolean isFresh(EventSpecCacheEntry entry, long now) {
+        long age = now - entry.timestamp;
+        boolean ageExpired = age > ttlMs;
+        int maxUses = maxUsesPerEntry;
+        boolean countExpired = maxUses > 0 && entry.eventCount >= maxUses;
+        return !ageExpired && !countExpired;
+    }
+
+    // "No spec" answers live in negativeEntries and always expire on time.
+    // A preloaded spec is aged from the launch rather than its fetch, so that it covers the first events.
+    private boolean canServeStale(EventSpecCacheEntry entry, long now) {
+        if (entry.spec == null) {
+            return false;
+        }
+        if (entry.preloadedAt > 0 && now - entry.preloadedAt <= ttlMs + maxStalenessMs) {
+            return true;
+        }
+        return staleWhileRevalidate && now - entry.timestamp <= ttlMs + maxStalenessMs;
+    }
+
+    /**
+     * Cached "no spec" answer (no failures) or failed fetch of an event. Never has a spec.
+     */
+    static final class NegativeEntry extends EventSpecCacheEntry {
+        final long lifetimeMs;
+        final int failures;
+
+        NegativeEntry(long lifetimeMs, int failures) {
+            this.timestamp = System.currentTimeMillis();
+            this.lifetimeMs = lifetimeMs;
+            this.failures = failures;
+        }
+
+        long expiresAt() {
+            return timestamp + lifetimeMs;
+        }
 
-        if (lruKey != null) {
-            cache.remove(lruKey);
+        boolean isExpired(long now) {
+            return now - timestamp > lifetimeMs;
         }
     }
 }
@@ -0,0 +1,104 @@
+package app.avo.inspector;
+
+import android.util.Log;
+
+/**
+ * Stops event spec fetching after consecutive failures or timeouts, so events don't wait on an
+ * unreachable endpoint. After the cool-down a single trial fetch is let through: its success closes
+ * the circuit, its failure opens it for another cool-down.
+ */
+class EventSpecCircuitBreaker {
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    static final long DEFAULT_COOL_DOWN_MS = 30_000;
+
+    // Guarded by this
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long coolDownMs = DEFAULT_COOL_DOWN_MS;
+    private EventSpecFetchCircuitState state = EventSpecFetchCircuitState.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    synchronized void setLimits(int failureThreshold, long coolDownMs) {
+        if (failureThreshold < 1 || coolDownMs < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker limits: failureThreshold=" + failureThreshold
+                    + ", coolDownMs=" + coolDownMs);
+        }
+        this.failureThreshold = failureThreshold;
+        this.coolDownMs = coolDownMs;
+    }
+
+    /**
+     * What a fetch may do: not be made, be made, or be made as the single trial of a half-open circuit.
+     */
+    enum Permit { REJECTED, REGULAR, TRIAL }
+
+    /**
+     * @return REJECTED when the fetch must not be made. The outcome of any other fetch is reported with its permit.
+     */
+    synchronized Permit tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < coolDownMs) {
+                    return Permit.REJECTED;
+                }
+                state = EventSpecFetchCircuitState.HALF_OPEN;
+                trialInFlight = true;
+                return Permit.TRIAL;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return Permit.REJECTED;
+                }
+                trialInFlight = true;
+                return Permit.TRIAL;
+            default:
+                return Permit.REGULAR;
+        }
+    }
+
+    /**
+     * Only the trial closes a circuit that is not closed. A fetch made before the circuit opened says nothing
+     * about the endpoint since.
+     */
+    synchronized void onSuccess(Permit permit) {
+        if (permit == Permit.TRIAL) {
+            if (AvoInspector.isLogging()) {
+                Log.d("Avo Inspector", "Event spec fetching recovered. Circuit closed.");
+            }
+            state = EventSpecFetchCircuitState.CLOSED;
+            consecutiveFailures = 0;
+            trialInFlight = false;
+        } else if (state == EventSpecFetchCircuitState.CLOSED) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    synchronized void onFailure(Permit permit) {
+        if (permit == Permit.REGULAR && state != EventSpecFetchCircuitState.CLOSED) {
+            // Already open
+            return;
+        }
+        consecutiveFailures++;
+        if (permit == Permit.TRIAL || consecutiveFailures >= failureThreshold) {
+            if (AvoInspector.isLogging()) {
+                Log.d("Avo Inspector", "Event spec fetching failed " + consecutiveFailures
+                        + " times in a row. Circuit open for " + coolDownMs + "ms.");
+            }
+            state = EventSpecFetchCircuitState.OPEN;
+            openedAt = System.currentTimeMillis();
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * An open circuit whose cool-down is over is reported half-open: the next fetch is the trial.
+     */
+    synchronized EventSpecFetchCircuitState getState() {
+        if (state == EventSpecFetchCircuitState.OPEN && System.currentTimeMillis() - openedAt >= coolDownMs) {
+            return EventSpecFetchCircuitState.HALF_OPEN;
+        }
+        return state;
+    }
+}
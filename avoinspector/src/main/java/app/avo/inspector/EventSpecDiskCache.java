@@ -0,0 +1,488 @@
+package app.avo.inspector;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps fetched event specs on disk so they can be used for validation right after a cold start.
+ * One small file per (apiKey, streamId, eventName), tagged with the branch and schema it was fetched for
+ * and the time it was fetched. The files are read once per process, by a background preload when the
+ * inspector starts; writes happen on the same background thread.
+ *
+ * The file names start with hashes of the apiKey and streamId, so the preload only parses the files of its
+ * stream and deletes those of the other streams of its apiKey. At most maxFiles files are kept per apiKey,
+ * the least recently written are deleted first, and specs older than MAX_SPEC_AGE_MS are not loaded.
+ */
+class EventSpecDiskCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    static final int DEFAULT_MAX_FILES = EventSpecCache.DEFAULT_MAX_ENTRIES;
+
+    static final long MAX_SPEC_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String BRANCH_FILE_NAME = "branch";
+    private static final String SPEC_FILE_SUFFIX = ".json";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int maxFiles;
+
+    // Single thread so a branch invalidation and the writes after it hit the disk in order
+    private final ExecutorService diskExecutor;
+
+    private final Object branchLock = new Object();
+    private boolean branchLoaded = false;
+    @Nullable private String branchId;
+
+    EventSpecDiskCache(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_FILES);
+    }
+
+    EventSpecDiskCache(@NonNull File directory, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.diskExecutor = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Avo Inspector spec cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Nullable
+    static EventSpecDiskCache inDirectory(@Nullable File parent) {
+        return parent != null ? new EventSpecDiskCache(new File(parent, "avo_event_specs")) : null;
+    }
+
+    /**
+     * @return the persisted spec, or null when there is none for the current branch
+     */
+    @Nullable
+    EventSpecResponse read(String apiKey, String streamId, String eventName) {
+        PersistedSpec persisted = read(specFile(apiKey, streamId, eventName), apiKey, streamId);
+        return persisted != null && eventName.equals(persisted.eventName) ? persisted.spec : null;
+    }
+
+    /**
+     * Reads the specs of the current branch persisted for apiKey and streamId, on the background thread.
+     * At most maxSpecs of them, the most recently written, are passed to the listener, oldest first.
+     * The files of the other streams of apiKey, and those of specs too old to be loaded, are deleted.
+     */
+    void preload(final String apiKey, final String streamId, final int maxSpecs, final PreloadListener listener) {
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String apiKeyPrefix = apiKeyPrefix(apiKey);
+                String streamPrefix = streamPrefix(apiKey, streamId);
+                List<File> streamFiles = new ArrayList<>();
+                for (File file : specFiles()) {
+                    if (file.getName().startsWith(streamPrefix)) {
+                        streamFiles.add(file);
+                    } else if (file.getName().startsWith(apiKeyPrefix) || !isSpecFileName(file.getName())) {
+                        // Another stream of this app, or a file named by an older version
+                        deleteFile(file);
+                    }
+                }
+                sortNewestFirst(streamFiles);
+                long now = System.currentTimeMillis();
+                List<PersistedSpec> persistedSpecs = new ArrayList<>();
+                for (File file : streamFiles) {
+                    if (persistedSpecs.size() >= maxSpecs) {
+                        break;
+                    }
+                    PersistedSpec persisted = read(file, apiKey, streamId);
+                    if (persisted == null) {
+                        continue;
+                    }
+                    if (now - persisted.fetchedAt > MAX_SPEC_AGE_MS) {
+                        deleteFile(file);
+                        continue;
+                    }
+                    persistedSpecs.add(persisted);
+                }
+                Collections.reverse(persistedSpecs);
+                for (PersistedSpec persisted : persistedSpecs) {
+                    try {
+                        listener.onPreloaded(persisted);
+                    } catch (Exception e) {
+                        if (AvoInspector.isLogging()) {
+                            Log.d("Avo Inspector", "Failed to load persisted event spec for: " + persisted.eventName + " " + e);
+                        }
+                    }
+                }
+                if (AvoInspector.isLogging()) {
+                    Log.d("Avo Inspector", "Loaded " + persistedSpecs.size() + " persisted event specs");
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private PersistedSpec read(File file, String apiKey, String streamId) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            JsonReader json = new JsonReader(reader);
+            int version = 0;
+            String fileApiKey = null;
+            String fileStreamId = null;
+            String eventName = null;
+            long fetchedAt = -1;
+            EventSpecResponse spec = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                JsonToken token = json.peek();
+                if ("version".equals(name) && token == JsonToken.NUMBER) {
+                    version = json.nextInt();
+                } else if ("apiKey".equals(name) && token == JsonToken.STRING) {
+                    fileApiKey = json.nextString();
+                } else if ("streamId".equals(name) && token == JsonToken.STRING) {
+                    fileStreamId = json.nextString();
+                } else if ("eventName".equals(name) && token == JsonToken.STRING) {
+                    eventName = json.nextString();
+                } else if ("fetchedAt".equals(name) && token == JsonToken.NUMBER) {
+                    fetchedAt = json.nextLong();
+                } else if ("spec".equals(name) && token == JsonToken.BEGIN_OBJECT) {
+                    spec = EventSpecResponseParser.read(json);
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            if (version != FORMAT_VERSION
+                    || !apiKey.equals(fileApiKey)
+                    || !streamId.equals(fileStreamId)
+                    || eventName == null
+                    || !AvoEventSpecFetcher.hasExpectedShape(spec)) {
+                return null;
+            }
+            String currentBranchId = currentBranchId();
+            if (currentBranchId != null && !currentBranchId.equals(spec.metadata.branchId)) {
+                return null;
+            }
+            // Files written before the fetch time was recorded were written right after their fetch
+            return new PersistedSpec(eventName, spec, fetchedAt >= 0 ? fetchedAt : file.lastModified());
+        } catch (Exception e) {
+            if (AvoInspector.isLogging()) {
+                Log.d("Avo Inspector", "Failed to read persisted event spec " + file.getName() + " " + e);
+            }
+            return null;
+        }
+    }
+
+    void write(String apiKey, String streamId, String eventName, @Nullable EventSpecResponse spec) {
+        write(apiKey, streamId, eventName, spec, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    void write(final String apiKey, final String streamId, final String eventName, @Nullable final EventSpecResponse spec,
+               final long fetchedAt) {
+        if (spec == null || spec.metadata == null) {
+            return;
+        }
+        onBranch(spec.metadata.branchId);
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("version", FORMAT_VERSION);
+                    json.put("apiKey", apiKey);
+                    json.put("streamId", streamId);
+                    json.put("eventName", eventName);
+                    json.put("fetchedAt", fetchedAt);
+                    json.put("spec", toJson(spec));
+                    writeFile(specFile(apiKey, streamId, eventName), json.toString());
+                    deleteOverCapacity(apiKey);
+                } catch (Exception e) {
+                    if (AvoInspector.isLogging()) {
+                        Log.d("Avo Inspector", "Failed to persist event spec for: " + eventName + " " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops every persisted spec when the branch differs from the one they were fetched for.
+     */
+    void onBranch(@Nullable String newBranchId) {
+        if (newBranchId == null) {
+            return;
+        }
+        synchronized (branchLock) {
+            String previousBranchId = currentBranchId();
+            if (newBranchId.equals(previousBranchId)) {
+                return;
+            }
+            branchId = newBranchId;
+        }
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteSpecFiles();
+                try {
+                    writeFile(new File(directory, BRANCH_FILE_NAME), newBranchId);
+                } catch (IOException e) {
+                    if (AvoInspector.isLogging()) {
+                        Log.d("Avo Inspector", "Failed to persist event spec branch " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the writes and the preload queued so far.
+     */
+    @VisibleForTesting
+    void awaitPendingWrites() throws Exception {
+        diskExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Nullable
+    private String currentBranchId() {
+        synchronized (branchLock) {
+            if (!branchLoaded) {
+                branchLoaded = true;
+                File branchFile = new File(directory, BRANCH_FILE_NAME);
+                try {
+                    if (branchFile.isFile()) {
+                        branchId = readFile(branchFile).trim();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+            return branchId;
+        }
+    }
+
+    // <apiKey hash>_<streamId hash>_<eventName hash>.json
+    @VisibleForTesting
+    File specFile(String apiKey, String streamId, String eventName) {
+        return new File(directory, streamPrefix(apiKey, streamId) + hash(eventName) + SPEC_FILE_SUFFIX);
+    }
+
+    private static String apiKeyPrefix(String apiKey) {
+        return hash(apiKey) + "_";
+    }
+
+    private static String streamPrefix(String apiKey, String streamId) {
+        return apiKeyPrefix(apiKey) + hash(streamId) + "_";
+    }
+
+    private static String hash(String value) {
+        return Long.toHexString(Util.fingerprint(value));
+    }
+
+    private static boolean isSpecFileName(String name) {
+        return name.split("_", -1).length == 3;
+    }
+
+    private List<File> specFiles() {
+        File[] files = directory.listFiles();
+        List<File> specFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SPEC_FILE_SUFFIX)) {
+                    specFiles.add(file);
+                }
+            }
+        }
+        return specFiles;
+    }
+
+    // Drops the least recently written files of apiKey over maxFiles
+    private void deleteOverCapacity(String apiKey) {
+        String apiKeyPrefix = apiKeyPrefix(apiKey);
+        List<File> files = new ArrayList<>();
+        for (File file : specFiles()) {
+            if (file.getName().startsWith(apiKeyPrefix)) {
+                files.add(file);
+            }
+        }
+        if (files.size() <= maxFiles) {
+            return;
+        }
+        sortNewestFirst(files);
+        for (File file : files.subList(maxFiles, files.size())) {
+            deleteFile(file);
+        }
+    }
+
+    private static void sortNewestFirst(List<File> files) {
+        // Read once, a file can be rewritten while sorting
+        final Map<File, Long> lastModified = new HashMap<>();
+        for (File file : files) {
+            lastModified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare(lastModified.get(second), lastModified.get(first));
+            }
+        });
+    }
+
+    private void deleteSpecFiles() {
+        for (File file : specFiles()) {
+            deleteFile(file);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = input.read(buffer, offset, buffer.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(buffer, 0, offset, UTF_8);
+        }
+    }
+
+    // Written next to the target and renamed, so a reader never sees a partial file
+    private void writeFile(File file, String content) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File temp = new File(directory, file.getName() + ".tmp");
+        try (OutputStream output = new FileOutputStream(temp)) {
+            output.write(content.getBytes(UTF_8));
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    // Same wire format as the event spec endpoint, so reading back reuses its parser
+    static JSONObject toJson(EventSpecResponse spec) throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONArray events = new JSONArray();
+        if (spec.events != null) {
+            for (EventSpecEntry entry : spec.events) {
+                JSONObject entryJson = new JSONObject();
+                entryJson.putOpt("b", entry.branchId);
+                entryJson.putOpt("id", entry.baseEventId);
+                entryJson.put("vids", entry.variantIds != null ? new JSONArray(entry.variantIds) : new JSONArray());
+                entryJson.put("p", constraintsToJson(entry.props));
+                events.put(entryJson);
+            }
+        }
+        json.put("events", events);
+        if (spec.metadata != null) {
+            JSONObject metadata = new JSONObject();
+            metadata.putOpt("schemaId", spec.metadata.schemaId);
+            metadata.putOpt("branchId", spec.metadata.branchId);
+            metadata.putOpt("latestActionId", spec.metadata.latestActionId);
+            metadata.putOpt("sourceId", spec.metadata.sourceId);
+            json.put("metadata", metadata);
+        }
+        return json;
+    }
+
+    private static JSONObject constraintsToJson(@Nullable Map<String, PropertyConstraints> props) throws JSONException {
+        JSONObject json = new JSONObject();
+        if (props == null) {
+            return json;
+        }
+        for (Map.Entry<String, PropertyConstraints> prop : props.entrySet()) {
+            PropertyConstraints constraints = prop.getValue();
+            if (constraints == null) {
+                continue;
+            }
+            JSONObject constraintsJson = new JSONObject();
+            constraintsJson.putOpt("t", constraints.type);
+            constraintsJson.put("r", constraints.required);
+            constraintsJson.putOpt("l", constraints.isList);
+            putStringListMap(constraintsJson, "p", constraints.pinnedValues);
+            putStringListMap(constraintsJson, "v", constraints.allowedValues);
+            putStringListMap(constraintsJson, "rx", constraints.regexPatterns);
+            putStringListMap(constraintsJson, "minmax", constraints.minMaxRanges);
+            if (constraints.children != null) {
+                constraintsJson.put("children", constraintsToJson(constraints.children));
+            }
+            json.put(prop.getKey(), constraintsJson);
+        }
+        return json;
+    }
+
+    private static void putStringListMap(JSONObject json, String name, @Nullable Map<String, List<String>> map) throws JSONException {
+        if (map == null) {
+            return;
+        }
+        JSONObject mapJson = new JSONObject();
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            mapJson.put(entry.getKey(), entry.getValue() != null ? new JSONArray(entry.getValue()) : new JSONArray());
+        }
+        json.put(name, mapJson);
+    }
+
+    interface PreloadListener {
+        void onPreloaded(PersistedSpec persisted);
+    }
+
+    static final class PersistedSpec {
+        final String eventName;
+        final EventSpecResponse spec;
+        // Wall clock time of the fetch, like the timestamps of the memory cache
+        final long fetchedAt;
+
+        PersistedSpec(String eventName, EventSpecResponse spec, long fetchedAt) {
+            this.eventName = eventName;
+            this.spec = spec;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package app.avo.inspector;
+
+/**
+ * State of the circuit breaker of event spec fetching, see {@link AvoInspector#getEventSpecFetchCircuitState()}.
+ */
+public enum EventSpecFetchCircuitState {
+    /** Specs are fetched normally */
+    CLOSED,
+    /** Fetching failed repeatedly. Specs are not fetched until the cool-down is over, events are sent unvalidated */
+    OPEN,
+    /** Cool-down is over. A single trial fetch decides whether the circuit closes or opens again */
+    HALF_OPEN
+}
@@ -0,0 +1,146 @@
+package app.avo.inspector;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+
+/**
+ * Fetches the specs of a list of events, at most maxConcurrentFetches at a time,
+ * and reports the outcome once all of them are done.
+ */
+class EventSpecPrefetch {
+
+    static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+
+    interface SpecFetch {
+        void fetch(String eventName, EventSpecFetchFailureCallback callback);
+    }
+
+    private final SpecFetch specFetch;
+    @Nullable private final EventSpecPrefetchListener listener;
+    private final int total;
+
+    // Guarded by this
+    private final Queue<String> pending;
+    private int fetched = 0;
+    private int withoutSpec = 0;
+    private int failed = 0;
+
+    EventSpecPrefetch(Collection<String> eventNames, SpecFetch specFetch, @Nullable EventSpecPrefetchListener listener) {
+        this.pending = new ArrayDeque<>(eventNames);
+        this.total = eventNames.size();
+        this.specFetch = specFetch;
+        this.listener = listener;
+    }
+
+    void start(int maxConcurrentFetches) {
+        if (total == 0) {
+            report();
+            return;
+        }
+        for (int i = 0; i < Math.min(maxConcurrentFetches, total); i++) {
+            fetchNext();
+        }
+    }
+
+    // A fetch can complete on the calling thread (open circuit, prod). The next one is then started by this loop
+    // rather than by the callback, so a long list never nests callbacks on the stack.
+    private void fetchNext() {
+        while (true) {
+            String eventName;
+            synchronized (this) {
+                eventName = pending.poll();
+            }
+            if (eventName == null) {
+                return;
+            }
+            Fetch fetch = new Fetch();
+            specFetch.fetch(eventName, fetch);
+            if (!fetch.returned()) {
+                // Still running, its callback takes the next event
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true when more events are left to fetch, false once the outcome was reported
+     */
+    private boolean onFetchDone(boolean hasSpec, boolean hasFailed) {
+        boolean done;
+        synchronized (this) {
+            if (hasSpec) {
+                fetched++;
+            } else if (hasFailed) {
+                failed++;
+            } else {
+                withoutSpec++;
+            }
+            done = fetched + withoutSpec + failed == total;
+        }
+        if (done) {
+            report();
+        }
+        return !done;
+    }
+
+    private final class Fetch implements EventSpecFetchFailureCallback {
+        // Guarded by this
+        private boolean returned = false;
+        private boolean completed = false;
+
+        @Override
+        public void onResult(EventSpecResponse response) {
+            onCompleted(response != null, false);
+        }
+
+        @Override
+        public void onFetchFailed() {
+            onCompleted(false, true);
+        }
+
+        @Override
+        public void onFetchRejected() {
+            onCompleted(false, true);
+        }
+
+        private void onCompleted(boolean hasSpec, boolean hasFailed) {
+            if (!onFetchDone(hasSpec, hasFailed)) {
+                return;
+            }
+            boolean continueHere;
+            synchronized (this) {
+                completed = true;
+                continueHere = returned;
+            }
+            if (continueHere) {
+                fetchNext();
+            }
+        }
+
+        /**
+         * Called once the fetch call returned.
+         *
+         * @return true when the fetch already completed with more events to fetch: the caller takes the next one
+         */
+        synchronized boolean returned() {
+            returned = true;
+            return completed;
+        }
+    }
+
+    private void report() {
+        if (listener == null) {
+            return;
+        }
+        int fetched, withoutSpec, failed;
+        synchronized (this) {
+            fetched = this.fetched;
+            withoutSpec = this.withoutSpec;
+            failed = this.failed;
+        }
+        listener.onPrefetchComplete(fetched, withoutSpec, failed);
+    }
+}
@@ -0,0 +1,10 @@
+package app.avo.inspector;
+
+/**
+ * Reports the end of {@link Inspector#prefetchEventSpecs(java.util.Collection, EventSpecPrefetchListener)}.
+ * Events whose spec was already cached are not fetched and not counted.
+ * Called on a background thread.
+ */
+public interface EventSpecPrefetchListener {
+    void onPrefetchComplete(int fetched, int withoutSpec, int failed);
+}
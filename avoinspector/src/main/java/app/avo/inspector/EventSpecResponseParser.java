@@ -0,0 +1,238 @@
+package app.avo.inspector;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams an event spec response straight into the runtime model with the platform JsonReader, without the
+ * intermediate JSONObject tree and wire objects. Lenient the same way as the JSONObject based parser:
+ * unknown fields and values of an unexpected type are skipped.
+ */
+class EventSpecResponseParser {
+
+    /**
+     * @return the parsed spec. Its shape is not checked, see {@link AvoEventSpecFetcher#hasExpectedShape(EventSpecResponse)}.
+     * @throws IOException if the body is not a JSON object
+     */
+    static EventSpecResponse parse(Reader body) throws IOException {
+        JsonReader json = new JsonReader(body);
+        try {
+            EventSpecResponse response = read(json);
+            if (json.peek() != JsonToken.END_DOCUMENT) {
+                throw new IOException("Unexpected content after the event spec response");
+            }
+            return response;
+        } catch (IllegalStateException e) {
+            // JsonReader reports a document that is not an object this way
+            throw new IOException("Event spec response is not a JSON object", e);
+        }
+    }
+
+    /**
+     * Reads a spec object, e.g. one nested in a persisted file.
+     *
+     * @throws IllegalStateException if the next value is not an object
+     */
+    static EventSpecResponse read(JsonReader json) throws IOException {
+        EventSpecResponse response = new EventSpecResponse();
+        response.events = new ArrayList<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("events".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                        response.events.add(readEntry(json));
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endArray();
+            } else if ("metadata".equals(name) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                response.metadata = readMetadata(json);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return response;
+    }
+
+    private static EventSpecMetadata readMetadata(JsonReader json) throws IOException {
+        EventSpecMetadata metadata = new EventSpecMetadata();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "schemaId":
+                    metadata.schemaId = readString(json, null);
+                    break;
+                case "branchId":
+                    metadata.branchId = readString(json, null);
+                    break;
+                case "latestActionId":
+                    metadata.latestActionId = readString(json, null);
+                    break;
+                case "sourceId":
+                    metadata.sourceId = readString(json, null);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return metadata;
+    }
+
+    private static EventSpecEntry readEntry(JsonReader json) throws IOException {
+        EventSpecEntry entry = new EventSpecEntry();
+        entry.variantIds = new ArrayList<>();
+        entry.props = new HashMap<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "b":
+                    entry.branchId = readString(json, null);
+                    break;
+                case "id":
+                    entry.baseEventId = readString(json, null);
+                    break;
+                case "vids":
+                    entry.variantIds = readStringList(json);
+                    break;
+                case "p":
+                    entry.props = readConstraintsMap(json);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return entry;
+    }
+
+    private static Map<String, PropertyConstraints> readConstraintsMap(JsonReader json) throws IOException {
+        Map<String, PropertyConstraints> result = new HashMap<>();
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return result;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                result.put(name, readConstraints(json));
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return result;
+    }
+
+    private static PropertyConstraints readConstraints(JsonReader json) throws IOException {
+        PropertyConstraints constraints = new PropertyConstraints();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "t":
+                    constraints.type = readString(json, null);
+                    break;
+                case "r":
+                    constraints.required = readBoolean(json);
+                    break;
+                case "l":
+                    constraints.isList = readBoolean(json);
+                    break;
+                case "p":
+                    constraints.pinnedValues = readStringListMap(json);
+                    break;
+                case "v":
+                    constraints.allowedValues = readStringListMap(json);
+                    break;
+                case "rx":
+                    constraints.regexPatterns = readStringListMap(json);
+                    break;
+                case "minmax":
+                    constraints.minMaxRanges = readStringListMap(json);
+                    break;
+                case "children":
+                    constraints.children = readConstraintsMap(json);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return constraints;
+    }
+
+    private static Map<String, List<String>> readStringListMap(JsonReader json) throws IOException {
+        Map<String, List<String>> result = new HashMap<>();
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return result;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (json.peek() == JsonToken.BEGIN_ARRAY) {
+                result.put(name, readStringList(json));
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return result;
+    }
+
+    private static List<String> readStringList(JsonReader json) throws IOException {
+        List<String> result = new ArrayList<>();
+        if (json.peek() != JsonToken.BEGIN_ARRAY) {
+            json.skipValue();
+            return result;
+        }
+        json.beginArray();
+        while (json.hasNext()) {
+            result.add(readString(json, ""));
+        }
+        json.endArray();
+        return result;
+    }
+
+    // Scalars are read as text and anything else as the fallback, like JSONObject.optString
+    @Nullable
+    private static String readString(JsonReader json, @Nullable String fallback) throws IOException {
+        JsonToken token = json.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return json.nextString();
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(json.nextBoolean());
+        }
+        json.skipValue();
+        return fallback;
+    }
+
+    // Like JSONObject.optBoolean: true for true and "true", false for anything else
+    private static boolean readBoolean(JsonReader json) throws IOException {
+        JsonToken token = json.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return json.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            return "true".equalsIgnoreCase(json.nextString());
+        }
+        json.skipValue();
+        return false;
+    }
+}
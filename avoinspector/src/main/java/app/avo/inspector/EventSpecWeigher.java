@@ -0,0 +1,104 @@
+package app.avo.inspector;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the heap retained by an event spec, for the memory budget of the event spec cache.
+ * The figures are rough upper bounds of the object layouts on ART, not exact measurements.
+ */
+class EventSpecWeigher {
+
+    private static final int OBJECT = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING = OBJECT + 24;
+    private static final int LIST = OBJECT + 24;
+    private static final int MAP = OBJECT + 40;
+    private static final int MAP_ENTRY = OBJECT + 16 + 2 * REFERENCE;
+    // A compiled RE2J program holds a few instructions per character of its pattern
+    private static final int REGEX_CHAR = 3 * (OBJECT + 8);
+    // A typed value of a ValueSet: hash set entry plus the parsed forms
+    private static final int TYPED_VALUE = MAP_ENTRY + 20;
+
+    static long weigh(@Nullable EventSpecResponse spec) {
+        if (spec == null) {
+            return OBJECT;
+        }
+        long weight = OBJECT + 2 * REFERENCE;
+        if (spec.metadata != null) {
+            weight += OBJECT + weigh(spec.metadata.schemaId) + weigh(spec.metadata.branchId)
+                    + weigh(spec.metadata.latestActionId) + weigh(spec.metadata.sourceId);
+        }
+        if (spec.events != null) {
+            weight += LIST + REFERENCE * spec.events.size();
+            for (EventSpecEntry entry : spec.events) {
+                weight += weigh(entry);
+            }
+        }
+        return weight;
+    }
+
+    private static long weigh(@Nullable EventSpecEntry entry) {
+        if (entry == null) {
+            return 0;
+        }
+        return OBJECT + 4 * REFERENCE + weigh(entry.branchId) + weigh(entry.baseEventId)
+                + weighStrings(entry.variantIds) + weighConstraints(entry.props);
+    }
+
+    private static long weighConstraints(@Nullable Map<String, PropertyConstraints> props) {
+        if (props == null) {
+            return 0;
+        }
+        long weight = MAP + (long) MAP_ENTRY * props.size();
+        for (Map.Entry<String, PropertyConstraints> prop : props.entrySet()) {
+            weight += weigh(prop.getKey());
+            PropertyConstraints constraints = prop.getValue();
+            if (constraints == null) {
+                continue;
+            }
+            weight += OBJECT + 8 * REFERENCE + weigh(constraints.type)
+                    + weighStringLists(constraints.pinnedValues) + weighStringLists(constraints.allowedValues)
+                    + weighStringLists(constraints.regexPatterns) + weighStringLists(constraints.minMaxRanges)
+                    + weighConstraints(constraints.children);
+        }
+        return weight;
+    }
+
+    private static long weighStringLists(@Nullable Map<String, List<String>> map) {
+        if (map == null) {
+            return 0;
+        }
+        long weight = MAP + (long) MAP_ENTRY * map.size();
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            weight += weigh(entry.getKey()) + weighStrings(entry.getValue());
+        }
+        return weight;
+    }
+
+    private static long weighStrings(@Nullable List<String> strings) {
+        if (strings == null) {
+            return 0;
+        }
+        long weight = LIST + (long) REFERENCE * strings.size();
+        for (String string : strings) {
+            weight += weigh(string);
+        }
+        return weight;
+    }
+
+    static long weighRegex(String pattern) {
+        return OBJECT + weigh(pattern) + (long) REGEX_CHAR * pattern.length();
+    }
+
+    static long weighAllowedValues(String json, ValueSet values) {
+        // The values are about as long as their JSON array
+        return OBJECT + 2 * weigh(json) + (long) TYPED_VALUE * values.size();
+    }
+
+    private static long weigh(@Nullable String string) {
+        return string != null ? STRING + 2L * string.length() : 0;
+    }
+}
@@ -0,0 +1,198 @@
+package app.avo.inspector;
+
+import org.json.JSONArray;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.re2j.Pattern;
+
+/**
+ * State of event validation that belongs to one inspector: the caches shared by the validation plans
+ * compiled for it, and the limits of each validation and of the plans' memos. Held by its EventSpecCache, and reached by
+ * validation through each plan.
+ */
+final class EventValidationContext {
+
+    /**
+     * Default nesting depth for recursive value validation.
+     * We validate prop (depth 0), prop.child1 (depth 1), but NOT prop.child1.child2 (depth 2+).
+     */
+    static final int DEFAULT_MAX_DEPTH = 2;
+
+    static final int DEFAULT_MAX_NODES = 10_000;
+
+    static final long DEFAULT_TIME_BUDGET_MS = 20;
+
+    static final int DEFAULT_MAX_MEMOIZED_RESULTS = 128;
+
+    static final int DEFAULT_MAX_REGEX_ENTRIES = 256;
+
+    static final long DEFAULT_MAX_REGEX_WEIGHT_BYTES = 512 * 1024;
+
+    static final int DEFAULT_MAX_ALLOWED_VALUES_ENTRIES = 256;
+
+    static final long DEFAULT_MAX_ALLOWED_VALUES_WEIGHT_BYTES = 512 * 1024;
+
+    static final int DEFAULT_MAX_REGEX_MATCH_ENTRIES = 256;
+
+    /**
+     * Longer values are matched every time: they are rarely repeated and would crowd out the enum-like ones.
+     */
+    static final int MAX_CACHED_MATCH_VALUE_LENGTH = 64;
+
+    /**
+     * Cache for compiled regex patterns, shared by the validation plans of all specs.
+     * Plans keep their own patterns, so evicting one only costs a compilation for the next plan that uses it.
+     */
+    private final BoundedLruCache<String, Pattern> regexCache = new BoundedLruCache<>(
+            DEFAULT_MAX_REGEX_ENTRIES, DEFAULT_MAX_REGEX_WEIGHT_BYTES,
+            (pattern, regex) -> EventSpecWeigher.weighRegex(pattern));
+
+    /**
+     * Cache for parsed allowed values JSON, shared by the validation plans of all specs.
+     * Key: JSON string, Value: the allowed values with their typed forms.
+     */
+    private final BoundedLruCache<String, ValueSet> allowedValuesCache = new BoundedLruCache<>(
+            DEFAULT_MAX_ALLOWED_VALUES_ENTRIES, DEFAULT_MAX_ALLOWED_VALUES_WEIGHT_BYTES,
+            EventSpecWeigher::weighAllowedValues);
+
+    /**
+     * Results of matching short string values against regex constraints.
+     * Key: pattern and value, Value: whether the value matches.
+     */
+    private final BoundedLruCache<RegexMatch, Boolean> regexMatchCache = new BoundedLruCache<>(
+            DEFAULT_MAX_REGEX_MATCH_ENTRIES, Long.MAX_VALUE, (match, matches) -> 0);
+
+    volatile int maxDepth = DEFAULT_MAX_DEPTH;
+    volatile int maxNodes = DEFAULT_MAX_NODES;
+    volatile long timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_BUDGET_MS);
+
+    // Validations that ran out of budget, for monitoring
+    final AtomicLong partialValidations = new AtomicLong();
+
+    volatile int maxMemoizedResults = DEFAULT_MAX_MEMOIZED_RESULTS;
+
+    /**
+     * Clears the caches. Called when the event spec cache is cleared or trimmed.
+     */
+    void clearCaches() {
+        regexCache.clear();
+        allowedValuesCache.clear();
+        regexMatchCache.clear();
+    }
+
+    /**
+     * Number of regex match results kept, 0 to always run the regex.
+     */
+    void setRegexMatchCacheSize(int maxEntries) {
+        regexMatchCache.setLimits(maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * Limits of a single validateEvent call: the nesting depth of the validated values, and a budget of
+     * values checked and of time. A validation that runs out of budget returns a partial result.
+     */
+    void setLimits(int maxDepth, int maxNodes, long timeBudgetMillis) {
+        this.maxDepth = Math.max(1, maxDepth);
+        this.maxNodes = Math.max(1, maxNodes);
+        this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeBudgetMillis));
+    }
+
+    /**
+     * Number of validations that ran out of budget since this context was created.
+     */
+    long partialValidationCount() {
+        return partialValidations.get();
+    }
+
+    /**
+     * Number of results memoized per plan, 0 to validate every value. Applies to plans compiled afterwards.
+     */
+    void setMaxMemoizedResults(int maxResults) {
+        maxMemoizedResults = Math.max(0, maxResults);
+    }
+
+    /**
+     * Gets a compiled regex from cache or compiles and caches it.
+     */
+    Pattern getOrCompileRegex(String pattern) {
+        Pattern regex = regexCache.get(pattern);
+        if (regex == null) {
+            regex = Pattern.compile(pattern);
+            regexCache.put(pattern, regex);
+        }
+        return regex;
+    }
+
+    // Note: getOrCompileRegex and getOrParseAllowedValues don't hold the cache lock while
+    // compiling or parsing. The minor race on double-put for the same key is benign since
+    // both threads compute the same value.
+
+    /**
+     * Parses allowed values JSON string into a ValueSet.
+     * Results are cached to avoid repeated JSON.parse calls.
+     *
+     * @return the allowed values, or null if JSON is invalid
+     */
+    ValueSet getOrParseAllowedValues(String jsonString) {
+        ValueSet allowedSet = allowedValuesCache.get(jsonString);
+        if (allowedSet == null) {
+            try {
+                JSONArray jsonArray = new JSONArray(jsonString);
+                Set<String> parsed = new HashSet<>();
+                for (int i = 0; i < jsonArray.length(); i++) {
+                    parsed.add(jsonArray.getString(i));
+                }
+                allowedSet = ValueSet.of(parsed);
+                allowedValuesCache.put(jsonString, allowedSet);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return allowedSet;
+    }
+
+    boolean matches(Pattern regex, String value) {
+        if (value.length() > MAX_CACHED_MATCH_VALUE_LENGTH) {
+            return regex.matcher(value).find();
+        }
+        RegexMatch match = new RegexMatch(regex.pattern(), value);
+        Boolean cached = regexMatchCache.get(match);
+        if (cached != null) {
+            return cached;
+        }
+        boolean matches = regex.matcher(value).find();
+        regexMatchCache.put(match, matches);
+        return matches;
+    }
+
+    private static final class RegexMatch {
+        final String pattern;
+        final String value;
+
+        RegexMatch(String pattern, String value) {
+            this.pattern = pattern;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RegexMatch)) {
+                return false;
+            }
+            RegexMatch other = (RegexMatch) obj;
+            return pattern.equals(other.pattern) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pattern.hashCode() + value.hashCode();
+        }
+    }
+}
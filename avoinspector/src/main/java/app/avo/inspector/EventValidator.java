@@ -6,9 +6,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import com.google.re2j.Pattern;
-import com.google.re2j.PatternSyntaxException;
 
 /**
  * EventValidator - Client-side validation of tracking events against the Avo Tracking Plan.
@@ -26,42 +24,13 @@ class EventValidator {
 
     private static final String TAG = "AvoInspector";
 
-    /**
-     * Maximum nesting depth for recursive value validation.
-     * We validate prop (depth 0), prop.child1 (depth 1), but NOT prop.child1.child2 (depth 2+).
-     */
-    private static final int MAX_CHILD_DEPTH = 2;
-
-    /**
-     * Cache for compiled regex patterns to avoid recompilation on every event.
-     */
-    private static final Map<String, Pattern> regexCache = new ConcurrentHashMap<>();
-
-    /**
-     * Cache for parsed allowed values JSON.
-     * Key: JSON string, Value: Set of allowed values for O(1) lookup.
-     */
-    private static final Map<String, Set<String>> allowedValuesCache = new ConcurrentHashMap<>();
-
-    /**
-     * Clears static caches. Used in testing to prevent cross-test contamination.
-     */
-    static void clearCaches() {
-        regexCache.clear();
-        allowedValuesCache.clear();
-    }
-
     // =========================================================================
     // MAIN VALIDATION FUNCTION
     // =========================================================================
 
     /**
      * Validates runtime properties against all events in the EventSpecResponse.
-     *
-     * For each property:
-     * - If property not in spec: no validation needed (empty result)
-     * - If property in spec: check constraints and collect failed/passed eventIds
-     * - Return whichever list is smaller for bandwidth optimization
+     * Compiles the spec first, prefer {@link #validateEvent(Map, ValidationPlan)} with a cached plan.
      *
      * @param properties   The properties observed at runtime
      * @param specResponse The EventSpecResponse from the backend
@@ -69,240 +38,57 @@ class EventValidator {
      */
     public static ValidationResult validateEvent(Map<String, ?> properties,
                                                  EventSpecResponse specResponse) {
-        List<EventSpecEntry> events = specResponse.events != null
-                ? specResponse.events : Collections.<EventSpecEntry>emptyList();
-
-        List<String> allEventIds = collectAllEventIds(events);
-
-        Map<String, PropertyConstraints> constraintsByProperty =
-                collectConstraintsByPropertyName(events);
+        return validateEvent(properties, ValidationPlan.compile(specResponse));
+    }
 
+    /**
+     * Validates runtime properties against the compiled events of a spec.
+     *
+     * For each property:
+     * - If property not in spec: no validation needed (empty result)
+     * - If property in spec: check constraints and collect failed/passed eventIds
+     * - Return whichever list is smaller for bandwidth optimization
+     *
+     * When the budget runs out, the properties that were not fully validated get an empty result
+     * and the result is marked partial.
+     *
+     * @param properties The properties observed at runtime
+     * @param plan       The compiled EventSpecResponse from the backend
+     * @return ValidationResult with metadata and per-property results
+     */
+    public static ValidationResult validateEvent(Map<String, ?> properties, ValidationPlan plan) {
         Map<String, PropertyValidationResult> propertyResults = new HashMap<>();
+        Budget budget = new Budget(plan.context);
 
         for (String propName : properties.keySet()) {
             Object value = properties.get(propName);
-            PropertyConstraints constraints = constraintsByProperty.get(propName);
+            ValidationPlan.Property constraints = plan.properties.get(propName);
 
-            if (constraints == null) {
+            if (constraints == null || budget.exhausted) {
                 // Property not in spec - no constraints to fail
                 propertyResults.put(propName, new PropertyValidationResult());
             } else {
                 PropertyValidationResult result =
-                        validatePropertyConstraints(value, constraints, allEventIds, 0);
-                propertyResults.put(propName, result);
+                        validatePropertyConstraints(value, constraints, plan, 0, budget);
+                // A property cut short could report passes for values that were never checked
+                propertyResults.put(propName, budget.exhausted ? new PropertyValidationResult() : result);
             }
         }
 
         ValidationResult result = new ValidationResult();
-        result.metadata = specResponse.metadata;
+        result.metadata = plan.metadata;
         result.propertyResults = propertyResults;
-        return result;
-    }
-
-    // =========================================================================
-    // HELPER FUNCTIONS
-    // =========================================================================
-
-    /**
-     * Collects all eventIds (baseEventId + variantIds) from all events.
-     */
-    private static List<String> collectAllEventIds(List<EventSpecEntry> events) {
-        List<String> ids = new ArrayList<>();
-        for (EventSpecEntry event : events) {
-            ids.add(event.baseEventId);
-            for (String variantId : event.variantIds) {
-                ids.add(variantId);
-            }
-        }
-        return ids;
-    }
-
-    /**
-     * Collects all property constraints from all events into a single lookup table.
-     *
-     * When multiple events define the same property, their constraint mappings
-     * (pinnedValues, allowedValues, etc.) are merged by unioning the eventId arrays.
-     */
-    private static Map<String, PropertyConstraints> collectConstraintsByPropertyName(
-            List<EventSpecEntry> events) {
-        if (events.isEmpty()) {
-            return new HashMap<>();
-        }
-
-        // Fast path: single event, return props directly
-        if (events.size() == 1) {
-            return events.get(0).props;
-        }
-
-        // Multiple events: aggregate constraints
-        Map<String, PropertyConstraints> result = new HashMap<>();
-
-        for (EventSpecEntry event : events) {
-            for (Map.Entry<String, PropertyConstraints> propEntry : event.props.entrySet()) {
-                String propName = propEntry.getKey();
-                PropertyConstraints constraints = propEntry.getValue();
-
-                if (!result.containsKey(propName)) {
-                    // First time seeing this property - deep copy
-                    PropertyConstraints copy = new PropertyConstraints();
-                    copy.type = constraints.type;
-                    copy.required = constraints.required;
-                    copy.isList = constraints.isList;
-                    copy.pinnedValues = constraints.pinnedValues != null
-                            ? deepCopyConstraintMapping(constraints.pinnedValues) : null;
-                    copy.allowedValues = constraints.allowedValues != null
-                            ? deepCopyConstraintMapping(constraints.allowedValues) : null;
-                    copy.regexPatterns = constraints.regexPatterns != null
-                            ? deepCopyConstraintMapping(constraints.regexPatterns) : null;
-                    copy.minMaxRanges = constraints.minMaxRanges != null
-                            ? deepCopyConstraintMapping(constraints.minMaxRanges) : null;
-                    copy.children = constraints.children != null
-                            ? deepCopyChildren(constraints.children) : null;
-                    result.put(propName, copy);
-                } else {
-                    // Merge constraint mappings from additional events
-                    PropertyConstraints existing = result.get(propName);
-                    mergeConstraintMappings(existing, constraints);
-                    // Recursively merge nested children
-                    if (constraints.children != null) {
-                        if (existing.children == null) {
-                            existing.children = deepCopyChildren(constraints.children);
-                        } else {
-                            mergeChildren(existing.children, constraints.children);
-                        }
-                    }
-                }
+        if (budget.exhausted) {
+            result.partial = true;
+            plan.context.partialValidations.incrementAndGet();
+            if (AvoInspector.isLogging()) {
+                Log.w(TAG, "Validation stopped early after " + budget.visitedNodes
+                        + " values. Reporting a partial result.");
             }
         }
-
-        return result;
-    }
-
-    // =========================================================================
-    // DEEP COPY HELPERS
-    // =========================================================================
-
-    /**
-     * Deep copies a constraint mapping (pinnedValues, allowedValues, etc.),
-     * including the arrays inside to avoid shared references.
-     */
-    private static Map<String, List<String>> deepCopyConstraintMapping(
-            Map<String, List<String>> mapping) {
-        Map<String, List<String>> result = new HashMap<>();
-        for (Map.Entry<String, List<String>> entry : mapping.entrySet()) {
-            result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
-        }
-        return result;
-    }
-
-    /**
-     * Deep copies children constraints recursively.
-     */
-    private static Map<String, PropertyConstraints> deepCopyChildren(
-            Map<String, PropertyConstraints> children) {
-        Map<String, PropertyConstraints> result = new HashMap<>();
-        for (Map.Entry<String, PropertyConstraints> entry : children.entrySet()) {
-            PropertyConstraints constraints = entry.getValue();
-            PropertyConstraints copy = new PropertyConstraints();
-            copy.type = constraints.type;
-            copy.required = constraints.required;
-            copy.isList = constraints.isList;
-            copy.pinnedValues = constraints.pinnedValues != null
-                    ? deepCopyConstraintMapping(constraints.pinnedValues) : null;
-            copy.allowedValues = constraints.allowedValues != null
-                    ? deepCopyConstraintMapping(constraints.allowedValues) : null;
-            copy.regexPatterns = constraints.regexPatterns != null
-                    ? deepCopyConstraintMapping(constraints.regexPatterns) : null;
-            copy.minMaxRanges = constraints.minMaxRanges != null
-                    ? deepCopyConstraintMapping(constraints.minMaxRanges) : null;
-            copy.children = constraints.children != null
-                    ? deepCopyChildren(constraints.children) : null;
-            result.put(entry.getKey(), copy);
-        }
         return result;
     }
 
-    // =========================================================================
-    // MERGE HELPERS
-    // =========================================================================
-
-    /**
-     * Merges constraint mappings (pinnedValues, allowedValues, etc.) from source into target.
-     */
-    private static void mergeConstraintMappings(PropertyConstraints target,
-                                                PropertyConstraints source) {
-        target.pinnedValues = mergeMapping(target.pinnedValues, source.pinnedValues);
-        target.allowedValues = mergeMapping(target.allowedValues, source.allowedValues);
-        target.regexPatterns = mergeMapping(target.regexPatterns, source.regexPatterns);
-        target.minMaxRanges = mergeMapping(target.minMaxRanges, source.minMaxRanges);
-    }
-
-    /**
-     * Merges a single constraint mapping from source into target,
-     * unioning the eventId arrays for each constraint key.
-     */
-    private static Map<String, List<String>> mergeMapping(
-            Map<String, List<String>> target, Map<String, List<String>> source) {
-        if (source == null) {
-            return target;
-        }
-        if (target == null) {
-            target = new HashMap<>();
-        }
-        for (Map.Entry<String, List<String>> entry : source.entrySet()) {
-            String key = entry.getKey();
-            List<String> sourceIds = entry.getValue();
-            if (target.containsKey(key)) {
-                Set<String> merged = new LinkedHashSet<>(target.get(key));
-                merged.addAll(sourceIds);
-                target.put(key, new ArrayList<>(merged));
-            } else {
-                target.put(key, new ArrayList<>(sourceIds));
-            }
-        }
-        return target;
-    }
-
-    /**
-     * Merges children constraints from source into target recursively.
-     */
-    private static void mergeChildren(Map<String, PropertyConstraints> target,
-                                      Map<String, PropertyConstraints> source) {
-        for (Map.Entry<String, PropertyConstraints> entry : source.entrySet()) {
-            String propName = entry.getKey();
-            PropertyConstraints sourceConstraints = entry.getValue();
-
-            if (!target.containsKey(propName)) {
-                // New child property - deep copy
-                PropertyConstraints copy = new PropertyConstraints();
-                copy.type = sourceConstraints.type;
-                copy.required = sourceConstraints.required;
-                copy.isList = sourceConstraints.isList;
-                copy.pinnedValues = sourceConstraints.pinnedValues != null
-                        ? deepCopyConstraintMapping(sourceConstraints.pinnedValues) : null;
-                copy.allowedValues = sourceConstraints.allowedValues != null
-                        ? deepCopyConstraintMapping(sourceConstraints.allowedValues) : null;
-                copy.regexPatterns = sourceConstraints.regexPatterns != null
-                        ? deepCopyConstraintMapping(sourceConstraints.regexPatterns) : null;
-                copy.minMaxRanges = sourceConstraints.minMaxRanges != null
-                        ? deepCopyConstraintMapping(sourceConstraints.minMaxRanges) : null;
-                copy.children = sourceConstraints.children != null
-                        ? deepCopyChildren(sourceConstraints.children) : null;
-                target.put(propName, copy);
-            } else {
-                PropertyConstraints targetConstraints = target.get(propName);
-                mergeConstraintMappings(targetConstraints, sourceConstraints);
-                if (sourceConstraints.children != null) {
-                    if (targetConstraints.children == null) {
-                        targetConstraints.children = deepCopyChildren(sourceConstraints.children);
-                    } else {
-                        mergeChildren(targetConstraints.children, sourceConstraints.children);
-                    }
-                }
-            }
-        }
-    }
-
     // =========================================================================
     // PROPERTY VALIDATION
     // =========================================================================
@@ -315,22 +101,22 @@ class EventValidator {
      * @param depth Current recursion depth (internal use)
      */
     private static PropertyValidationResult validatePropertyConstraints(
-            Object value, PropertyConstraints constraints,
-            List<String> allEventIds, int depth) {
+            Object value, ValidationPlan.Property constraints,
+            ValidationPlan plan, int depth, Budget budget) {
 
-        // Stop recursion at depth 2+
-        if (depth >= MAX_CHILD_DEPTH) {
+        // Stop recursion at the depth limit
+        if (depth >= budget.depthLimit) {
             return new PropertyValidationResult();
         }
 
         // Handle list types (isList=true)
-        if (constraints.isList != null && constraints.isList) {
-            return validateListProperty(value, constraints, allEventIds, depth);
+        if (constraints.isList) {
+            return validateListProperty(value, constraints, plan, depth, budget);
         }
 
         // Handle nested object properties with children (single object, not list)
         if (constraints.children != null) {
-            return validateObjectProperty(value, constraints, allEventIds, depth);
+            return validateObjectProperty(value, constraints, plan, depth, budget);
         }
 
         // For primitive properties: skip validation for null on non-required properties
@@ -339,41 +125,34 @@ class EventValidator {
         }
 
         // Validate value constraints for primitive properties
-        return validatePrimitiveProperty(value, constraints, allEventIds);
+        return validatePrimitiveProperty(value, constraints, plan, budget);
     }
 
     /**
      * Validates a primitive property (not list, not object with children).
      */
     private static PropertyValidationResult validatePrimitiveProperty(
-            Object value, PropertyConstraints constraints, List<String> allEventIds) {
-        Set<String> failedIds = new HashSet<>();
-
-        if (constraints.pinnedValues != null) {
-            checkPinnedValues(value, constraints.pinnedValues, failedIds);
-        }
-
-        if (constraints.allowedValues != null) {
-            checkAllowedValues(value, constraints.allowedValues, failedIds);
-        }
-
-        if (constraints.regexPatterns != null) {
-            checkRegexPatterns(value, constraints.regexPatterns, failedIds);
+            Object value, ValidationPlan.Property constraints, ValidationPlan plan, Budget budget) {
+        if (!budget.visit()) {
+            return new PropertyValidationResult();
         }
-
-        if (constraints.minMaxRanges != null) {
-            checkMinMaxRanges(value, constraints.minMaxRanges, failedIds);
+        PropertyValidationResult memoized = plan.memoizedResult(constraints, value);
+        if (memoized != null) {
+            return memoized;
         }
-
-        return buildValidationResult(failedIds, allEventIds);
+        BitSet failedIds = new BitSet();
+        checkValueConstraints(value, constraints, plan, failedIds);
+        PropertyValidationResult result = buildValidationResult(failedIds, plan);
+        plan.memoizeResult(constraints, value, result);
+        return result;
     }
 
     /**
      * Validates an object property (single object with children).
      */
     private static PropertyValidationResult validateObjectProperty(
-            Object value, PropertyConstraints constraints,
-            List<String> allEventIds, int depth) {
+            Object value, ValidationPlan.Property constraints,
+            ValidationPlan plan, int depth, Budget budget) {
         PropertyValidationResult result = new PropertyValidationResult();
         if (constraints.children == null || constraints.children.isEmpty()) {
             return result;
@@ -382,15 +161,18 @@ class EventValidator {
 
         @SuppressWarnings("unchecked")
         Map<String, Object> valueObj = (value instanceof Map) ? (Map<String, Object>) value
-                : new HashMap<>();
+                : Collections.<String, Object>emptyMap();
 
-        for (Map.Entry<String, PropertyConstraints> childEntry : constraints.children.entrySet()) {
+        for (Map.Entry<String, ValidationPlan.Property> childEntry : constraints.children.entrySet()) {
+            if (budget.exhausted) {
+                break;
+            }
             String childName = childEntry.getKey();
-            PropertyConstraints childConstraints = childEntry.getValue();
+            ValidationPlan.Property childConstraints = childEntry.getValue();
             Object childValue = valueObj.get(childName);
 
             PropertyValidationResult childResult =
-                    validatePropertyConstraints(childValue, childConstraints, allEventIds, depth + 1);
+                    validatePropertyConstraints(childValue, childConstraints, plan, depth + 1, budget);
 
             // Only include non-empty results
             if (childResult.failedEventIds != null || childResult.passedEventIds != null
@@ -412,8 +194,8 @@ class EventValidator {
      * For list of primitives: validates each item against constraints.
      */
     private static PropertyValidationResult validateListProperty(
-            Object value, PropertyConstraints constraints,
-            List<String> allEventIds, int depth) {
+            Object value, ValidationPlan.Property constraints,
+            ValidationPlan plan, int depth, Budget budget) {
         PropertyValidationResult result = new PropertyValidationResult();
 
         // If value is not a List, we can't validate list items
@@ -426,90 +208,103 @@ class EventValidator {
 
         // List of objects with children
         if (constraints.children != null) {
-            Map<String, PropertyValidationResult> childrenResults = new HashMap<>();
-
-            for (Map.Entry<String, PropertyConstraints> childEntry : constraints.children.entrySet()) {
-                String childName = childEntry.getKey();
-                PropertyConstraints childConstraints = childEntry.getValue();
-                Set<String> aggregatedFailedIds = new HashSet<>();
-
-                for (Object item : listValue) {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> itemObj = (item instanceof Map)
-                            ? (Map<String, Object>) item : new HashMap<>();
-                    Object childValue = itemObj.get(childName);
-                    PropertyValidationResult childResult =
-                            validatePropertyConstraints(childValue, childConstraints, allEventIds, depth + 1);
-
-                    // Collect failed IDs from this item
-                    if (childResult.failedEventIds != null) {
-                        aggregatedFailedIds.addAll(childResult.failedEventIds);
-                    }
-                    // If passedEventIds is returned, failed = allEventIds - passedEventIds
-                    if (childResult.passedEventIds != null) {
-                        Set<String> passedSet = new HashSet<>(childResult.passedEventIds);
-                        for (String id : allEventIds) {
-                            if (!passedSet.contains(id)) {
-                                aggregatedFailedIds.add(id);
-                            }
-                        }
-                    }
-                }
-
-                // Build result for this child property
-                if (!aggregatedFailedIds.isEmpty()) {
-                    List<String> failedArray = new ArrayList<>(aggregatedFailedIds);
-                    List<String> passedIds = new ArrayList<>();
-                    for (String id : allEventIds) {
-                        if (!aggregatedFailedIds.contains(id)) {
-                            passedIds.add(id);
-                        }
-                    }
-
-                    if (passedIds.size() < failedArray.size() && !passedIds.isEmpty()) {
-                        PropertyValidationResult childResult = new PropertyValidationResult();
-                        childResult.passedEventIds = passedIds;
-                        childrenResults.put(childName, childResult);
-                    } else {
-                        PropertyValidationResult childResult = new PropertyValidationResult();
-                        childResult.failedEventIds = failedArray;
-                        childrenResults.put(childName, childResult);
-                    }
-                }
-            }
-
+            Map<String, PropertyValidationResult> childrenResults =
+                    validateListItemChildren(listValue, constraints.children, plan, depth, budget);
             if (!childrenResults.isEmpty()) {
                 result.children = childrenResults;
             }
-
             return result;
         }
 
         // List of primitives - validate each item against constraints
-        Set<String> failedIds = new HashSet<>();
+        BitSet failedIds = new BitSet();
+        collectListItemsFailedIds(listValue, constraints, plan, failedIds, budget);
+        return buildValidationResult(failedIds, plan);
+    }
 
-        for (Object item : listValue) {
-            if (constraints.pinnedValues != null) {
-                checkPinnedValues(item, constraints.pinnedValues, failedIds);
-            }
-            if (constraints.allowedValues != null) {
-                checkAllowedValues(item, constraints.allowedValues, failedIds);
+    /**
+     * Validates the children of every object of a list in a single pass over the items,
+     * aggregating the failed IDs of each child across items.
+     * A child is no longer checked once every eventId of its constraints has failed, and the pass
+     * stops once that is true of all children.
+     */
+    private static Map<String, PropertyValidationResult> validateListItemChildren(
+            List<Object> listValue, Map<String, ValidationPlan.Property> children,
+            ValidationPlan plan, int depth, Budget budget) {
+        int childCount = children.size();
+        String[] names = new String[childCount];
+        ValidationPlan.Property[] properties = new ValidationPlan.Property[childCount];
+        BitSet[] aggregatedFailedIds = new BitSet[childCount];
+        // eventIds of each child that have not failed yet, null once there are none left
+        BitSet[] remainingIds = new BitSet[childCount];
+        int remainingChildren = 0;
+
+        int i = 0;
+        for (Map.Entry<String, ValidationPlan.Property> childEntry : children.entrySet()) {
+            names[i] = childEntry.getKey();
+            properties[i] = childEntry.getValue();
+            aggregatedFailedIds[i] = new BitSet();
+            if (canReportFailures(properties[i], depth + 1, budget)) {
+                remainingIds[i] = (BitSet) properties[i].constraintIds.clone();
+                remainingChildren++;
             }
-            if (constraints.regexPatterns != null) {
-                checkRegexPatterns(item, constraints.regexPatterns, failedIds);
+            i++;
+        }
+
+        BitSet itemFailedIds = new BitSet();
+        for (Object item : listValue) {
+            if (remainingChildren == 0 || budget.exhausted) {
+                break;
             }
-            if (constraints.minMaxRanges != null) {
-                checkMinMaxRanges(item, constraints.minMaxRanges, failedIds);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> itemObj = (item instanceof Map)
+                    ? (Map<String, Object>) item : Collections.<String, Object>emptyMap();
+            for (i = 0; i < childCount; i++) {
+                if (remainingIds[i] == null) {
+                    continue;
+                }
+                itemFailedIds.clear();
+                if (!collectReportedFailedIds(itemObj.get(names[i]), properties[i], plan, itemFailedIds, budget)) {
+                    continue;
+                }
+                aggregatedFailedIds[i].or(itemFailedIds);
+                remainingIds[i].andNot(itemFailedIds);
+                if (remainingIds[i].isEmpty()) {
+                    remainingIds[i] = null;
+                    remainingChildren--;
+                }
             }
         }
 
-        return buildValidationResult(failedIds, allEventIds);
+        Map<String, PropertyValidationResult> childrenResults = new HashMap<>();
+        for (i = 0; i < childCount; i++) {
+            if (!aggregatedFailedIds[i].isEmpty()) {
+                childrenResults.put(names[i], buildValidationResult(aggregatedFailedIds[i], plan));
+            }
+        }
+        return childrenResults;
     }
 
     // =========================================================================
     // CONSTRAINT VALIDATION FUNCTIONS
     // =========================================================================
 
+    private static void checkValueConstraints(Object value, ValidationPlan.Property constraints,
+                                              ValidationPlan plan, BitSet failedIds) {
+        if (!constraints.pinnedValues.isEmpty() || !constraints.allowedValues.isEmpty()) {
+            // Scalars are compared as they are, anything else by its JSON text, serialized once
+            Object comparable = ValueSet.isScalar(value) ? value : convertValueToString(value);
+            checkPinnedValues(comparable, constraints.pinnedValues, failedIds);
+            checkAllowedValues(comparable, constraints.allowedValues, failedIds);
+        }
+        if (!constraints.regexPatterns.isEmpty()) {
+            checkRegexPatterns(value, constraints.regexPatterns, plan, failedIds);
+        }
+        if (!constraints.minMaxRanges.isEmpty()) {
+            checkMinMaxRanges(value, constraints.minMaxRanges, failedIds);
+        }
+    }
+
     /**
      * Converts runtime value to string for comparison.
      * - null -> "null"
@@ -557,43 +352,31 @@ class EventValidator {
     /**
      * Checks pinned values constraint.
      * For each pinnedValue -> eventIds entry, if runtime value != pinnedValue, those eventIds FAIL.
+     *
+     * @param comparable the runtime value if it is a scalar, its string form otherwise
      */
-    private static void checkPinnedValues(Object value,
-                                          Map<String, List<String>> pinnedValues,
-                                          Set<String> failedIds) {
-        String stringValue = convertValueToString(value);
-
-        for (Map.Entry<String, List<String>> entry : pinnedValues.entrySet()) {
-            String pinnedValue = entry.getKey();
-            List<String> eventIds = entry.getValue();
-
-            if (!stringValue.equals(pinnedValue)) {
-                failedIds.addAll(eventIds);
+    private static void checkPinnedValues(Object comparable,
+                                          List<ValidationPlan.Constraint<ValueSet>> pinnedValues,
+                                          BitSet failedIds) {
+        for (ValidationPlan.Constraint<ValueSet> pinned : pinnedValues) {
+            if (!pinned.value.contains(comparable)) {
+                failedIds.or(pinned.eventIds);
             }
         }
     }
 
     /**
      * Checks allowed values constraint.
-     * For each "[...array]" -> eventIds entry, if runtime value NOT in array, those eventIds FAIL.
-     * Uses cached Set for O(1) lookup.
+     * For each allowed value set -> eventIds entry, if runtime value NOT in set, those eventIds FAIL.
+     *
+     * @param comparable the runtime value if it is a scalar, its string form otherwise
      */
-    private static void checkAllowedValues(Object value,
-                                           Map<String, List<String>> allowedValues,
-                                           Set<String> failedIds) {
-        String stringValue = convertValueToString(value);
-
-        for (Map.Entry<String, List<String>> entry : allowedValues.entrySet()) {
-            String allowedArrayJson = entry.getKey();
-            List<String> eventIds = entry.getValue();
-
-            Set<String> allowedSet = getOrParseAllowedValues(allowedArrayJson);
-            if (allowedSet == null) {
-                Log.w(TAG, "Invalid allowed values JSON: " + allowedArrayJson);
-                continue;
-            }
-            if (!allowedSet.contains(stringValue)) {
-                failedIds.addAll(eventIds);
+    private static void checkAllowedValues(Object comparable,
+                                           List<ValidationPlan.Constraint<ValueSet>> allowedValues,
+                                           BitSet failedIds) {
+        for (ValidationPlan.Constraint<ValueSet> allowed : allowedValues) {
+            if (!allowed.value.contains(comparable)) {
+                failedIds.or(allowed.eventIds);
             }
         }
     }
@@ -601,51 +384,42 @@ class EventValidator {
     /**
      * Checks regex pattern constraint.
      * For each pattern -> eventIds entry, if runtime value doesn't match pattern, those eventIds FAIL.
-     * Non-string values fail all regex constraints.
+     * Non-string values fail all regex constraints, invalid patterns included.
      */
     private static void checkRegexPatterns(Object value,
-                                           Map<String, List<String>> regexPatterns,
-                                           Set<String> failedIds) {
+                                           List<ValidationPlan.Constraint<Pattern>> regexPatterns,
+                                           ValidationPlan plan, BitSet failedIds) {
         // Only check regex for String values
         if (!(value instanceof String)) {
             // Non-string values fail all regex constraints
-            for (List<String> eventIds : regexPatterns.values()) {
-                failedIds.addAll(eventIds);
+            for (ValidationPlan.Constraint<Pattern> regex : regexPatterns) {
+                failedIds.or(regex.eventIds);
             }
             return;
         }
 
         String stringValue = (String) value;
 
-        for (Map.Entry<String, List<String>> entry : regexPatterns.entrySet()) {
-            String pattern = entry.getKey();
-            List<String> eventIds = entry.getValue();
-
-            try {
-                Pattern regex = getOrCompileRegex(pattern);
-                if (!regex.matcher(stringValue).find()) {
-                    failedIds.addAll(eventIds);
-                }
-            } catch (PatternSyntaxException e) {
-                Log.w(TAG, "Invalid regex pattern: " + pattern);
+        for (ValidationPlan.Constraint<Pattern> regex : regexPatterns) {
+            if (regex.value != null && !plan.context.matches(regex.value, stringValue)) {
+                failedIds.or(regex.eventIds);
             }
         }
     }
 
     /**
      * Checks min/max range constraint.
-     * For each "min,max" -> eventIds entry, if runtime value < min OR > max, those eventIds FAIL.
-     * Empty bounds: "0," means min=0 with no max, ",100" means no min with max=100.
-     * Non-numeric values fail all min/max constraints.
+     * For each {min, max} -> eventIds entry, if runtime value < min OR > max, those eventIds FAIL.
+     * Non-numeric values fail all min/max constraints, invalid ranges included.
      */
     private static void checkMinMaxRanges(Object value,
-                                          Map<String, List<String>> minMaxRanges,
-                                          Set<String> failedIds) {
+                                          List<ValidationPlan.Constraint<double[]>> minMaxRanges,
+                                          BitSet failedIds) {
         // Only check min/max for numeric values
         if (!(value instanceof Number)) {
             // Non-numeric values fail all min/max constraints
-            for (List<String> eventIds : minMaxRanges.values()) {
-                failedIds.addAll(eventIds);
+            for (ValidationPlan.Constraint<double[]> range : minMaxRanges) {
+                failedIds.or(range.eventIds);
             }
             return;
         }
@@ -655,41 +429,15 @@ class EventValidator {
         // NaN values fail all min/max constraints
         if (Double.isNaN(numericValue)) {
             Log.w(TAG, "NaN value fails min/max constraint");
-            for (List<String> eventIds : minMaxRanges.values()) {
-                failedIds.addAll(eventIds);
+            for (ValidationPlan.Constraint<double[]> range : minMaxRanges) {
+                failedIds.or(range.eventIds);
             }
             return;
         }
 
-        for (Map.Entry<String, List<String>> entry : minMaxRanges.entrySet()) {
-            String rangeStr = entry.getKey();
-            List<String> eventIds = entry.getValue();
-
-            String[] parts = rangeStr.split(",", -1);
-            String minStr = parts.length > 0 ? parts[0] : "";
-            String maxStr = parts.length > 1 ? parts[1] : "";
-
-            boolean hasMin = !minStr.isEmpty();
-            boolean hasMax = !maxStr.isEmpty();
-
-            double min;
-            double max;
-            try {
-                min = hasMin ? Double.parseDouble(minStr) : Double.NEGATIVE_INFINITY;
-                max = hasMax ? Double.parseDouble(maxStr) : Double.POSITIVE_INFINITY;
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "Invalid min/max range: " + rangeStr);
-                continue;
-            }
-
-            // Check for invalid format
-            if ((hasMin && Double.isNaN(min)) || (hasMax && Double.isNaN(max))) {
-                Log.w(TAG, "Invalid min/max range: " + rangeStr);
-                continue;
-            }
-
-            if (numericValue < min || numericValue > max) {
-                failedIds.addAll(eventIds);
+        for (ValidationPlan.Constraint<double[]> range : minMaxRanges) {
+            if (range.value != null && (numericValue < range.value[0] || numericValue > range.value[1])) {
+                failedIds.or(range.eventIds);
             }
         }
     }
@@ -701,74 +449,110 @@ class EventValidator {
     /**
      * Builds the validation result from failed IDs, returning whichever list is smaller.
      */
-    private static PropertyValidationResult buildValidationResult(
-            Set<String> failedIds, List<String> allEventIds) {
-        List<String> passedIds = new ArrayList<>();
-        for (String id : allEventIds) {
-            if (!failedIds.contains(id)) {
-                passedIds.add(id);
-            }
-        }
-        List<String> failedArray = new ArrayList<>(failedIds);
-
+    private static PropertyValidationResult buildValidationResult(BitSet failedIds, ValidationPlan plan) {
         PropertyValidationResult result = new PropertyValidationResult();
 
+        int failedCount = failedIds.cardinality();
+        int passedCount = plan.passedCount(failedIds);
+
         // If both are empty, return empty result
-        if (failedArray.isEmpty() && passedIds.isEmpty()) {
+        if (failedCount == 0 && passedCount == 0) {
             return result;
         }
 
         // Prefer passedEventIds only when strictly smaller than failedEventIds
         // When equal, prefer failedEventIds
-        if (passedIds.size() < failedArray.size() && !passedIds.isEmpty()) {
-            result.passedEventIds = passedIds;
-        } else if (!failedArray.isEmpty()) {
-            result.failedEventIds = failedArray;
+        if (passedCount < failedCount && passedCount > 0) {
+            result.passedEventIds = plan.passedEventIds(failedIds);
+        } else if (failedCount > 0) {
+            result.failedEventIds = plan.toEventIds(failedIds);
         }
 
         return result;
     }
 
-    // =========================================================================
-    // CACHE HELPERS
-    // =========================================================================
+    /**
+     * Whether validatePropertyConstraints can report failed or passed IDs for the property at this depth.
+     * Objects are left out: their results only have children.
+     */
+    private static boolean canReportFailures(ValidationPlan.Property constraints, int depth, Budget budget) {
+        return depth < budget.depthLimit && constraints.children == null && !constraints.constraintIds.isEmpty();
+    }
 
     /**
-     * Gets a compiled regex from cache or compiles and caches it.
+     * Adds the failed IDs of the result validatePropertyConstraints would report to failedIds, without building it.
+     * A passed list reports failures as the spec eventIds it leaves out.
+     * The caller checks canReportFailures first.
+     *
+     * @param failedIds empty
+     * @return false for a result without failed or passed IDs
      */
-    private static Pattern getOrCompileRegex(String pattern) {
-        Pattern regex = regexCache.get(pattern);
-        if (regex == null) {
-            regex = Pattern.compile(pattern);
-            regexCache.put(pattern, regex);
-        }
-        return regex;
+    private static boolean collectReportedFailedIds(Object value, ValidationPlan.Property constraints,
+                                                    ValidationPlan plan, BitSet failedIds, Budget budget) {
+        if (constraints.isList) {
+            if (!(value instanceof List)) {
+                return false;
+            }
+            @SuppressWarnings("unchecked")
+            List<Object> listValue = (List<Object>) value;
+            collectListItemsFailedIds(listValue, constraints, plan, failedIds, budget);
+        } else if (value == null && !constraints.required) {
+            return false;
+        } else if (budget.visit()) {
+            checkValueConstraints(value, constraints, plan, failedIds);
+        }
+        int failedCount = failedIds.cardinality();
+        int passedCount = plan.passedCount(failedIds);
+        if (passedCount < failedCount && passedCount > 0) {
+            plan.retainSpecIds(failedIds);
+        }
+        return true;
     }
 
-    // Note: getOrCompileRegex and getOrParseAllowedValues use ConcurrentHashMap
-    // which is safe for concurrent reads. The minor race on double-put for the same
-    // key is benign since both threads compute the same value.
+    private static void collectListItemsFailedIds(List<Object> listValue, ValidationPlan.Property constraints,
+                                                  ValidationPlan plan, BitSet failedIds, Budget budget) {
+        for (Object item : listValue) {
+            if (!budget.visit()) {
+                return;
+            }
+            checkValueConstraints(item, constraints, plan, failedIds);
+        }
+    }
 
     /**
-     * Parses allowed values JSON string and returns a Set for O(1) lookup.
-     * Results are cached to avoid repeated JSON.parse calls.
-     *
-     * @return Set of allowed values, or null if JSON is invalid
+     * Limits of a single validateEvent call, so that a huge payload can't stall the thread validating it.
+     * The limits are read once per call.
      */
-    private static Set<String> getOrParseAllowedValues(String jsonString) {
-        Set<String> allowedSet = allowedValuesCache.get(jsonString);
-        if (allowedSet == null) {
-            try {
-                JSONArray jsonArray = new JSONArray(jsonString);
-                allowedSet = new HashSet<>();
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    allowedSet.add(jsonArray.getString(i));
-                }
-                allowedValuesCache.put(jsonString, allowedSet);
-            } catch (Exception e) {
-                return null;
+    private static final class Budget {
+        final int depthLimit;
+        private final int nodeLimit;
+        private final long deadline;
+
+        int visitedNodes = 0;
+        boolean exhausted = false;
+
+        Budget(EventValidationContext context) {
+            depthLimit = context.maxDepth;
+            nodeLimit = context.maxNodes;
+            deadline = System.nanoTime() + context.timeBudgetNanos;
+        }
+
+        /**
+         * Counts a value about to be checked.
+         *
+         * @return false once the budget is exhausted, the value must then be left unchecked
+         */
+        boolean visit() {
+            if (exhausted) {
+                return false;
+            }
+            // nanoTime is cheap but not free, sample it every 16 values
+            if (visitedNodes >= nodeLimit || ((visitedNodes & 15) == 0 && System.nanoTime() >= deadline)) {
+                exhausted = true;
+                return false;
             }
+            visitedNodes++;
+            return true;
         }
-        return allowedSet;
     }
 }
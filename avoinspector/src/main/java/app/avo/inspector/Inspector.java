@@ -7,6 +7,7 @@ import androidx.annotation.Nullable;
 
 import org.json.JSONObject;
 
+import java.util.Collection;
 import java.util.Map;
 
 @SuppressWarnings("UnusedReturnValue")
@@ -29,4 +30,12 @@ public interface Inspector {
 
     @Nullable
     Object getVisualInspector();
+
+    /**
+     * Fetches the specs of the given events ahead of their first tracking, so the first occurrence
+     * of each event is validated without waiting on the network. Only fetches in dev and staging.
+     */
+    void prefetchEventSpecs(@NonNull Collection<String> eventNames);
+
+    void prefetchEventSpecs(@NonNull Collection<String> eventNames, @Nullable EventSpecPrefetchListener listener);
 }
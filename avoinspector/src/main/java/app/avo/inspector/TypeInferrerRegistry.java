@@ -0,0 +1,185 @@
+package app.avo.inspector;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class keyed lookup of {@link AvoTypeInferrer}s for leaf values.
+ * The concrete class is looked up directly first; otherwise its superclasses and interfaces
+ * are checked and the answer is remembered for that class, so every class is resolved once.
+ */
+class TypeInferrerRegistry {
+
+    private static final AvoTypeInferrer UNKNOWN = new AvoTypeInferrer() {
+        @NonNull
+        @Override
+        public AvoEventSchemaType inferType(@NonNull Object value) {
+            return new AvoEventSchemaType.AvoUnknownType();
+        }
+    };
+
+    private final Map<Class<?>, AvoTypeInferrer> registered = new ConcurrentHashMap<>();
+    private final Map<Class<?>, AvoTypeInferrer> resolved = new ConcurrentHashMap<>();
+
+    TypeInferrerRegistry() {
+        AvoTypeInferrer intType = fixed(new AvoEventSchemaType.AvoInt());
+        AvoTypeInferrer floatType = fixed(new AvoEventSchemaType.AvoFloat());
+        AvoTypeInferrer booleanType = fixed(new AvoEventSchemaType.AvoBoolean());
+        AvoTypeInferrer stringType = fixed(new AvoEventSchemaType.AvoString());
+
+        for (Class<?> cls : new Class<?>[]{Integer.class, Long.class, Short.class, Byte.class,
+                AtomicInteger.class, AtomicLong.class, BigInteger.class}) {
+            registered.put(cls, intType);
+        }
+        for (Class<?> cls : new Class<?>[]{Float.class, Double.class, BigDecimal.class}) {
+            registered.put(cls, floatType);
+        }
+        registered.put(Boolean.class, booleanType);
+        registered.put(AtomicBoolean.class, booleanType);
+        registered.put(String.class, stringType);
+        registered.put(Character.class, stringType);
+        registered.put(CharSequence.class, stringType);
+
+        AvoEventSchemaType.AvoNull nullType = new AvoEventSchemaType.AvoNull();
+        registered.put(int[].class, listOf(new AvoEventSchemaType.AvoInt()));
+        registered.put(long[].class, listOf(new AvoEventSchemaType.AvoInt()));
+        registered.put(short[].class, listOf(new AvoEventSchemaType.AvoInt()));
+        registered.put(byte[].class, listOf(new AvoEventSchemaType.AvoInt()));
+        registered.put(boolean[].class, listOf(new AvoEventSchemaType.AvoBoolean()));
+        registered.put(float[].class, listOf(new AvoEventSchemaType.AvoFloat()));
+        registered.put(double[].class, listOf(new AvoEventSchemaType.AvoFloat()));
+        registered.put(char[].class, listOf(new AvoEventSchemaType.AvoString()));
+        for (Class<?> cls : new Class<?>[]{Integer[].class, Long[].class, Short[].class, Byte[].class}) {
+            registered.put(cls, listOf(new AvoEventSchemaType.AvoInt(), nullType));
+        }
+        for (Class<?> cls : new Class<?>[]{Float[].class, Double[].class}) {
+            registered.put(cls, listOf(new AvoEventSchemaType.AvoFloat(), nullType));
+        }
+        registered.put(Boolean[].class, listOf(new AvoEventSchemaType.AvoBoolean(), nullType));
+        registered.put(String[].class, listOf(new AvoEventSchemaType.AvoString(), nullType));
+        registered.put(Character[].class, listOf(new AvoEventSchemaType.AvoString(), nullType));
+    }
+
+    void register(@NonNull Class<?> type, @NonNull AvoTypeInferrer inferrer) {
+        registered.put(type, inferrer);
+        resolved.clear();
+    }
+
+    @NonNull AvoEventSchemaType inferType(@NonNull Object value) {
+        return inferrerFor(value.getClass()).inferType(value);
+    }
+
+    /**
+     * The inferrer registered for the class or one of its supertypes, or null if the class has none.
+     * Containers are only reported by an inferrer when one was registered for them.
+     */
+    @Nullable AvoTypeInferrer find(@NonNull Class<?> cls) {
+        AvoTypeInferrer inferrer = inferrerFor(cls);
+        return inferrer != UNKNOWN ? inferrer : null;
+    }
+
+    @NonNull private AvoTypeInferrer inferrerFor(@NonNull Class<?> cls) {
+        AvoTypeInferrer inferrer = resolved.get(cls);
+        if (inferrer == null) {
+            inferrer = resolve(cls);
+            resolved.put(cls, inferrer);
+        }
+        return inferrer;
+    }
+
+    @NonNull private AvoTypeInferrer resolve(@NonNull Class<?> cls) {
+        AvoTypeInferrer exact = registered.get(cls);
+        if (exact != null) {
+            return exact;
+        }
+
+        if (cls.isArray()) {
+            return objectArrayInferrer(cls);
+        }
+
+        // Superclasses first, then interfaces breadth first
+        for (Class<?> superclass = cls.getSuperclass(); superclass != null; superclass = superclass.getSuperclass()) {
+            AvoTypeInferrer inferrer = registered.get(superclass);
+            if (inferrer != null) {
+                return inferrer;
+            }
+        }
+
+        Set<Class<?>> seen = new HashSet<>();
+        ArrayDeque<Class<?>> queue = new ArrayDeque<>();
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                queue.add(i);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Class<?> i = queue.poll();
+            if (!seen.add(i)) {
+                continue;
+            }
+            AvoTypeInferrer inferrer = registered.get(i);
+            if (inferrer != null) {
+                return inferrer;
+            }
+            for (Class<?> parent : i.getInterfaces()) {
+                queue.add(parent);
+            }
+        }
+
+        if (Number.class.isAssignableFrom(cls)) {
+            return registered.get(Double.class);
+        }
+
+        return UNKNOWN;
+    }
+
+    @NonNull private AvoTypeInferrer objectArrayInferrer(@NonNull Class<?> arrayClass) {
+        Class<?> component = arrayClass.getComponentType();
+        if (component == null || component.isPrimitive() || component.isArray()) {
+            return UNKNOWN;
+        }
+        if (List.class.isAssignableFrom(component)) {
+            return listOf(new AvoEventSchemaType.AvoList(new HashSet<AvoEventSchemaType>()), new AvoEventSchemaType.AvoNull());
+        }
+        return listOf(new AvoEventSchemaType.AvoObject(new HashMap<String, AvoEventSchemaType>()), new AvoEventSchemaType.AvoNull());
+    }
+
+    @NonNull private static AvoTypeInferrer fixed(@NonNull final AvoEventSchemaType type) {
+        return new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                return type;
+            }
+        };
+    }
+
+    @NonNull private static AvoTypeInferrer listOf(@Nullable final AvoEventSchemaType... subtypes) {
+        return new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                Set<AvoEventSchemaType> types = new HashSet<>();
+                if (subtypes != null) {
+                    for (AvoEventSchemaType subtype : subtypes) {
+                        types.add(subtype);
+                    }
+                }
+                return new AvoEventSchemaType.AvoList(types);
+            }
+        };
+    }
+}
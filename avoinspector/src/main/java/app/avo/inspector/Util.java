@@ -2,6 +2,7 @@ package app.avo.inspector;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.json.JSONArray;
@@ -12,12 +13,15 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 class Util {
@@ -227,46 +231,183 @@ class Util {
         return list;
     }
 
+    // Deeper nesting is compared by identity only
+    private static final int MAX_STRUCTURAL_DEPTH = 32;
+
     static boolean mapsEqual(@Nullable Map<?, ?> params, @Nullable Map<?, ?> otherParams) {
+        return mapsEqual(params, otherParams, 0);
+    }
+
+    private static boolean mapsEqual(@Nullable Map<?, ?> params, @Nullable Map<?, ?> otherParams, int depth) {
         if (params == null || otherParams == null) {
             return otherParams == null && params == null;
         }
 
-        if (params.keySet().containsAll(otherParams.keySet()) && otherParams.keySet().containsAll(params.keySet())) {
-            for (Object paramName : params.keySet()) {
-                Object paramValue = params.get(paramName);
-                Object otherParamValue = otherParams.get(paramName);
+        if (params == otherParams) {
+            return true;
+        }
 
-                return objectsEqual(paramValue, otherParamValue);
-            }
+        if (params.size() != otherParams.size()) {
+            return false;
+        }
 
-            return  true;
+        for (Map.Entry<?, ?> entry : params.entrySet()) {
+            Object paramName = entry.getKey();
+            if (!otherParams.containsKey(paramName)) {
+                return false;
+            }
+            if (!objectsEqual(entry.getValue(), otherParams.get(paramName), depth + 1)) {
+                return false;
+            }
         }
 
-        return false;
+        return true;
     }
 
-    private static boolean objectsEqual(@Nullable Object paramValue, @Nullable Object otherParamValue) {
-        if (paramValue == null) {
-            return otherParamValue == null;
+    private static boolean objectsEqual(@Nullable Object paramValue, @Nullable Object otherParamValue, int depth) {
+        if (paramValue == otherParamValue) {
+            return true;
+        }
+
+        if (paramValue == null || otherParamValue == null || depth > MAX_STRUCTURAL_DEPTH) {
+            return false;
         }
 
         if (paramValue.getClass().isArray()) {
             return arraysEqual(paramValue, otherParamValue);
         }
 
-        if (paramValue instanceof Collection && otherParamValue instanceof Collection) {
-            for (Object paramValueCollectionItem : (Collection)paramValue) {
-                if (!objectsEqual(paramValueCollectionItem, otherParamValue)) {
+        if (paramValue instanceof List || otherParamValue instanceof List) {
+            if (!(paramValue instanceof List && otherParamValue instanceof List)) {
+                return false;
+            }
+            List<?> list = (List<?>) paramValue;
+            List<?> otherList = (List<?>) otherParamValue;
+            if (list.size() != otherList.size()) {
+                return false;
+            }
+            Iterator<?> otherIterator = otherList.iterator();
+            for (Object item : list) {
+                if (!otherIterator.hasNext() || !objectsEqual(item, otherIterator.next(), depth + 1)) {
                     return false;
                 }
             }
+            return true;
+        } else if (paramValue instanceof Collection && otherParamValue instanceof Collection) {
+            Collection<?> collection = (Collection<?>) paramValue;
+            Collection<?> otherCollection = (Collection<?>) otherParamValue;
+            return collection.size() == otherCollection.size()
+                    && collection.containsAll(otherCollection) && otherCollection.containsAll(collection);
         } else if (paramValue instanceof Map && otherParamValue instanceof Map) {
-            return mapsEqual((Map)paramValue, (Map)otherParamValue);
+            return mapsEqual((Map<?, ?>) paramValue, (Map<?, ?>) otherParamValue, depth);
         } else {
             return paramValue.equals(otherParamValue);
         }
-        return true;
+    }
+
+    /**
+     * 64 bit structural hash of event params, consistent with {@link #mapsEqual(Map, Map)}:
+     * equal params always have the same fingerprint, different params almost never do.
+     */
+    static long fingerprint(@Nullable Object value) {
+        return new StructuralHasher().hash(value, 0);
+    }
+
+    private static final class StructuralHasher {
+        private static final long NULL_HASH = 0x6a09e667f3bcc908L;
+        private static final long LIST_SEED = 0xbb67ae8584caa73bL;
+        private static final long COLLECTION_SEED = 0x3c6ef372fe94f82bL;
+        private static final long MAP_SEED = 0xa54ff53a5f1d36f1L;
+        private static final long ARRAY_SEED = 0x9b05688c2b3e6c1fL;
+        private static final long TRUNCATED_HASH = 0x510e527fade682d1L;
+
+        private static final int MAX_NODES = 100_000;
+
+        private final Set<Object> path = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        private int nodes = 0;
+
+        long hash(@Nullable Object value, int depth) {
+            if (value == null) {
+                return NULL_HASH;
+            }
+            if (depth > MAX_STRUCTURAL_DEPTH || ++nodes > MAX_NODES || path.contains(value)) {
+                return TRUNCATED_HASH;
+            }
+
+            if (value.getClass().isArray()) {
+                // By elements only: Object arrays of different runtime classes with equal elements are equal
+                return mix64(ARRAY_SEED + arrayHashCode(value));
+            }
+
+            if (value instanceof List) {
+                path.add(value);
+                long hash = LIST_SEED;
+                for (Object item : (List<?>) value) {
+                    hash = mix64(hash * 31 + hash(item, depth + 1));
+                }
+                path.remove(value);
+                return mix64(hash + ((List<?>) value).size());
+            }
+
+            if (value instanceof Collection) {
+                // Compared with containsAll, so only the size can be part of the hash
+                return mix64(COLLECTION_SEED + ((Collection<?>) value).size());
+            }
+
+            if (value instanceof Map) {
+                path.add(value);
+                long hash = 0;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    Object key = entry.getKey();
+                    long keyHash = key == null ? NULL_HASH : key.hashCode();
+                    // Summed so the iteration order doesn't matter
+                    hash += mix64(keyHash * 31 + hash(entry.getValue(), depth + 1));
+                }
+                path.remove(value);
+                return mix64(MAP_SEED ^ hash ^ ((Map<?, ?>) value).size());
+            }
+
+            if (value instanceof String) {
+                String string = (String) value;
+                long hash = 0xcbf29ce484222325L;
+                for (int i = 0; i < string.length(); i++) {
+                    hash ^= string.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+                return mix64(hash);
+            }
+
+            return mix64(value.hashCode());
+        }
+
+        private static int arrayHashCode(@NonNull Object array) {
+            if (array instanceof Object[]) {
+                return Arrays.hashCode((Object[]) array);
+            } else if (array instanceof boolean[]) {
+                return Arrays.hashCode((boolean[]) array);
+            } else if (array instanceof int[]) {
+                return Arrays.hashCode((int[]) array);
+            } else if (array instanceof byte[]) {
+                return Arrays.hashCode((byte[]) array);
+            } else if (array instanceof short[]) {
+                return Arrays.hashCode((short[]) array);
+            } else if (array instanceof char[]) {
+                return Arrays.hashCode((char[]) array);
+            } else if (array instanceof long[]) {
+                return Arrays.hashCode((long[]) array);
+            } else if (array instanceof float[]) {
+                return Arrays.hashCode((float[]) array);
+            } else if (array instanceof double[]) {
+                return Arrays.hashCode((double[]) array);
+            }
+            return 0;
+        }
+
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
     }
 
     private static boolean arraysEqual(@Nullable Object paramValue, @Nullable Object otherParamValue) {
@@ -0,0 +1,565 @@
+package app.avo.inspector;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.*;
+import com.google.re2j.Pattern;
+import com.google.re2j.PatternSyntaxException;
+
+/**
+ * An EventSpecResponse compiled for validation: the constraints of all its events merged by property name,
+ * with regexes compiled, pinned and allowed values parsed into typed {@link ValueSet}s and min/max ranges
+ * parsed into numbers.
+ *
+ * Event and variant IDs are numbered densely per spec, and the IDs of a constraint are a BitSet of
+ * those numbers, so that validation works on bits and only the reported IDs are turned back into strings.
+ *
+ * Compiled once per fetched spec and cached with it, so validating an event does no parsing.
+ * Immutable apart from its memo of results, and safe to share between threads.
+ *
+ * The memo keeps the results of short scalar values of primitive properties, which tend to repeat
+ * from event to event (screen names, plan tiers, platforms). It lives and dies with the plan, so it is
+ * dropped with the spec entry of the event spec cache.
+ */
+final class ValidationPlan {
+
+    private static final String TAG = "AvoInspector";
+
+    /**
+     * Longer strings are validated every time: they are rarely repeated.
+     */
+    static final int MAX_MEMOIZED_VALUE_LENGTH = 64;
+
+    /**
+     * A constraint value (pinned value, allowed value set, regex or range) and the eventIds that require it.
+     * A null value is a constraint that could not be compiled.
+     */
+    static final class Constraint<T> {
+        @Nullable final T value;
+        // Indices of the eventIds in the ID table of the plan. Never modified.
+        final BitSet eventIds;
+
+        Constraint(@Nullable T value, BitSet eventIds) {
+            this.value = value;
+            this.eventIds = eventIds;
+        }
+    }
+
+    /**
+     * Compiled constraints of a property. Missing constraints are empty lists.
+     */
+    static final class Property {
+        final boolean required;
+        final boolean isList;
+        // A ValueSet of the one pinned value
+        final List<Constraint<ValueSet>> pinnedValues;
+        final List<Constraint<ValueSet>> allowedValues;
+        final List<Constraint<Pattern>> regexPatterns;
+        // {min, max}, unbounded sides are infinite
+        final List<Constraint<double[]>> minMaxRanges;
+        // Null when the property is not an object
+        @Nullable final Map<String, Property> children;
+        // Every eventId of the value constraints above, the most a value can fail. Never modified.
+        final BitSet constraintIds;
+
+        private Property(PropertyConstraints constraints, EventIdTable table, EventValidationContext context) {
+            this.required = constraints.required;
+            this.isList = constraints.isList != null && constraints.isList;
+            this.pinnedValues = compilePinnedValues(constraints.pinnedValues, table);
+            this.allowedValues = compileAllowedValues(constraints.allowedValues, table, context);
+            this.regexPatterns = compileRegexPatterns(constraints.regexPatterns, table, context);
+            this.minMaxRanges = compileMinMaxRanges(constraints.minMaxRanges, table);
+            this.children = constraints.children != null ? compileProperties(constraints.children, table, context) : null;
+            this.constraintIds = new BitSet();
+            unionEventIds(pinnedValues, constraintIds);
+            unionEventIds(allowedValues, constraintIds);
+            unionEventIds(regexPatterns, constraintIds);
+            unionEventIds(minMaxRanges, constraintIds);
+        }
+
+        private static void unionEventIds(List<? extends Constraint<?>> constraints, BitSet into) {
+            for (Constraint<?> constraint : constraints) {
+                into.or(constraint.eventIds);
+            }
+        }
+    }
+
+    @Nullable final EventSpecMetadata metadata;
+    // Every baseEventId and variantId of the spec, in spec order
+    final List<String> eventIds;
+    final Map<String, Property> properties;
+
+    // Distinct IDs by index: the eventIds first, then IDs only found in constraints
+    private final String[] idTable;
+    // Index of each entry of eventIds
+    private final int[] eventIdIndices;
+    // Indices of the eventIds
+    private final BitSet specIds;
+
+    // Caches the plan was compiled with, shared with the other plans of its owner
+    final EventValidationContext context;
+
+    // Null when memoization is off
+    @Nullable private final BoundedLruCache<MemoKey, PropertyValidationResult> resultMemo;
+
+    private ValidationPlan(@Nullable EventSpecMetadata metadata, List<String> eventIds,
+                           Map<String, Property> properties, EventIdTable table, EventValidationContext context) {
+        this.metadata = metadata;
+        this.context = context;
+        this.eventIds = eventIds;
+        this.properties = properties;
+        this.idTable = table.ids.toArray(new String[0]);
+        this.eventIdIndices = new int[eventIds.size()];
+        this.specIds = new BitSet(idTable.length);
+        for (int i = 0; i < eventIdIndices.length; i++) {
+            eventIdIndices[i] = table.indexOf(eventIds.get(i));
+            specIds.set(eventIdIndices[i]);
+        }
+        int memoSize = context.maxMemoizedResults;
+        this.resultMemo = memoSize > 0
+                ? new BoundedLruCache<MemoKey, PropertyValidationResult>(memoSize, Long.MAX_VALUE, (key, result) -> 0)
+                : null;
+    }
+
+    /**
+     * Compiles the spec with caches of its own, for validating it once.
+     */
+    static ValidationPlan compile(EventSpecResponse specResponse) {
+        return compile(specResponse, new EventValidationContext());
+    }
+
+    static ValidationPlan compile(EventSpecResponse specResponse, EventValidationContext context) {
+        List<EventSpecEntry> events = specResponse.events != null
+                ? specResponse.events : Collections.<EventSpecEntry>emptyList();
+        List<String> eventIds = collectAllEventIds(events);
+        EventIdTable table = new EventIdTable(eventIds);
+        Map<String, Property> properties = compileProperties(collectConstraintsByPropertyName(events), table, context);
+        return new ValidationPlan(specResponse.metadata, Collections.unmodifiableList(eventIds), properties, table,
+                context);
+    }
+
+    // =========================================================================
+    // RESULT MEMO
+    // =========================================================================
+
+    /**
+     * Nulls, booleans, boxed primitives and short strings: immutable values with a cheap equals.
+     */
+    static boolean isMemoizable(@Nullable Object value) {
+        return value == null || value instanceof Boolean || value instanceof Integer || value instanceof Long
+                || value instanceof Double || value instanceof Float || value instanceof Short || value instanceof Byte
+                || (value instanceof String && ((String) value).length() <= MAX_MEMOIZED_VALUE_LENGTH);
+    }
+
+    /**
+     * @return the memoized result of a value of the property, or null
+     */
+    @Nullable
+    PropertyValidationResult memoizedResult(Property property, @Nullable Object value) {
+        if (resultMemo == null || !isMemoizable(value)) {
+            return null;
+        }
+        return resultMemo.get(new MemoKey(property, value));
+    }
+
+    /**
+     * Memoizes a result, which is shared by every event with the same value from then on.
+     * Its lists are made unmodifiable.
+     */
+    void memoizeResult(Property property, @Nullable Object value, PropertyValidationResult result) {
+        if (resultMemo == null || !isMemoizable(value)) {
+            return;
+        }
+        if (result.failedEventIds != null) {
+            result.failedEventIds = Collections.unmodifiableList(result.failedEventIds);
+        }
+        if (result.passedEventIds != null) {
+            result.passedEventIds = Collections.unmodifiableList(result.passedEventIds);
+        }
+        resultMemo.put(new MemoKey(property, value), result);
+    }
+
+    // The property stands for its path: each path of the plan has its own Property
+    private static final class MemoKey {
+        final Property property;
+        @Nullable final Object value;
+
+        MemoKey(Property property, @Nullable Object value) {
+            this.property = property;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MemoKey)) {
+                return false;
+            }
+            MemoKey other = (MemoKey) obj;
+            return property == other.property
+                    && (value == null ? other.value == null : value.equals(other.value));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(property) + (value != null ? value.hashCode() : 0);
+        }
+    }
+
+    // =========================================================================
+    // EVENT ID SETS
+    // =========================================================================
+
+    /**
+     * @return the IDs of a set of indices, by index
+     */
+    List<String> toEventIds(BitSet ids) {
+        List<String> result = new ArrayList<>(ids.cardinality());
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+            result.add(idTable[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the eventIds of the spec that are not in failed, in spec order
+     */
+    List<String> passedEventIds(BitSet failed) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < eventIdIndices.length; i++) {
+            if (!failed.get(eventIdIndices[i])) {
+                result.add(eventIds.get(i));
+            }
+        }
+        return result;
+    }
+
+    int passedCount(BitSet failed) {
+        int count = 0;
+        for (int index : eventIdIndices) {
+            if (!failed.get(index)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops the IDs that are not eventIds of the spec, like reporting passed IDs does.
+     */
+    void retainSpecIds(BitSet ids) {
+        ids.and(specIds);
+    }
+
+    private static final class EventIdTable {
+        final List<String> ids = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+
+        EventIdTable(List<String> eventIds) {
+            for (String id : eventIds) {
+                indexOf(id);
+            }
+        }
+
+        int indexOf(String id) {
+            Integer index = indices.get(id);
+            if (index == null) {
+                index = ids.size();
+                ids.add(id);
+                indices.put(id, index);
+            }
+            return index;
+        }
+
+        BitSet bitsOf(@Nullable List<String> eventIds) {
+            BitSet bits = new BitSet();
+            if (eventIds != null) {
+                for (String id : eventIds) {
+                    bits.set(indexOf(id));
+                }
+            }
+            return bits;
+        }
+    }
+
+    /**
+     * @return the plan, or null when the spec is malformed. Its events are then not validated: the spec is
+     * compiled again for each of them, fails the same way, and is reported like any other validation error.
+     */
+    @Nullable
+    static ValidationPlan tryCompile(EventSpecResponse specResponse, EventValidationContext context) {
+        try {
+            return compile(specResponse, context);
+        } catch (RuntimeException e) {
+            if (AvoInspector.isLogging()) {
+                Log.e(TAG, "Could not compile event spec: " + e);
+            }
+            return null;
+        }
+    }
+
+    private static Map<String, Property> compileProperties(Map<String, PropertyConstraints> constraintsByProperty,
+                                                           EventIdTable table,
+                                                           EventValidationContext context) {
+        Map<String, Property> result = new HashMap<>();
+        for (Map.Entry<String, PropertyConstraints> entry : constraintsByProperty.entrySet()) {
+            if (entry.getValue() != null) {
+                result.put(entry.getKey(), new Property(entry.getValue(), table, context));
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    // =========================================================================
+    // CONSTRAINT COMPILATION
+    // =========================================================================
+
+    private static List<Constraint<ValueSet>> compilePinnedValues(@Nullable Map<String, List<String>> pinnedValues, EventIdTable table) {
+        if (pinnedValues == null || pinnedValues.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Constraint<ValueSet>> result = new ArrayList<>(pinnedValues.size());
+        for (Map.Entry<String, List<String>> entry : pinnedValues.entrySet()) {
+            result.add(new Constraint<>(ValueSet.of(entry.getKey()), table.bitsOf(entry.getValue())));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Invalid JSON arrays are left out: they never fail a value
+    private static List<Constraint<ValueSet>> compileAllowedValues(@Nullable Map<String, List<String>> allowedValues, EventIdTable table,
+                                                                 EventValidationContext context) {
+        if (allowedValues == null || allowedValues.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Constraint<ValueSet>> result = new ArrayList<>(allowedValues.size());
+        for (Map.Entry<String, List<String>> entry : allowedValues.entrySet()) {
+            ValueSet allowedSet = context.getOrParseAllowedValues(entry.getKey());
+            if (allowedSet == null) {
+                if (AvoInspector.isLogging()) {
+                    Log.w(TAG, "Invalid allowed values JSON: " + entry.getKey());
+                }
+                continue;
+            }
+            result.add(new Constraint<>(allowedSet, table.bitsOf(entry.getValue())));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Invalid patterns are kept with a null value: only non-string values fail them
+    private static List<Constraint<Pattern>> compileRegexPatterns(@Nullable Map<String, List<String>> regexPatterns, EventIdTable table,
+                                                               EventValidationContext context) {
+        if (regexPatterns == null || regexPatterns.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Constraint<Pattern>> result = new ArrayList<>(regexPatterns.size());
+        for (Map.Entry<String, List<String>> entry : regexPatterns.entrySet()) {
+            Pattern regex = null;
+            try {
+                regex = context.getOrCompileRegex(entry.getKey());
+            } catch (PatternSyntaxException e) {
+                if (AvoInspector.isLogging()) {
+                    Log.w(TAG, "Invalid regex pattern: " + entry.getKey());
+                }
+            }
+            result.add(new Constraint<>(regex, table.bitsOf(entry.getValue())));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * "min,max" ranges. Empty bounds: "0," means min=0 with no max, ",100" means no min with max=100.
+     * Invalid ranges are kept with a null value: only non-numeric values fail them.
+     */
+    private static List<Constraint<double[]>> compileMinMaxRanges(@Nullable Map<String, List<String>> minMaxRanges, EventIdTable table) {
+        if (minMaxRanges == null || minMaxRanges.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Constraint<double[]>> result = new ArrayList<>(minMaxRanges.size());
+        for (Map.Entry<String, List<String>> entry : minMaxRanges.entrySet()) {
+            result.add(new Constraint<>(parseRange(entry.getKey()), table.bitsOf(entry.getValue())));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Nullable
+    private static double[] parseRange(String rangeStr) {
+        String[] parts = rangeStr.split(",", -1);
+        String minStr = parts.length > 0 ? parts[0] : "";
+        String maxStr = parts.length > 1 ? parts[1] : "";
+
+        boolean hasMin = !minStr.isEmpty();
+        boolean hasMax = !maxStr.isEmpty();
+
+        double min;
+        double max;
+        try {
+            min = hasMin ? Double.parseDouble(minStr) : Double.NEGATIVE_INFINITY;
+            max = hasMax ? Double.parseDouble(maxStr) : Double.POSITIVE_INFINITY;
+        } catch (NumberFormatException e) {
+            logInvalidRange(rangeStr);
+            return null;
+        }
+
+        if ((hasMin && Double.isNaN(min)) || (hasMax && Double.isNaN(max))) {
+            logInvalidRange(rangeStr);
+            return null;
+        }
+        return new double[]{min, max};
+    }
+
+    private static void logInvalidRange(String rangeStr) {
+        if (AvoInspector.isLogging()) {
+            Log.w(TAG, "Invalid min/max range: " + rangeStr);
+        }
+    }
+
+    // =========================================================================
+    // EVENT MERGING
+    // =========================================================================
+
+    /**
+     * Collects all eventIds (baseEventId + variantIds) from all events.
+     */
+    private static List<String> collectAllEventIds(List<EventSpecEntry> events) {
+        List<String> ids = new ArrayList<>();
+        for (EventSpecEntry event : events) {
+            ids.add(event.baseEventId);
+            ids.addAll(event.variantIds);
+        }
+        return ids;
+    }
+
+    /**
+     * Collects all property constraints from all events into a single lookup table.
+     *
+     * When multiple events define the same property, their constraint mappings
+     * (pinnedValues, allowedValues, etc.) are merged by unioning the eventId arrays.
+     * The spec itself is never modified.
+     */
+    private static Map<String, PropertyConstraints> collectConstraintsByPropertyName(
+            List<EventSpecEntry> events) {
+        if (events.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        // Fast path: single event, compiled from its props directly
+        if (events.size() == 1) {
+            Map<String, PropertyConstraints> props = events.get(0).props;
+            return props != null ? props : new HashMap<String, PropertyConstraints>();
+        }
+
+        // Multiple events: aggregate constraints
+        Map<String, PropertyConstraints> result = new HashMap<>();
+
+        for (EventSpecEntry event : events) {
+            if (event.props == null) {
+                continue;
+            }
+            mergeProperties(result, event.props);
+        }
+
+        return result;
+    }
+
+    /**
+     * Merges properties from source into target recursively, copying what target doesn't have yet.
+     */
+    private static void mergeProperties(Map<String, PropertyConstraints> target,
+                                        Map<String, PropertyConstraints> source) {
+        for (Map.Entry<String, PropertyConstraints> entry : source.entrySet()) {
+            String propName = entry.getKey();
+            PropertyConstraints sourceConstraints = entry.getValue();
+
+            PropertyConstraints targetConstraints = target.get(propName);
+            if (targetConstraints == null) {
+                target.put(propName, deepCopy(sourceConstraints));
+            } else {
+                mergeConstraintMappings(targetConstraints, sourceConstraints);
+                if (sourceConstraints.children != null) {
+                    if (targetConstraints.children == null) {
+                        targetConstraints.children = deepCopyChildren(sourceConstraints.children);
+                    } else {
+                        mergeProperties(targetConstraints.children, sourceConstraints.children);
+                    }
+                }
+            }
+        }
+    }
+
+    private static PropertyConstraints deepCopy(PropertyConstraints constraints) {
+        PropertyConstraints copy = new PropertyConstraints();
+        copy.type = constraints.type;
+        copy.required = constraints.required;
+        copy.isList = constraints.isList;
+        copy.pinnedValues = constraints.pinnedValues != null
+                ? deepCopyConstraintMapping(constraints.pinnedValues) : null;
+        copy.allowedValues = constraints.allowedValues != null
+                ? deepCopyConstraintMapping(constraints.allowedValues) : null;
+        copy.regexPatterns = constraints.regexPatterns != null
+                ? deepCopyConstraintMapping(constraints.regexPatterns) : null;
+        copy.minMaxRanges = constraints.minMaxRanges != null
+                ? deepCopyConstraintMapping(constraints.minMaxRanges) : null;
+        copy.children = constraints.children != null
+                ? deepCopyChildren(constraints.children) : null;
+        return copy;
+    }
+
+    private static Map<String, PropertyConstraints> deepCopyChildren(
+            Map<String, PropertyConstraints> children) {
+        Map<String, PropertyConstraints> result = new HashMap<>();
+        for (Map.Entry<String, PropertyConstraints> entry : children.entrySet()) {
+            result.put(entry.getKey(), deepCopy(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static Map<String, List<String>> deepCopyConstraintMapping(
+            Map<String, List<String>> mapping) {
+        Map<String, List<String>> result = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : mapping.entrySet()) {
+            result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Merges constraint mappings (pinnedValues, allowedValues, etc.) from source into target.
+     */
+    private static void mergeConstraintMappings(PropertyConstraints target,
+                                                PropertyConstraints source) {
+        target.pinnedValues = mergeMapping(target.pinnedValues, source.pinnedValues);
+        target.allowedValues = mergeMapping(target.allowedValues, source.allowedValues);
+        target.regexPatterns = mergeMapping(target.regexPatterns, source.regexPatterns);
+        target.minMaxRanges = mergeMapping(target.minMaxRanges, source.minMaxRanges);
+    }
+
+    /**
+     * Merges a single constraint mapping from source into target,
+     * unioning the eventId arrays for each constraint key.
+     */
+    private static Map<String, List<String>> mergeMapping(
+            Map<String, List<String>> target, Map<String, List<String>> source) {
+        if (source == null) {
+            return target;
+        }
+        if (target == null) {
+            target = new HashMap<>();
+        }
+        for (Map.Entry<String, List<String>> entry : source.entrySet()) {
+            String key = entry.getKey();
+            List<String> sourceIds = entry.getValue();
+            if (target.containsKey(key)) {
+                Set<String> merged = new LinkedHashSet<>(target.get(key));
+                merged.addAll(sourceIds);
+                target.put(key, new ArrayList<>(merged));
+            } else {
+                target.put(key, new ArrayList<>(sourceIds));
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,136 @@
+package app.avo.inspector;
+
+import androidx.annotation.Nullable;
+
+import java.util.*;
+
+/**
+ * Pinned or allowed values of a constraint, compared with runtime values without converting them to strings.
+ *
+ * A runtime value matches when its string form (see EventValidator.convertValueToString) is one of the values.
+ * Each value is also kept in the typed forms whose string form it is, and scalars are looked up in those:
+ * "5" as a long, "5.0" as a double and a float, "true" as a boolean. Lookups don't allocate.
+ * Maps, lists and arrays are compared by their JSON text, which the caller serializes once per value.
+ */
+final class ValueSet {
+
+    private final Set<String> strings;
+    // Sorted, for binary search
+    private final long[] longs;
+    private final long[] doubleBits;
+    private final int[] floatBits;
+    private final boolean hasNull;
+    private final boolean hasTrue;
+    private final boolean hasFalse;
+
+    private ValueSet(Set<String> strings) {
+        this.strings = strings;
+        this.hasNull = strings.contains("null");
+        this.hasTrue = strings.contains("true");
+        this.hasFalse = strings.contains("false");
+
+        long[] longs = new long[strings.size()];
+        long[] doubleBits = new long[strings.size()];
+        int[] floatBits = new int[strings.size()];
+        int longCount = 0;
+        int doubleCount = 0;
+        int floatCount = 0;
+        for (String value : strings) {
+            Long asLong = parseLong(value);
+            if (asLong != null) {
+                longs[longCount++] = asLong;
+            }
+            Double asDouble = parseDouble(value);
+            if (asDouble != null) {
+                doubleBits[doubleCount++] = Double.doubleToLongBits(asDouble);
+            }
+            Float asFloat = parseFloat(value);
+            if (asFloat != null) {
+                floatBits[floatCount++] = Float.floatToIntBits(asFloat);
+            }
+        }
+        this.longs = Arrays.copyOf(longs, longCount);
+        this.doubleBits = Arrays.copyOf(doubleBits, doubleCount);
+        this.floatBits = Arrays.copyOf(floatBits, floatCount);
+        Arrays.sort(this.longs);
+        Arrays.sort(this.doubleBits);
+        Arrays.sort(this.floatBits);
+    }
+
+    static ValueSet of(String value) {
+        return new ValueSet(Collections.singleton(value));
+    }
+
+    static ValueSet of(Collection<String> values) {
+        return new ValueSet(Collections.unmodifiableSet(new HashSet<>(values)));
+    }
+
+    /**
+     * @param value a runtime value, with maps, lists, arrays and other objects already converted to strings
+     */
+    boolean contains(@Nullable Object value) {
+        if (value == null) {
+            return hasNull;
+        }
+        if (value instanceof String) {
+            return strings.contains(value);
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? hasTrue : hasFalse;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return Arrays.binarySearch(longs, ((Number) value).longValue()) >= 0;
+        }
+        if (value instanceof Double) {
+            return Arrays.binarySearch(doubleBits, Double.doubleToLongBits((Double) value)) >= 0;
+        }
+        if (value instanceof Float) {
+            return Arrays.binarySearch(floatBits, Float.floatToIntBits((Float) value)) >= 0;
+        }
+        // Other numbers, like BigDecimal
+        return strings.contains(String.valueOf(value));
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+    /**
+     * @return true for values that contains() compares without a string conversion
+     */
+    static boolean isScalar(@Nullable Object value) {
+        return value == null || value instanceof String || value instanceof Boolean || value instanceof Number;
+    }
+
+    // The typed forms of a value are the ones that print exactly as the value
+
+    @Nullable
+    private static Long parseLong(String value) {
+        try {
+            long parsed = Long.parseLong(value);
+            return Long.toString(parsed).equals(value) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Double parseDouble(String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.toString(parsed).equals(value) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Float parseFloat(String value) {
+        try {
+            float parsed = Float.parseFloat(value);
+            return Float.toString(parsed).equals(value) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package android.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Unit test stand-in for the platform JsonReader, which the android.jar of unit tests only stubs.
+ * Reads the whole document with org.json, then hands out its tokens with the platform API: IOException
+ * for malformed JSON, IllegalStateException for a value of another type than the one asked for.
+ */
+public final class JsonReader implements Closeable {
+
+    private final Reader in;
+    private final List<JsonToken> tokens = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+    private boolean read = false;
+    private int pos = 0;
+
+    public JsonReader(Reader in) {
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        this.in = in;
+    }
+
+    public JsonToken peek() throws IOException {
+        if (!read) {
+            read();
+        }
+        return tokens.get(pos);
+    }
+
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+    }
+
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+    }
+
+    public String nextName() throws IOException {
+        return (String) expect(JsonToken.NAME);
+    }
+
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        return String.valueOf(values.get(pos++));
+    }
+
+    public boolean nextBoolean() throws IOException {
+        return (Boolean) expect(JsonToken.BOOLEAN);
+    }
+
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+    }
+
+    public int nextInt() throws IOException {
+        return ((Number) expect(JsonToken.NUMBER)).intValue();
+    }
+
+    public long nextLong() throws IOException {
+        return ((Number) expect(JsonToken.NUMBER)).longValue();
+    }
+
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                depth++;
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            } else if (token == JsonToken.END_DOCUMENT) {
+                throw new IllegalStateException("No value to skip");
+            }
+            pos++;
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Object expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        return values.get(pos++);
+    }
+
+    private void read() throws IOException {
+        read = true;
+        try {
+            JSONTokener tokener = new JSONTokener(in);
+            Object document = tokener.nextValue();
+            if (!(document instanceof JSONObject) && !(document instanceof JSONArray)) {
+                throw new IOException("Expected an object or an array");
+            }
+            if (tokener.nextClean() != 0) {
+                throw new IOException("Expected EOF");
+            }
+            add(document);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        add(JsonToken.END_DOCUMENT, null);
+    }
+
+    private void add(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            add(JsonToken.BEGIN_OBJECT, null);
+            for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                add(JsonToken.NAME, key);
+                add(object.opt(key));
+            }
+            add(JsonToken.END_OBJECT, null);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            add(JsonToken.BEGIN_ARRAY, null);
+            for (int i = 0; i < array.length(); i++) {
+                add(array.opt(i));
+            }
+            add(JsonToken.END_ARRAY, null);
+        } else if (value == null || value == JSONObject.NULL) {
+            add(JsonToken.NULL, null);
+        } else if (value instanceof Boolean) {
+            add(JsonToken.BOOLEAN, value);
+        } else if (value instanceof Number) {
+            add(JsonToken.NUMBER, value);
+        } else {
+            add(JsonToken.STRING, value.toString());
+        }
+    }
+
+    private void add(JsonToken token, Object value) {
+        tokens.add(token);
+        values.add(value);
+    }
+}
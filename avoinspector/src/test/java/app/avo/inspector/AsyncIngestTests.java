@@ -0,0 +1,252 @@
+package app.avo.inspector;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class AsyncIngestTests {
+
+    @Mock Application mockApplication;
+    @Mock PackageManager mockPackageManager;
+    @Mock PackageInfo mockPackageInfo;
+    @Mock ApplicationInfo mockApplicationInfo;
+    @Mock SharedPreferences mockSharedPrefs;
+    @Mock SharedPreferences.Editor mockEditor;
+
+    private AvoInspector sut;
+    private AvoBatcher mockBatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mockPackageInfo.versionName = "1.0.0";
+        mockApplicationInfo.packageName = "testPckg";
+
+        when(mockApplication.getPackageManager()).thenReturn(mockPackageManager);
+        when(mockApplication.getPackageName()).thenReturn("");
+        when(mockPackageManager.getPackageInfo(anyString(), anyInt())).thenReturn(mockPackageInfo);
+        when(mockApplication.getApplicationInfo()).thenReturn(mockApplicationInfo);
+        when(mockApplication.getSharedPreferences(anyString(), anyInt())).thenReturn(mockSharedPrefs);
+        when(mockSharedPrefs.edit()).thenReturn(mockEditor);
+        when(mockEditor.putString(anyString(), anyString())).thenReturn(mockEditor);
+        when(mockApplication.getApplicationContext()).thenReturn(mockApplication);
+        when(mockApplication.getContentResolver()).thenReturn(mock(ContentResolver.class));
+
+        sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+        mockBatcher = mock(AvoBatcher.class);
+        sut.avoBatcher = mockBatcher;
+        sut.eventSpecFetcher = null;
+    }
+
+    @Test
+    public void asyncTrackReturnsSchemaFromPipelineThread() throws Exception {
+        final AtomicReference<String> extractionThread = new AtomicReference<>();
+        sut.registerTypeInferrer(StringBuilder.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                extractionThread.set(Thread.currentThread().getName());
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+        Map<String, Object> props = new HashMap<>();
+        props.put("name", new StringBuilder("value"));
+
+        Future<Map<String, AvoEventSchemaType>> future = sut.trackSchemaFromEventAsync("Event", props);
+        Map<String, AvoEventSchemaType> schema = future.get(5, TimeUnit.SECONDS);
+
+        assertEquals(new AvoEventSchemaType.AvoString(), schema.get("name"));
+        assertNotEquals(Thread.currentThread().getName(), extractionThread.get());
+        verify(mockBatcher).batchTrackEventSchema(eq("Event"), eq(schema), eq(null), eq(null), any());
+    }
+
+    @Test
+    public void asyncTrackSnapshotsPropertiesAtCallTime() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put("first", "value");
+
+        Future<Map<String, AvoEventSchemaType>> future = sut.trackSchemaFromEventAsync("Event", props);
+        props.put("second", 1);
+
+        assertEquals(1, future.get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void asyncTrackAcceptsJson() throws Exception {
+        JSONObject props = new JSONObject();
+        props.put("flag", true);
+
+        Map<String, AvoEventSchemaType> schema = sut.trackSchemaFromEventAsync("Event", props).get(5, TimeUnit.SECONDS);
+
+        assertEquals(new AvoEventSchemaType.AvoBoolean(), schema.get("flag"));
+    }
+
+    @Test
+    public void asyncTrackSnapshotsNestedJsonAtCallTime() throws Exception {
+        JSONArray list = new JSONArray();
+        list.put("value");
+        JSONObject props = new JSONObject();
+        props.put("list", list);
+
+        Future<Map<String, AvoEventSchemaType>> future = sut.trackSchemaFromEventAsync("Event", props);
+        list.put(1);
+        props.put("second", 1);
+
+        Map<String, AvoEventSchemaType> schema = future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, schema.size());
+        assertEquals(1, ((AvoEventSchemaType.AvoList) schema.get("list")).subtypes.size());
+    }
+
+    @Test
+    public void asyncTrackSnapshotsNestedMapsAndListsAtCallTime() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        sut.registerTypeInferrer(StringBuilder.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+        Map<String, Object> blocking = new HashMap<>();
+        blocking.put("name", new StringBuilder("value"));
+        sut.trackSchemaFromEventAsync("Blocking", blocking);
+
+        List<Object> list = new ArrayList<>();
+        list.add("value");
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("key", "value");
+        nested.put("self", nested);
+        Map<String, Object> props = new HashMap<>();
+        props.put("list", list);
+        props.put("nested", nested);
+        props.put("set", new HashSet<>(Collections.singleton("value")));
+        Future<Map<String, AvoEventSchemaType>> future = sut.trackSchemaFromEventAsync("Event", props);
+        list.add(1);
+        nested.put("second", 1);
+        release.countDown();
+
+        Map<String, AvoEventSchemaType> schema = future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, ((AvoEventSchemaType.AvoList) schema.get("list")).subtypes.size());
+        Map<String, AvoEventSchemaType> children = ((AvoEventSchemaType.AvoObject) schema.get("nested")).children;
+        assertEquals(2, children.size());
+        assertEquals("unknown", children.get("self").getReportedName());
+        assertEquals("list<string>", schema.get("set").getReportedName());
+    }
+
+    @Test
+    public void eventsDroppedByAFullQueueAreCounted() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        sut.registerTypeInferrer(StringBuilder.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+        Map<String, Object> blocking = new HashMap<>();
+        blocking.put("name", new StringBuilder("value"));
+        sut.trackSchemaFromEventAsync("Blocking", blocking);
+        // One event is running, so the queue fills up after 1000 more
+        for (int i = 0; i < 1000; i++) {
+            sut.trackSchemaFromEventAsync("Event", new HashMap<String, Object>());
+        }
+        assertEquals(0, sut.getDroppedIngestEventCount());
+
+        Map<String, Object> props = new HashMap<>();
+        props.put("key", "value");
+        Future<Map<String, AvoEventSchemaType>> dropped = sut.trackSchemaFromEventAsync("Dropped", props);
+
+        assertTrue(dropped.isDone());
+        assertTrue(dropped.get().isEmpty());
+        assertEquals(1, sut.getDroppedIngestEventCount());
+        release.countDown();
+    }
+
+    @Test
+    public void disablingAsyncIngestFinishesQueuedEvents() throws Exception {
+        sut.enableAsyncIngest(true);
+        for (int i = 0; i < 5; i++) {
+            sut.trackSchemaFromEvent("Event" + i, new HashMap<String, Object>());
+        }
+
+        sut.enableAsyncIngest(false);
+
+        verify(mockBatcher, timeout(5000).times(5))
+                .batchTrackEventSchema(anyString(), any(), eq(null), eq(null), any());
+        // A later async track starts a new pipeline thread
+        assertNotNull(sut.trackSchemaFromEventAsync("Event", new HashMap<String, Object>()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void asyncModeReturnsImmediatelyAndKeepsOrder() throws Exception {
+        sut.enableAsyncIngest(true);
+        assertTrue(sut.isAsyncIngestEnabled());
+
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> props = new HashMap<>();
+            props.put("index", i);
+            assertTrue(sut.trackSchemaFromEvent("Event" + i, props).isEmpty());
+        }
+        // Anything enqueued after the events completes after them
+        sut.trackSchemaFromEventAsync("Last", new HashMap<String, Object>()).get(5, TimeUnit.SECONDS);
+
+        InOrder inOrder = inOrder(mockBatcher);
+        for (int i = 0; i < 20; i++) {
+            inOrder.verify(mockBatcher).batchTrackEventSchema(eq("Event" + i), any(), eq(null), eq(null), any());
+        }
+    }
+
+    @Test
+    public void syncModeIsTheDefault() {
+        assertFalse(sut.isAsyncIngestEnabled());
+        Map<String, Object> props = new HashMap<>();
+        props.put("key", "value");
+
+        Map<String, AvoEventSchemaType> schema = sut.trackSchemaFromEvent("Event", props);
+
+        assertEquals(1, schema.size());
+        verify(mockBatcher).batchTrackEventSchema(eq("Event"), any(), eq(null), eq(null), any());
+    }
+}
@@ -3,6 +3,8 @@ package app.avo.inspector;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -370,6 +372,293 @@ public class AvoEventSpecFetcherTests {
         assertNull(result.get());
     }
 
+    @Test
+    public void missingSpecIsNotReportedAsFailure() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> null;
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+
+        assertEquals("noSpec", fetchOutcome(fetcher));
+    }
+
+    @Test
+    public void clientErrorIsReportedAsFailure() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> {
+            throw new IOException("Event spec request failed with status 503");
+        };
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+    }
+
+    @Test
+    public void timeoutIsReportedAsFailure() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> {
+            Thread.sleep(5000);
+            return createValidWireResponse();
+        };
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(100, 100, "dev", "https://api.avo.app", mockClient);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+    }
+
+    @Test
+    public void invalidResponseIsReportedAsFailure() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> new EventSpecResponseWire();
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+    }
+
+    @Test
+    public void repeatedFailuresOpenCircuitAndSkipFetching() throws Exception {
+        AtomicInteger clientCallCount = new AtomicInteger(0);
+        EventSpecRequestClient mockClient = (url, timeout) -> {
+            clientCallCount.incrementAndGet();
+            throw new IOException("Event spec request failed with status 503");
+        };
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+        fetcher.circuitBreaker.setLimits(2, 60_000);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+        assertEquals("failed", fetchOutcome(fetcher));
+        assertEquals(EventSpecFetchCircuitState.OPEN, fetcher.circuitBreaker.getState());
+
+        // Reported as rejected right away, without a request
+        assertEquals("rejected", fetchOutcome(fetcher));
+        assertEquals(2, clientCallCount.get());
+    }
+
+    @Test
+    public void missingSpecDoesNotOpenCircuit() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> null;
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+        fetcher.circuitBreaker.setLimits(2, 60_000);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("noSpec", fetchOutcome(fetcher));
+        }
+        assertEquals(EventSpecFetchCircuitState.CLOSED, fetcher.circuitBreaker.getState());
+    }
+
+    @Test
+    public void successfulTrialClosesCircuit() throws Exception {
+        AtomicInteger clientCallCount = new AtomicInteger(0);
+        EventSpecRequestClient mockClient = (url, timeout) -> {
+            if (clientCallCount.incrementAndGet() == 1) {
+                throw new IOException("Event spec request failed with status 503");
+            }
+            return createValidWireResponse();
+        };
+
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+        fetcher.circuitBreaker.setLimits(1, 50);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+        assertEquals(EventSpecFetchCircuitState.OPEN, fetcher.circuitBreaker.getState());
+        Thread.sleep(60);
+
+        assertEquals("spec", fetchOutcome(fetcher));
+        assertEquals(EventSpecFetchCircuitState.CLOSED, fetcher.circuitBreaker.getState());
+    }
+
+    @Test
+    public void streamingClientSpecIsUsedWithoutWireConversion() throws Exception {
+        AtomicInteger wireCalls = new AtomicInteger(0);
+        StreamingEventSpecRequestClient streamingClient = new StreamingEventSpecRequestClient() {
+            @Override
+            public EventSpecHttpResponse getSpec(EventSpecHttpRequest request) throws Exception {
+                return new EventSpecHttpResponse(EventSpecHttpResponse.OK, EventSpecResponseParser.parse(new StringReader(
+                        "{\"events\": [{\"id\": \"evt_1\"}],"
+                        + " \"metadata\": {\"schemaId\": \"s1\", \"branchId\": \"b1\", \"latestActionId\": \"a1\"}}")));
+            }
+
+            @Override
+            public EventSpecResponseWire get(String url, int timeoutMillis) {
+                wireCalls.incrementAndGet();
+                return null;
+            }
+        };
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", streamingClient);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<EventSpecResponse> result = new AtomicReference<>();
+        fetcher.fetch(createParams(), response -> {
+            result.set(response);
+            latch.countDown();
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("evt_1", result.get().events.get(0).baseEventId);
+        assertEquals("s1", result.get().metadata.schemaId);
+        assertEquals(0, wireCalls.get());
+    }
+
+    @Test
+    public void streamingClientSpecWithoutMetadataIsReportedAsFailure() throws Exception {
+        StreamingEventSpecRequestClient streamingClient = new StreamingEventSpecRequestClient() {
+            @Override
+            public EventSpecHttpResponse getSpec(EventSpecHttpRequest request) throws Exception {
+                return new EventSpecHttpResponse(EventSpecHttpResponse.OK,
+                        EventSpecResponseParser.parse(new StringReader("{\"events\": []}")));
+            }
+
+            @Override
+            public EventSpecResponseWire get(String url, int timeoutMillis) {
+                return null;
+            }
+        };
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", streamingClient);
+
+        assertEquals("failed", fetchOutcome(fetcher));
+    }
+
+    // =========================================================================
+    // Conditional revalidation
+    // =========================================================================
+
+    private StreamingEventSpecRequestClient recordingClient(AtomicReference<EventSpecHttpRequest> lastRequest, int status) {
+        return new StreamingEventSpecRequestClient() {
+            @Override
+            public EventSpecHttpResponse getSpec(EventSpecHttpRequest request) {
+                lastRequest.set(request);
+                return new EventSpecHttpResponse(status, status == EventSpecHttpResponse.OK
+                        ? AvoEventSpecFetcher.parseEventSpecResponse(createValidWireResponse()) : null);
+            }
+
+            @Override
+            public EventSpecResponseWire get(String url, int timeoutMillis) {
+                return null;
+            }
+        };
+    }
+
+    private FetchEventSpecParams createConditionalParams(String knownVersion) {
+        FetchEventSpecParams params = createParams();
+        params.knownVersion = knownVersion;
+        return params;
+    }
+
+    @Test
+    public void specVersionCombinesMetadataIds() {
+        EventSpecResponse spec = AvoEventSpecFetcher.parseEventSpecResponse(createValidWireResponse());
+
+        assertEquals("schema1:branch1:action1", AvoEventSpecFetcher.specVersion(spec));
+        spec.metadata.latestActionId = null;
+        assertNull(AvoEventSpecFetcher.specVersion(spec));
+        assertNull(AvoEventSpecFetcher.specVersion(null));
+    }
+
+    @Test
+    public void conditionalFetchSendsKnownVersionAndReportsNotModified() throws Exception {
+        AtomicReference<EventSpecHttpRequest> lastRequest = new AtomicReference<>();
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app",
+                recordingClient(lastRequest, EventSpecHttpResponse.NOT_MODIFIED));
+
+        assertEquals("notModified", revalidationOutcome(fetcher, createConditionalParams("schema1:branch1:action1")));
+        assertEquals("\"schema1:branch1:action1\"", lastRequest.get().headers.get("If-None-Match"));
+        assertEquals(EventSpecFetchCircuitState.CLOSED, fetcher.circuitBreaker.getState());
+    }
+
+    @Test
+    public void conditionalFetchOfChangedSpecDeliversIt() throws Exception {
+        AtomicReference<EventSpecHttpRequest> lastRequest = new AtomicReference<>();
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app",
+                recordingClient(lastRequest, EventSpecHttpResponse.OK));
+
+        assertEquals("spec", revalidationOutcome(fetcher, createConditionalParams("schema1:branch1:action0")));
+    }
+
+    @Test
+    public void sameVersionFromServerWithoutConditionalRequestsIsNotModified() throws Exception {
+        EventSpecRequestClient mockClient = (url, timeout) -> createValidWireResponse();
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app", mockClient);
+
+        assertEquals("notModified", revalidationOutcome(fetcher, createConditionalParams("schema1:branch1:action1")));
+        assertEquals("spec", revalidationOutcome(fetcher, createConditionalParams("schema1:branch1:action0")));
+    }
+
+    @Test
+    public void fetchWithoutRevalidationCallbackIsNotConditional() throws Exception {
+        AtomicReference<EventSpecHttpRequest> lastRequest = new AtomicReference<>();
+        AvoEventSpecFetcher fetcher = new AvoEventSpecFetcher(5000, "dev", "https://api.avo.app",
+                recordingClient(lastRequest, EventSpecHttpResponse.OK));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<EventSpecResponse> result = new AtomicReference<>();
+        fetcher.fetch(createConditionalParams("schema1:branch1:action1"), response -> {
+            result.set(response);
+            latch.countDown();
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+        assertTrue(lastRequest.get().headers.isEmpty());
+    }
+
+    private String revalidationOutcome(AvoEventSpecFetcher fetcher, FetchEventSpecParams params) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> outcome = new AtomicReference<>();
+        fetcher.fetch(params, new EventSpecRevalidationCallback() {
+            @Override
+            public void onResult(EventSpecResponse response) {
+                outcome.set(response != null ? "spec" : "noSpec");
+                latch.countDown();
+            }
+
+            @Override
+            public void onFetchFailed() {
+                outcome.set("failed");
+                latch.countDown();
+            }
+
+            @Override
+            public void onFetchRejected() {
+                outcome.set("rejected");
+                latch.countDown();
+            }
+
+            @Override
+            public void onNotModified() {
+                outcome.set("notModified");
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return outcome.get();
+    }
+
+    private String fetchOutcome(AvoEventSpecFetcher fetcher) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> outcome = new AtomicReference<>();
+        fetcher.fetch(createParams(), new EventSpecFetchFailureCallback() {
+            @Override
+            public void onResult(EventSpecResponse response) {
+                outcome.set(response != null ? "spec" : "noSpec");
+                latch.countDown();
+            }
+
+            @Override
+            public void onFetchFailed() {
+                outcome.set("failed");
+                latch.countDown();
+            }
+
+            @Override
+            public void onFetchRejected() {
+                outcome.set("rejected");
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return outcome.get();
+    }
+
     @Test
     public void responseWithNullEventsReturnsNull() throws Exception {
         CountDownLatch latch = new CountDownLatch(1);
@@ -0,0 +1,145 @@
+package app.avo.inspector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("unchecked")
+public class BoundedExtractionTests {
+
+    AvoSchemaExtractor sut;
+
+    @Before
+    public void setUp() {
+        sut = new AvoSchemaExtractor();
+    }
+
+    @Test
+    public void regularPayloadIsNotTruncated() {
+        Map<String, Object> props = new HashMap<>();
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("child", "str");
+        props.put("nested", nested);
+        props.put("int", 1);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertFalse(AvoSchemaExtractor.isTruncated(schema));
+        assertEquals(new AvoEventSchemaType.AvoInt(), schema.get("int"));
+        AvoEventSchemaType.AvoObject nestedType = (AvoEventSchemaType.AvoObject) schema.get("nested");
+        assertEquals(new AvoEventSchemaType.AvoString(), nestedType.children.get("child"));
+    }
+
+    @Test
+    public void selfContainingMapIsReportedAsUnknownInsteadOfOverflowing() {
+        Map<String, Object> props = new HashMap<>();
+        Map<String, Object> cyclic = new HashMap<>();
+        cyclic.put("name", "loop");
+        cyclic.put("self", cyclic);
+        props.put("cyclic", cyclic);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertTrue(AvoSchemaExtractor.isTruncated(schema));
+        AvoEventSchemaType.AvoObject cyclicType = (AvoEventSchemaType.AvoObject) schema.get("cyclic");
+        assertEquals(new AvoEventSchemaType.AvoString(), cyclicType.children.get("name"));
+        assertEquals(new AvoEventSchemaType.AvoUnknownType(), cyclicType.children.get("self"));
+    }
+
+    @Test
+    public void sharedNonCyclicValuesAreNotTreatedAsCycles() {
+        Map<String, Object> shared = new HashMap<>();
+        shared.put("a", 1);
+        List<Object> list = new ArrayList<>();
+        list.add(shared);
+        list.add(shared);
+        Map<String, Object> props = new HashMap<>();
+        props.put("first", shared);
+        props.put("second", shared);
+        props.put("list", list);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertFalse(AvoSchemaExtractor.isTruncated(schema));
+        assertEquals(schema.get("first"), schema.get("second"));
+    }
+
+    @Test
+    public void veryDeepNestingDoesNotOverflowTheStack() {
+        Map<String, Object> props = new HashMap<>();
+        Map<String, Object> current = props;
+        for (int i = 0; i < 100_000; i++) {
+            Map<String, Object> next = new HashMap<>();
+            current.put("next", next);
+            current = next;
+        }
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertTrue(AvoSchemaExtractor.isTruncated(schema));
+        assertTrue(schema.get("next") instanceof AvoEventSchemaType.AvoObject);
+    }
+
+    @Test
+    public void depthLimitKeepsTheContainerKind() {
+        sut.setLimits(1, AvoSchemaExtractor.DEFAULT_MAX_NODES, AvoSchemaExtractor.DEFAULT_TIME_BUDGET_MS);
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("deep", "value");
+        Map<String, Object> outer = new HashMap<>();
+        outer.put("inner", inner);
+        Map<String, Object> props = new HashMap<>();
+        props.put("outer", outer);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertTrue(AvoSchemaExtractor.isTruncated(schema));
+        AvoEventSchemaType.AvoObject outerType = (AvoEventSchemaType.AvoObject) schema.get("outer");
+        AvoEventSchemaType.AvoObject innerType = (AvoEventSchemaType.AvoObject) outerType.children.get("inner");
+        assertTrue(innerType.children.isEmpty());
+    }
+
+    @Test
+    public void nodeLimitKeepsAllTopLevelKeys() {
+        sut.setLimits(AvoSchemaExtractor.DEFAULT_MAX_DEPTH, 3, AvoSchemaExtractor.DEFAULT_TIME_BUDGET_MS);
+        Map<String, Object> props = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            props.put("prop" + i, i);
+        }
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertTrue(AvoSchemaExtractor.isTruncated(schema));
+        assertEquals(10, schema.size());
+        int known = 0;
+        for (AvoEventSchemaType type : schema.values()) {
+            if (type instanceof AvoEventSchemaType.AvoInt) {
+                known++;
+            }
+        }
+        assertEquals(3, known);
+    }
+
+    @Test
+    public void nodeLimitDoesNotAddUnknownToListSubtypes() {
+        sut.setLimits(AvoSchemaExtractor.DEFAULT_MAX_DEPTH, 5, AvoSchemaExtractor.DEFAULT_TIME_BUDGET_MS);
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add(i);
+        }
+        Map<String, Object> props = new HashMap<>();
+        props.put("list", list);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertTrue(AvoSchemaExtractor.isTruncated(schema));
+        assertEquals("list<int>", schema.get("list").getReportedName());
+    }
+}
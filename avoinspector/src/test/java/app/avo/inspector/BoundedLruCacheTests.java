@@ -0,0 +1,96 @@
+package app.avo.inspector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoundedLruCacheTests {
+
+    private BoundedLruCache<String, String> createCache(int maxEntries, long maxWeight) {
+        return new BoundedLruCache<>(maxEntries, maxWeight, (key, value) -> value.length());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntryAboveMaxEntries() {
+        BoundedLruCache<String, String> cache = createCache(2, 100);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsAboveMaxWeight() {
+        BoundedLruCache<String, String> cache = createCache(10, 10);
+        cache.put("a", "1234");
+        cache.put("b", "1234");
+
+        cache.put("c", "1234");
+
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.weight());
+    }
+
+    @Test
+    public void entryHeavierThanTheBudgetIsNotCached() {
+        BoundedLruCache<String, String> cache = createCache(10, 3);
+        cache.put("a", "12");
+
+        cache.put("a", "1234");
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void replacingAnEntryUpdatesTheWeight() {
+        BoundedLruCache<String, String> cache = createCache(10, 100);
+        cache.put("a", "1234");
+
+        cache.put("a", "12");
+
+        assertEquals("12", cache.get("a"));
+        assertEquals(2, cache.weight());
+    }
+
+    @Test
+    public void zeroMaxEntriesDisablesTheCache() {
+        BoundedLruCache<String, String> cache = createCache(10, 100);
+        cache.put("a", "1");
+
+        cache.setLimits(0, 100);
+        cache.put("b", "2");
+
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        BoundedLruCache<String, String> cache = createCache(10, 100);
+        cache.put("a", "1");
+
+        cache.clear();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void rejectsNegativeLimits() {
+        try {
+            createCache(-1, 100);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
@@ -13,13 +13,21 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
@@ -46,6 +54,8 @@ public class DeduplicatorTests {
 	private final Map<String, Map<String, Number>> testMap = new ConcurrentHashMap<>();
 	private final Map<String, AvoEventSchemaType> testSchema = new HashMap<>();
 
+	private AvoDeduplicator sut;
+
 	@Before
 	public void setUp() throws Exception {
 		MockitoAnnotations.initMocks(this);
@@ -64,7 +74,7 @@ public class DeduplicatorTests {
 		when(mockApplication.getApplicationContext()).thenReturn(mockApplication);
 		when(mockApplication.getContentResolver()).thenReturn(mock(ContentResolver.class));
 
-		AvoDeduplicator.clearEvents();
+		sut = new AvoDeduplicator();
 
 		Map<String, Number> nestedMap = new ConcurrentHashMap<>();
 		short sh = 1;
@@ -133,8 +143,8 @@ public class DeduplicatorTests {
 
 	@Test
 	public void detectsDuplicationsWhenTrackInAvoAndThenManually() {
-		boolean shouldRegisterFromAvo = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
-		boolean shouldRegisterManual = AvoDeduplicator.shouldRegisterEvent("Test", testMap, false);
+		boolean shouldRegisterFromAvo = sut.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterManual = sut.shouldRegisterEvent("Test", testMap, false);
 
 		assertTrue(shouldRegisterFromAvo);
 		assertFalse(shouldRegisterManual);
@@ -142,8 +152,8 @@ public class DeduplicatorTests {
 
 	@Test
 	public void detectsDuplicationsWhenTrackInAvoAndThenSchemaManually() {
-		boolean shouldRegisterFromAvo = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
-		boolean shouldRegisterManualSchema = AvoDeduplicator.shouldRegisterSchemaFromManually("Test", testSchema);
+		boolean shouldRegisterFromAvo = sut.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterManualSchema = sut.shouldRegisterSchemaFromManually("Test", testSchema);
 
 		assertTrue(shouldRegisterFromAvo);
 		assertFalse(shouldRegisterManualSchema);
@@ -151,8 +161,8 @@ public class DeduplicatorTests {
 
 	@Test
 	public void detectsDuplicationsWhenTrackManuallyAndThenInAvo() {
-		boolean shouldRegisterManual = AvoDeduplicator.shouldRegisterEvent("Test", testMap, false);
-		boolean shouldRegisterFromAvo = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterManual = sut.shouldRegisterEvent("Test", testMap, false);
+		boolean shouldRegisterFromAvo = sut.shouldRegisterEvent("Test", testMap, true);
 
 		assertTrue(shouldRegisterManual);
 		assertFalse(shouldRegisterFromAvo);
@@ -186,8 +196,8 @@ public class DeduplicatorTests {
 
 	@Test
 	public void allowsTwoSameManualEventsInARow() {
-		boolean shouldRegisterManual = AvoDeduplicator.shouldRegisterEvent("Test", testMap, false);
-		boolean shouldRegisterManualAgain = AvoDeduplicator.shouldRegisterEvent("Test", testMap, false);
+		boolean shouldRegisterManual = sut.shouldRegisterEvent("Test", testMap, false);
+		boolean shouldRegisterManualAgain = sut.shouldRegisterEvent("Test", testMap, false);
 
 		assertTrue(shouldRegisterManual);
 		assertTrue(shouldRegisterManualAgain);
@@ -195,8 +205,8 @@ public class DeduplicatorTests {
 
 	@Test
 	public void allowsTwoSameAvoFunctionsEventsInARow() {
-		boolean shouldRegisterAvoFunction = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
-		boolean shouldRegisterAvoFunctionAgain = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterAvoFunction = sut.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterAvoFunctionAgain = sut.shouldRegisterEvent("Test", testMap, true);
 
 		assertTrue(shouldRegisterAvoFunction);
 		assertTrue(shouldRegisterAvoFunctionAgain);
@@ -204,11 +214,260 @@ public class DeduplicatorTests {
 
 	@Test
 	public void doesNotDeduplicateIfMoreThan300msPass() throws InterruptedException {
-		boolean shouldRegisterFromAvo = AvoDeduplicator.shouldRegisterEvent("Test", testMap, true);
+		boolean shouldRegisterFromAvo = sut.shouldRegisterEvent("Test", testMap, true);
 		TimeUnit.MILLISECONDS.sleep(301);
-		boolean shouldRegisterManual = AvoDeduplicator.shouldRegisterEvent("Test", testMap, false);
+		boolean shouldRegisterManual = sut.shouldRegisterEvent("Test", testMap, false);
 
 		assertTrue(shouldRegisterFromAvo);
 		assertTrue(shouldRegisterManual);
 	}
+
+	@Test
+	public void eventsTrackedInTheSameMillisecondAreAllKept() {
+		for (int i = 0; i < 500; i++) {
+			sut.shouldRegisterEvent("Test" + i, testMap, true);
+		}
+
+		assertEquals(500, sut.pendingEventsCount());
+		for (int i = 0; i < 500; i++) {
+			assertFalse(sut.shouldRegisterEvent("Test" + i, testMap, false));
+		}
+	}
+
+	@Test
+	public void expiresAllEventsAfter300ms() throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			sut.shouldRegisterEvent("Test" + i, testMap, true);
+		}
+		TimeUnit.MILLISECONDS.sleep(301);
+
+		assertTrue(sut.shouldRegisterEvent("Test0", testMap, false));
+		assertEquals(1, sut.pendingEventsCount());
+	}
+
+	@Test
+	public void expiringAnOlderEventKeepsTheNewerParamsWithTheSameName() throws InterruptedException {
+		sut.shouldRegisterEvent("Test", testMap, true);
+		TimeUnit.MILLISECONDS.sleep(200);
+		sut.shouldRegisterEvent("Test", testMap, true);
+		TimeUnit.MILLISECONDS.sleep(150);
+
+		assertFalse(sut.shouldRegisterEvent("Test", testMap, false));
+	}
+
+	@Test
+	public void detectsDuplicationsInMultiThreadedBursts() throws InterruptedException {
+		final int threads = 8;
+		final int eventsPerThread = 250;
+		final AtomicInteger missedDuplicates = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<>();
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ignored) {}
+					for (int i = 0; i < eventsPerThread; i++) {
+						String eventName = "Burst " + thread + " " + i;
+						Map<String, Object> params = new HashMap<>();
+						params.put("index", i);
+						sut.shouldRegisterEvent(eventName, params, true);
+						if (sut.shouldRegisterEvent(eventName, new HashMap<>(params), false)) {
+							missedDuplicates.incrementAndGet();
+						}
+					}
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(0, missedDuplicates.get());
+	}
+
+	@Test
+	public void mapsEqualComparesEveryKey() {
+		Map<String, Object> firstMap = new LinkedHashMap<>();
+		firstMap.put("a", "same");
+		firstMap.put("b", 1);
+		Map<String, Object> secondMap = new LinkedHashMap<>();
+		secondMap.put("a", "same");
+		secondMap.put("b", 2);
+
+		assertFalse(Util.mapsEqual(firstMap, secondMap));
+	}
+
+	@Test
+	public void mapsEqualComparesListsItemByItem() {
+		Map<String, Object> firstMap = new HashMap<>();
+		firstMap.put("list", Arrays.asList("a", "b"));
+		Map<String, Object> secondMap = new HashMap<>();
+		secondMap.put("list", Arrays.asList("a", "b"));
+		Map<String, Object> reorderedMap = new HashMap<>();
+		reorderedMap.put("list", Arrays.asList("b", "a"));
+
+		assertTrue(Util.mapsEqual(firstMap, secondMap));
+		assertFalse(Util.mapsEqual(firstMap, reorderedMap));
+	}
+
+	@Test
+	public void fingerprintIgnoresMapOrderAndImplementation() {
+		Map<String, Object> firstMap = new LinkedHashMap<>();
+		firstMap.put("a", 1);
+		firstMap.put("b", new int[]{1, 2});
+		firstMap.put("c", Arrays.asList("x", testMap));
+		Map<String, Object> secondMap = new TreeMap<>(Collections.reverseOrder());
+		secondMap.putAll(firstMap);
+		secondMap.put("b", new int[]{1, 2});
+
+		assertTrue(Util.mapsEqual(firstMap, secondMap));
+		assertEquals(Util.fingerprint(firstMap), Util.fingerprint(secondMap));
+	}
+
+	@Test
+	public void fingerprintIgnoresArrayRuntimeClass() {
+		Map<String, Object> firstMap = new HashMap<>();
+		firstMap.put("a", new Object[]{"x", 1});
+		Map<String, Object> secondMap = new HashMap<>();
+		secondMap.put("a", new Comparable<?>[]{"x", 1});
+
+		assertTrue(Util.mapsEqual(firstMap, secondMap));
+		assertEquals(Util.fingerprint(firstMap), Util.fingerprint(secondMap));
+	}
+
+	@Test
+	public void fingerprintDiffersForDifferentParams() {
+		Map<String, Object> firstMap = new HashMap<>();
+		firstMap.put("a", "value");
+		Map<String, Object> secondMap = new HashMap<>();
+		secondMap.put("a", "other value");
+
+		assertNotEquals(Util.fingerprint(firstMap), Util.fingerprint(secondMap));
+	}
+
+	@Test
+	public void doesNotDeduplicateSameEventWithDifferentParams() {
+		Map<String, Object> otherParams = new HashMap<>();
+		otherParams.put("nested", "other");
+
+		assertTrue(sut.shouldRegisterEvent("Test", testMap, true));
+		assertTrue(sut.shouldRegisterEvent("Test", otherParams, false));
+	}
+
+	@Test
+	public void matchesAnyRecentParamsOfTheSameEvent() {
+		Map<String, Object> otherParams = new HashMap<>();
+		otherParams.put("nested", "other");
+
+		sut.shouldRegisterEvent("Test", testMap, true);
+		sut.shouldRegisterEvent("Test", otherParams, true);
+
+		assertFalse(sut.shouldRegisterEvent("Test", testMap, false));
+		assertFalse(sut.shouldRegisterEvent("Test", otherParams, false));
+	}
+
+	@Test
+	public void matchesManualSchemaAgainstTheSchemaStoredWithTheEvent() {
+		Map<String, AvoEventSchemaType> storedSchema = new HashMap<>();
+		storedSchema.put("nested", new AvoEventSchemaType.AvoString());
+
+		sut.shouldRegisterEvent("Test", testMap, storedSchema, true);
+
+		// The params would extract to testSchema, but only the stored schema is compared
+		assertTrue(sut.shouldRegisterSchemaFromManually("Test", testSchema));
+		assertFalse(sut.shouldRegisterSchemaFromManually("Test", storedSchema));
+	}
+
+	@Test
+	public void manualSchemaIsNotDeduplicatedTwiceAgainstTheSameEvent() {
+		sut.shouldRegisterEvent("Test", testMap, testSchema, true);
+
+		assertFalse(sut.shouldRegisterSchemaFromManually("Test", testSchema));
+		assertTrue(sut.shouldRegisterSchemaFromManually("Test", testSchema));
+	}
+
+	@Test
+	public void manualSchemaIsNotDeduplicatedAfterTheEventParamsWere() {
+		sut.shouldRegisterEvent("Test", testMap, testSchema, true);
+		assertFalse(sut.shouldRegisterEvent("Test", testMap, false));
+
+		assertTrue(sut.shouldRegisterSchemaFromManually("Test", testSchema));
+	}
+
+	@Test
+	public void windowIsConfigurable() throws InterruptedException {
+		sut.setWindowMillis(50);
+		sut.shouldRegisterEvent("Test", testMap, true);
+		TimeUnit.MILLISECONDS.sleep(60);
+
+		assertTrue(sut.shouldRegisterEvent("Test", testMap, false));
+		assertEquals(50, sut.getWindowMillis());
+	}
+
+	@Test
+	public void stripesOfEventsNoLongerTrackedAreDropped() throws InterruptedException {
+		sut.setWindowMillis(20);
+		for (int i = 0; i < AvoDeduplicator.SWEEP_INTERVAL - 1; i++) {
+			sut.shouldRegisterEvent("Dynamic" + i, testMap, false);
+		}
+		assertEquals(AvoDeduplicator.SWEEP_INTERVAL - 1, sut.stripeCount());
+		TimeUnit.MILLISECONDS.sleep(30);
+
+		sut.shouldRegisterEvent("Other", testMap, false);
+
+		assertEquals(1, sut.stripeCount());
+	}
+
+	@Test
+	public void eventsAreDeduplicatedAfterTheirStripeWasDropped() throws InterruptedException {
+		sut.setWindowMillis(20);
+		sut.shouldRegisterEvent("Test", testMap, true);
+		TimeUnit.MILLISECONDS.sleep(30);
+		assertEquals(0, sut.pendingEventsCount());
+		assertEquals(0, sut.stripeCount());
+
+		sut.shouldRegisterEvent("Test", testMap, true);
+
+		assertFalse(sut.shouldRegisterEvent("Test", testMap, false));
+	}
+
+	@Test
+	public void disabledDeduplicatorRegistersEverythingAndKeepsNothing() {
+		sut.setEnabled(false);
+
+		assertTrue(sut.shouldRegisterEvent("Test", testMap, true));
+		assertTrue(sut.shouldRegisterEvent("Test", testMap, false));
+		assertTrue(sut.shouldRegisterSchemaFromManually("Test", testSchema));
+		assertFalse(sut.hasSeenEventParams(testMap, true));
+		assertEquals(0, sut.pendingEventsCount());
+	}
+
+	@Test
+	public void inspectorsDoNotShareDeduplicationState() {
+		AvoInspector first = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+		AvoInspector second = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+		first.avoFunctionTrackSchemaFromEvent("Test", testMap, "eventId", "eventHash");
+
+		assertFalse(second.trackSchemaFromEvent("Test", testMap).isEmpty());
+		assertTrue(first.trackSchemaFromEvent("Test", testMap).isEmpty());
+	}
+
+	@Test
+	public void inspectorCanDisableDeduplication() {
+		AvoInspector avoInspector = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+		avoInspector.enableDeduplication(false);
+
+		avoInspector.avoFunctionTrackSchemaFromEvent("Test", testMap, "eventId", "eventHash");
+
+		assertFalse(avoInspector.trackSchemaFromEvent("Test", testMap).isEmpty());
+	}
 }
@@ -95,7 +95,6 @@ public class EncryptionIntegrationTests {
         AvoInspector.avoStorage = prevAvoStorage;
         AvoEncryption.base64Encoder = prevBase64Encoder;
         AvoAnonymousId.clearCache();
-        AvoDeduplicator.clearEvents();
     }
 
     // =========================================================================
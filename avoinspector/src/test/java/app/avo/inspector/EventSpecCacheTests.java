@@ -6,11 +6,13 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class EventSpecCacheTests {
@@ -135,22 +137,15 @@ public class EventSpecCacheTests {
     }
 
     // --- Test: TTL expiry returns null ---
-    // We test this by creating a cache entry with an old timestamp
-    // using reflection to set the timestamp field on the entry
+    // We test this by peeking at the cache entry and setting an old timestamp
 
     @Test
     public void ttlExpiryReturnsNull() throws Exception {
         EventSpecResponse spec = createTestSpec("schema_1", "branch_1");
         cache.set("apiKey", "stream1", "TestEvent", spec);
 
-        // Use reflection to access the internal cache map and set an old timestamp
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
-
-        EventSpecCacheEntry entry = internalCache.get("apiKey:stream1:TestEvent");
+        // Peek at the internal entry and set an old timestamp
+        EventSpecCacheEntry entry = cache.peek("apiKey", "stream1", "TestEvent");
         assertNotNull("Cache entry should exist", entry);
 
         // Set timestamp to more than TTL_MS (60000ms) ago to trigger expiry
@@ -167,14 +162,8 @@ public class EventSpecCacheTests {
         EventSpecResponse spec = createTestSpec("schema_1", "branch_1");
         cache.set("apiKey", "stream1", "TestEvent", spec);
 
-        // Use reflection to set eventCount to MAX_EVENT_COUNT
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
-
-        EventSpecCacheEntry entry = internalCache.get("apiKey:stream1:TestEvent");
+        // Peek at the internal entry and set eventCount to the use limit
+        EventSpecCacheEntry entry = cache.peek("apiKey", "stream1", "TestEvent");
         assertNotNull("Cache entry should exist", entry);
 
         // Set eventCount to 50 (MAX_EVENT_COUNT), which should trigger eviction
@@ -184,53 +173,83 @@ public class EventSpecCacheTests {
         assertNull("Entry with eventCount >= MAX_EVENT_COUNT should return null", result);
     }
 
-    // --- Test: LRU eviction removes oldest entry when globalEventCount hits MAX_EVENT_COUNT ---
+    // --- Test: LRU eviction removes the least recently used entry above capacity ---
 
     @Test
-    public void lruEvictionRemovesOldestEntry() throws Exception {
-        // Add two entries with different lastAccessed times
-        EventSpecResponse spec1 = createTestSpec("schema_old", "branch_old");
-        EventSpecResponse spec2 = createTestSpec("schema_new", "branch_new");
+    public void lruEvictionRemovesLeastRecentlyUsedEntry() {
+        cache = new EventSpecCache(2, EventSpecCache.DEFAULT_TTL_MS, EventSpecCache.DEFAULT_MAX_USES_PER_ENTRY);
+        cache.set("apiKey", "stream1", "OldEvent", createTestSpec("schema_old", "branch_old"));
+        cache.set("apiKey", "stream1", "NewEvent", createTestSpec("schema_new", "branch_new"));
+
+        // Using OldEvent makes NewEvent the least recently used
+        assertNotNull(cache.get("apiKey", "stream1", "OldEvent"));
+        cache.set("apiKey", "stream1", "NewestEvent", createTestSpec("schema_newest", "branch_newest"));
+
+        assertEquals(2, cache.size());
+        assertNull("NewEvent should have been evicted", cache.get("apiKey", "stream1", "NewEvent"));
+        assertNotNull(cache.get("apiKey", "stream1", "OldEvent"));
+        assertNotNull(cache.get("apiKey", "stream1", "NewestEvent"));
+    }
 
-        cache.set("apiKey", "stream1", "OldEvent", spec1);
-        cache.set("apiKey", "stream1", "NewEvent", spec2);
+    // --- Test: Hits on warm entries never evict other entries ---
 
-        // Use reflection to make OldEvent have an older lastAccessed
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
+    @Test
+    public void hitsDoNotEvictOtherEntries() {
+        cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Event2", createTestSpec("s2", "b2"));
+
+        for (int i = 0; i < 200; i++) {
+            cache.get("apiKey", "stream1", "Event" + (i % 2 + 1));
+            cache.set("apiKey", "stream1", "Event" + (i % 2 + 1), createTestSpec("s", "b"));
+        }
 
-        EventSpecCacheEntry oldEntry = internalCache.get("apiKey:stream1:OldEvent");
-        assertNotNull(oldEntry);
-        oldEntry.lastAccessed = 1000L; // Very old lastAccessed
+        assertEquals(2, cache.size());
+    }
 
-        EventSpecCacheEntry newEntry = internalCache.get("apiKey:stream1:NewEvent");
-        assertNotNull(newEntry);
-        newEntry.lastAccessed = System.currentTimeMillis(); // Recent lastAccessed
+    // --- Test: Large tracking plans stay fully cached ---
 
-        // Set globalEventCount to just below threshold so the next cache hit triggers eviction
-        java.lang.reflect.Field globalCountField = EventSpecCache.class.getDeclaredField("globalEventCount");
-        globalCountField.setAccessible(true);
-        globalCountField.setInt(cache, 49);
+    @Test
+    public void defaultCapacityKeepsHundredsOfEvents() {
+        for (int i = 0; i < 300; i++) {
+            cache.set("apiKey", "stream1", "Event" + i, createTestSpec("s" + i, "b"));
+        }
 
-        // Access NewEvent - this should trigger LRU eviction (globalEventCount becomes 50)
-        EventSpecResponse result = cache.get("apiKey", "stream1", "NewEvent");
-        assertNotNull("NewEvent should still be accessible", result);
-        assertEquals("schema_new", result.metadata.schemaId);
+        assertEquals(300, cache.size());
+        assertNotNull(cache.get("apiKey", "stream1", "Event0"));
+    }
+
+    // --- Test: Shrinking the capacity drops the least recently used entries ---
+
+    @Test
+    public void shrinkingCapacityDropsLeastRecentlyUsedEntries() {
+        cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Event2", createTestSpec("s2", "b2"));
+        cache.set("apiKey", "stream1", "Event3", createTestSpec("s3", "b3"));
+        cache.get("apiKey", "stream1", "Event1");
+
+        cache.setLimits(2, EventSpecCache.DEFAULT_TTL_MS, EventSpecCache.DEFAULT_MAX_USES_PER_ENTRY);
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains("apiKey", "stream1", "Event2"));
+        assertTrue(cache.contains("apiKey", "stream1", "Event1"));
+    }
+
+    // --- Test: TTL and use limit are configurable ---
 
-        // OldEvent should have been evicted (it had the oldest lastAccessed)
-        // But we need to verify the size decreased
-        // Note: After eviction, the cache should have 1 entry (NewEvent)
-        assertEquals("Cache should have 1 entry after eviction", 1, cache.size());
+    @Test
+    public void ttlAndUseLimitAreConfigurable() throws Exception {
+        cache = new EventSpecCache(EventSpecCache.DEFAULT_MAX_ENTRIES, 10, 0);
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
 
-        // Verify OldEvent was the one evicted
-        EventSpecResponse oldResult = cache.get("apiKey", "stream1", "OldEvent");
-        assertNull("OldEvent should have been evicted", oldResult);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull("No use limit", cache.get("apiKey", "stream1", "TestEvent"));
+        }
+
+        Thread.sleep(20);
+        assertNull(cache.get("apiKey", "stream1", "TestEvent"));
     }
 
-    // --- Test: Cache hit increments eventCount and globalEventCount ---
+    // --- Test: Cache hit increments eventCount ---
 
     @Test
     public void cacheHitIncrementsCounters() throws Exception {
@@ -240,31 +259,17 @@ public class EventSpecCacheTests {
         // First hit
         cache.get("apiKey", "stream1", "TestEvent");
 
-        // Use reflection to check counters
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
-
-        EventSpecCacheEntry entry = internalCache.get("apiKey:stream1:TestEvent");
+        // Peek at the internal entry to check the counter
+        EventSpecCacheEntry entry = cache.peek("apiKey", "stream1", "TestEvent");
         assertNotNull(entry);
         assertEquals("eventCount should be 1 after one hit", 1, entry.eventCount);
 
-        java.lang.reflect.Field globalCountField = EventSpecCache.class.getDeclaredField("globalEventCount");
-        globalCountField.setAccessible(true);
-        int globalCount = globalCountField.getInt(cache);
-        assertEquals("globalEventCount should be 1 after one hit", 1, globalCount);
-
         // Second hit
         cache.get("apiKey", "stream1", "TestEvent");
 
-        entry = internalCache.get("apiKey:stream1:TestEvent");
+        entry = cache.peek("apiKey", "stream1", "TestEvent");
         assertNotNull(entry);
         assertEquals("eventCount should be 2 after two hits", 2, entry.eventCount);
-
-        globalCount = globalCountField.getInt(cache);
-        assertEquals("globalEventCount should be 2 after two hits", 2, globalCount);
     }
 
     // --- Test: Cache key format includes apiKey, streamId, eventName ---
@@ -336,13 +341,14 @@ public class EventSpecCacheTests {
         assertNull(cache.get("apiKey", "stream1", "UnknownEvent"));
     }
 
-    // --- Test: null spec entry counts toward cache size ---
+    // --- Test: null spec entry is kept apart from the specs ---
 
     @Test
-    public void nullSpecEntryCountsTowardSize() {
+    public void nullSpecEntryDoesNotCountTowardSize() {
         cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
         cache.set("apiKey", "stream1", "Event2", null);
-        assertEquals(2, cache.size());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.negativeSize());
     }
 
     // --- Test: null spec entry expires via TTL ---
@@ -351,14 +357,8 @@ public class EventSpecCacheTests {
     public void nullSpecEntryExpiresViaTtl() throws Exception {
         cache.set("apiKey", "stream1", "UnknownEvent", null);
 
-        // Use reflection to set old timestamp
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
-
-        EventSpecCacheEntry entry = internalCache.get("apiKey:stream1:UnknownEvent");
+        // Peek at the internal entry and set an old timestamp
+        EventSpecCacheEntry entry = cache.peek("apiKey", "stream1", "UnknownEvent");
         assertNotNull(entry);
         entry.timestamp = System.currentTimeMillis() - 61_000; // exceed TTL_MS (60000ms)
 
@@ -372,13 +372,8 @@ public class EventSpecCacheTests {
     public void containsReturnsFalseForExpiredEntry() throws Exception {
         cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
 
-        java.lang.reflect.Field cacheField = EventSpecCache.class.getDeclaredField("cache");
-        cacheField.setAccessible(true);
-        @SuppressWarnings("unchecked")
-        HashMap<String, EventSpecCacheEntry> internalCache =
-                (HashMap<String, EventSpecCacheEntry>) cacheField.get(cache);
 
-        EventSpecCacheEntry entry = internalCache.get("apiKey:stream1:TestEvent");
+        EventSpecCacheEntry entry = cache.peek("apiKey", "stream1", "TestEvent");
         assertNotNull(entry);
         entry.timestamp = System.currentTimeMillis() - 61_000; // exceed TTL_MS (60000ms)
 
@@ -408,31 +403,558 @@ public class EventSpecCacheTests {
     public void clearRemovesNullSpecEntries() {
         cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
         cache.set("apiKey", "stream1", "Event2", null);
-        assertEquals(2, cache.size());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.negativeSize());
 
         cache.clear();
 
         assertEquals(0, cache.size());
+        assertEquals(0, cache.negativeSize());
         assertFalse(cache.contains("apiKey", "stream1", "Event1"));
         assertFalse(cache.contains("apiKey", "stream1", "Event2"));
     }
 
-    // --- Test: globalEventCount resets after eviction ---
+    // =========================================================================
+    // STALE WHILE REVALIDATE
+    // =========================================================================
+
+    private void ageEntry(String eventName, long ageMs) {
+        cache.peek("apiKey", "stream1", eventName).timestamp = System.currentTimeMillis() - ageMs;
+    }
 
     @Test
-    public void globalEventCountResetsAfterEviction() throws Exception {
-        EventSpecResponse spec = createTestSpec("schema_1", "branch_1");
+    public void staleSpecIsServedAndRefreshedOnce() throws Exception {
+        cache.setStaleWhileRevalidate(true, 60_000);
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+        assertFalse("Fresh entries need no refresh", cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+
+        ageEntry("TestEvent", 61_000);
+
+        assertTrue(cache.contains("apiKey", "stream1", "TestEvent"));
+        assertEquals("s1", cache.get("apiKey", "stream1", "TestEvent").metadata.schemaId);
+        assertTrue(cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+        assertFalse("Only one refresh per stale entry", cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s2", "b1"));
+        assertFalse(cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+        assertEquals("s2", cache.get("apiKey", "stream1", "TestEvent").metadata.schemaId);
+    }
+
+    @Test
+    public void specsOverUseLimitAreServedStale() {
+        cache = new EventSpecCache(EventSpecCache.DEFAULT_MAX_ENTRIES, EventSpecCache.DEFAULT_TTL_MS, 2);
+        cache.setStaleWhileRevalidate(true, 60_000);
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("apiKey", "stream1", "TestEvent"));
+        }
+        assertTrue(cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+    }
+
+    @Test
+    public void specsOverMaxStalenessAreDropped() throws Exception {
+        cache.setStaleWhileRevalidate(true, 1_000);
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        ageEntry("TestEvent", 62_000);
+
+        assertFalse(cache.contains("apiKey", "stream1", "TestEvent"));
+        assertNull(cache.get("apiKey", "stream1", "TestEvent"));
+    }
+
+    @Test
+    public void emptyResponsesAreNotServedStale() throws Exception {
+        cache.setStaleWhileRevalidate(true, 60_000);
+        cache.set("apiKey", "stream1", "UnknownEvent", null);
+
+        ageEntry("UnknownEvent", 61_000);
+
+        assertFalse(cache.contains("apiKey", "stream1", "UnknownEvent"));
+        assertFalse(cache.claimRefresh("apiKey", "stream1", "UnknownEvent"));
+    }
+
+    @Test
+    public void staleSpecsExpireWhenModeIsOff() throws Exception {
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        ageEntry("TestEvent", 61_000);
+
+        assertFalse(cache.contains("apiKey", "stream1", "TestEvent"));
+        assertFalse(cache.claimRefresh("apiKey", "stream1", "TestEvent"));
+    }
+
+    // =========================================================================
+    // LOOKUP
+    // =========================================================================
+
+    @Test
+    public void lookupDistinguishesHitNegativeHitAndMiss() {
+        cache.set("apiKey", "stream1", "Known", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Unknown", null);
+
+        EventSpecCacheEntry hit = cache.lookup(new EventSpecKey("apiKey", "stream1", "Known"));
+        EventSpecCacheEntry negativeHit = cache.lookup(new EventSpecKey("apiKey", "stream1", "Unknown"));
+
+        assertNotNull(hit);
+        assertEquals("s1", hit.spec.metadata.schemaId);
+        assertNotNull(negativeHit);
+        assertNull(negativeHit.spec);
+        assertNull(cache.lookup(new EventSpecKey("apiKey", "stream1", "Missing")));
+    }
+
+    @Test
+    public void lookupCountsOneUse() {
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        cache.lookup(new EventSpecKey("apiKey", "stream1", "TestEvent"));
+
+        assertEquals(1, cache.peek("apiKey", "stream1", "TestEvent").eventCount);
+    }
+
+    @Test
+    public void keysWithSameConcatenationAreDistinct() {
+        cache.set("api", "Key:stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        assertNull(cache.lookup(new EventSpecKey("api:Key", "stream1", "TestEvent")));
+        assertNotNull(cache.lookup(new EventSpecKey("api", "Key:stream1", "TestEvent")));
+    }
+
+    @Test
+    public void concurrentLookupsAndWritesKeepCapacity() throws Exception {
+        cache = new EventSpecCache(20, EventSpecCache.DEFAULT_TTL_MS, 0);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            EventSpecKey key = new EventSpecKey("apiKey", "stream1", "Event" + ((i + thread) % 40));
+                            if (cache.lookup(key) == null) {
+                                cache.set(key, createTestSpec("s", "b"));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(worker);
+            worker.start();
+        }
+        for (Thread worker : threads) {
+            worker.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertTrue(cache.size() <= 20);
+    }
+
+    @Test
+    public void expiredEntriesRemovedUnderContentionLeaveNoWeight() throws Exception {
+        cache.set("apiKey", "stream1", "Fresh", createTestSpec("s", "b"));
+        final long freshWeight = cache.weight();
+        for (int i = 0; i < 200; i++) {
+            EventSpecResponse spec = createTestSpec("s", "b");
+            // Without a version, an expired spec is removed rather than kept for revalidation
+            spec.metadata.latestActionId = null;
+            cache.set("apiKey", "stream1", "Event" + i, spec);
+            ageEntry("Event" + i, EventSpecCache.DEFAULT_TTL_MS + 1_000);
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            // Hits on the fresh entry hold the lock while the expired ones are removed
+                            cache.lookup(new EventSpecKey("apiKey", "stream1", "Fresh"));
+                            cache.lookup(new EventSpecKey("apiKey", "stream1", "Event" + ((i + thread * 25) % 200)));
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(worker);
+            worker.start();
+        }
+        for (Thread worker : threads) {
+            worker.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(1, cache.size());
+        assertEquals(freshWeight, cache.weight());
+    }
+
+    // =========================================================================
+    // NEGATIVE CACHE
+    // =========================================================================
+
+    private EventSpecCache.NegativeEntry peekNegative(String eventName) {
+        return (EventSpecCache.NegativeEntry) cache.peek("apiKey", "stream1", eventName);
+    }
+
+    @Test
+    public void negativeEntriesNeverEvictSpecs() {
+        cache = new EventSpecCache(2, EventSpecCache.DEFAULT_TTL_MS, 0);
+        cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Event2", createTestSpec("s2", "b1"));
+
+        for (int i = 0; i < 10; i++) {
+            cache.set("apiKey", "stream1", "Unknown" + i, null);
+        }
+        cache.setFetchFailed(new EventSpecKey("apiKey", "stream1", "Failing"));
+
+        assertEquals(2, cache.size());
+        assertEquals(11, cache.negativeSize());
+        assertNotNull(cache.get("apiKey", "stream1", "Event1"));
+        assertNotNull(cache.get("apiKey", "stream1", "Event2"));
+    }
+
+    @Test
+    public void negativeEntriesHaveTheirOwnCapacity() {
+        cache.setNegativeLimits(3, EventSpecCache.DEFAULT_NO_SPEC_TTL_MS);
+        cache.set("apiKey", "stream1", "Event1", createTestSpec("s1", "b1"));
+
+        for (int i = 0; i < 5; i++) {
+            cache.set("apiKey", "stream1", "Unknown" + i, null);
+        }
+
+        assertEquals(3, cache.negativeSize());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiredNegativeEntriesAreEvictedFirst() {
+        cache.setNegativeLimits(2, EventSpecCache.DEFAULT_NO_SPEC_TTL_MS);
+        cache.set("apiKey", "stream1", "Old", null);
+        cache.set("apiKey", "stream1", "Recent", null);
+        ageEntry("Old", EventSpecCache.DEFAULT_NO_SPEC_TTL_MS + 1_000);
+
+        cache.set("apiKey", "stream1", "New", null);
+
+        assertNull(cache.peek("apiKey", "stream1", "Old"));
+        assertTrue(cache.contains("apiKey", "stream1", "Recent"));
+        assertTrue(cache.contains("apiKey", "stream1", "New"));
+    }
+
+    @Test
+    public void noSpecTtlIsSeparateFromSpecTtl() {
+        cache.setNegativeLimits(EventSpecCache.DEFAULT_MAX_NEGATIVE_ENTRIES, 120_000);
+        cache.set("apiKey", "stream1", "Known", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Unknown", null);
+
+        ageEntry("Known", 61_000);
+        ageEntry("Unknown", 61_000);
+
+        assertFalse(cache.contains("apiKey", "stream1", "Known"));
+        assertTrue(cache.contains("apiKey", "stream1", "Unknown"));
+    }
+
+    @Test
+    public void fetchFailuresBackOffExponentially() {
+        cache.setFailureBackoff(1_000, 4_000);
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "Failing");
+
+        long[] expectedBackoffs = {1_000, 2_000, 4_000, 4_000};
+        for (int i = 0; i < expectedBackoffs.length; i++) {
+            cache.setFetchFailed(key);
+            assertEquals(i + 1, peekNegative("Failing").failures);
+            assertEquals(expectedBackoffs[i], peekNegative("Failing").lifetimeMs);
+        }
+    }
+
+    @Test
+    public void fetchFailureIsRetriedAfterBackoff() {
+        cache.setFailureBackoff(1_000, 4_000);
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "Failing");
+        cache.setFetchFailed(key);
+
+        EventSpecCacheEntry backingOff = cache.lookup(key);
+        assertNotNull(backingOff);
+        assertNull(backingOff.spec);
+
+        ageEntry("Failing", 1_500);
+
+        assertNull("Backoff over, the event is fetched again", cache.lookup(key));
+        cache.setFetchFailed(key);
+        assertEquals("Expired failures still grow the backoff", 2, peekNegative("Failing").failures);
+    }
+
+    @Test
+    public void answerResetsFetchFailures() {
+        cache.setFailureBackoff(1_000, 4_000);
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "Flaky");
+        cache.setFetchFailed(key);
+        cache.setFetchFailed(key);
+
+        cache.set(key, null);
+        assertEquals(0, peekNegative("Flaky").failures);
+        assertEquals(EventSpecCache.DEFAULT_NO_SPEC_TTL_MS, peekNegative("Flaky").lifetimeMs);
+
+        cache.setFetchFailed(key);
+        assertEquals(1_000, peekNegative("Flaky").lifetimeMs);
+
+        cache.set(key, createTestSpec("s1", "b1"));
+        assertEquals(0, cache.negativeSize());
+        assertEquals("s1", cache.get("apiKey", "stream1", "Flaky").metadata.schemaId);
+    }
+
+    @Test
+    public void fetchFailureKeepsCachedSpec() {
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
+        cache.set(key, createTestSpec("s1", "b1"));
+
+        cache.setFetchFailed(key);
+
+        assertEquals("s1", cache.get("apiKey", "stream1", "TestEvent").metadata.schemaId);
+    }
+
+    @Test
+    public void noSpecAnswerReplacesCachedSpec() {
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        cache.set("apiKey", "stream1", "TestEvent", null);
+
+        assertEquals(0, cache.size());
+        assertTrue(cache.contains("apiKey", "stream1", "TestEvent"));
+        assertNull(cache.get("apiKey", "stream1", "TestEvent"));
+    }
+
+    // =========================================================================
+    // MEMORY BUDGET
+    // =========================================================================
+
+    private EventSpecResponse createHeavySpec(String schemaId, int allowedValues) {
+        EventSpecResponse spec = createTestSpec(schemaId, "b1");
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.type = "string";
+        constraints.allowedValues = new HashMap<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < allowedValues; i++) {
+            values.add("allowed value number " + i);
+        }
+        constraints.allowedValues.put("[\"evt_1\"]", values);
+        constraints.children = new HashMap<>();
+        constraints.children.put("nested", new PropertyConstraints());
+        spec.events.get(0).props.put("choice", constraints);
+        return spec;
+    }
+
+    @Test
+    public void weightGrowsWithSpecContents() {
+        long small = EventSpecWeigher.weigh(createTestSpec("s1", "b1"));
+        long heavy = EventSpecWeigher.weigh(createHeavySpec("s1", 1000));
+
+        assertTrue(small > 0);
+        assertTrue("1000 allowed values of ~25 chars weigh more than 50 KB", heavy > 50_000);
+        assertTrue(heavy > EventSpecWeigher.weigh(createHeavySpec("s1", 10)));
+    }
+
+    @Test
+    public void weightIsAccountedOnSetOverwriteAndClear() {
+        EventSpecResponse small = createTestSpec("s1", "b1");
+        EventSpecResponse heavy = createHeavySpec("s2", 100);
+
+        cache.set("apiKey", "stream1", "Event1", small);
+        cache.set("apiKey", "stream1", "Event2", heavy);
+        assertEquals(EventSpecWeigher.weigh(small) + EventSpecWeigher.weigh(heavy), cache.weight());
+
+        cache.set("apiKey", "stream1", "Event2", small);
+        assertEquals(2 * EventSpecWeigher.weigh(small), cache.weight());
+
+        cache.set("apiKey", "stream1", "Event2", null);
+        assertEquals(EventSpecWeigher.weigh(small), cache.weight());
+
+        cache.clear();
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void leastRecentlyUsedSpecsAreEvictedOverBudget() {
+        long heavyWeight = EventSpecWeigher.weigh(createHeavySpec("s0", 100));
+        cache.setMaxWeight(heavyWeight * 2 + heavyWeight / 2);
+
+        cache.set("apiKey", "stream1", "Event1", createHeavySpec("s1", 100));
+        cache.set("apiKey", "stream1", "Event2", createHeavySpec("s2", 100));
+        cache.get("apiKey", "stream1", "Event1");
+        cache.set("apiKey", "stream1", "Event3", createHeavySpec("s3", 100));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.weight() <= heavyWeight * 2 + heavyWeight / 2);
+        assertTrue(cache.contains("apiKey", "stream1", "Event1"));
+        assertFalse(cache.contains("apiKey", "stream1", "Event2"));
+        assertTrue(cache.contains("apiKey", "stream1", "Event3"));
+    }
+
+    @Test
+    public void specOverBudgetIsNotCached() {
+        cache.set("apiKey", "stream1", "Small", createTestSpec("s1", "b1"));
+        cache.set("apiKey", "stream1", "Heavy", createHeavySpec("s2", 10));
+        cache.setMaxWeight(EventSpecWeigher.weigh(createHeavySpec("s3", 1000)) - 1);
+
+        cache.set("apiKey", "stream1", "Heavy", createHeavySpec("s3", 1000));
+
+        assertFalse("The outdated spec is not kept either", cache.contains("apiKey", "stream1", "Heavy"));
+        assertTrue(cache.contains("apiKey", "stream1", "Small"));
+        assertEquals(EventSpecWeigher.weigh(createTestSpec("s1", "b1")), cache.weight());
+    }
+
+    @Test
+    public void lowerBudgetEvictsImmediately() {
+        for (int i = 0; i < 5; i++) {
+            cache.set("apiKey", "stream1", "Event" + i, createHeavySpec("s" + i, 100));
+        }
+
+        cache.setMaxWeight(EventSpecWeigher.weigh(createHeavySpec("s0", 100)) * 2);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("apiKey", "stream1", "Event3"));
+        assertTrue(cache.contains("apiKey", "stream1", "Event4"));
+    }
+
+    @Test
+    public void trimToWeightKeepsMostRecentlyUsedAndBudget() {
+        for (int i = 0; i < 4; i++) {
+            cache.set("apiKey", "stream1", "Event" + i, createHeavySpec("s" + i, 100));
+        }
+        cache.get("apiKey", "stream1", "Event0");
+        long before = cache.weight();
+
+        cache.trimToWeight(before / 2);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("apiKey", "stream1", "Event0"));
+        assertTrue(cache.contains("apiKey", "stream1", "Event3"));
+
+        cache.set("apiKey", "stream1", "Event1", createHeavySpec("s1", 100));
+        assertEquals("The budget is unchanged by a trim", 3, cache.size());
+    }
+
+    // =========================================================================
+    // REVALIDATION
+    // =========================================================================
+
+    @Test
+    public void expiredSpecIsKeptForRevalidation() {
+        EventSpecResponse spec = createTestSpec("s1", "b1");
         cache.set("apiKey", "stream1", "TestEvent", spec);
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
+        assertNull("Fresh specs are served, not revalidated", cache.expiredEntry(key));
+
+        ageEntry("TestEvent", 61_000);
+
+        assertNull(cache.get("apiKey", "stream1", "TestEvent"));
+        assertSame(spec, cache.expiredEntry(key).spec);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiredSpecWithoutVersionIsDropped() {
+        cache.set("apiKey", "stream1", "TestEvent", new EventSpecResponse());
+        ageEntry("TestEvent", 61_000);
+
+        assertNull(cache.get("apiKey", "stream1", "TestEvent"));
+        assertNull(cache.expiredEntry(new EventSpecKey("apiKey", "stream1", "TestEvent")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void failedRevalidationBacksOff() {
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
+        ageEntry("TestEvent", 61_000);
+
+        cache.setFetchFailed(key);
+
+        EventSpecCacheEntry backingOff = cache.lookup(key);
+        assertNotNull(backingOff);
+        assertNull(backingOff.spec);
+        assertNotNull("Still revalidated once the backoff is over", cache.expiredEntry(key));
+
+        backingOff.timestamp -= EventSpecCache.DEFAULT_FAILURE_BACKOFF_MS + 1_000;
 
-        // Set globalEventCount to 49 so next hit triggers eviction + reset
-        java.lang.reflect.Field globalCountField = EventSpecCache.class.getDeclaredField("globalEventCount");
-        globalCountField.setAccessible(true);
-        globalCountField.setInt(cache, 49);
+        assertNull(cache.lookup(key));
+        assertFalse(cache.contains("apiKey", "stream1", "TestEvent"));
+    }
 
-        // This hit should trigger eviction and reset globalEventCount to 0
+    @Test
+    public void revalidatedSpecIsServedAgainWithNewLimits() {
+        cache.setLimits(EventSpecCache.DEFAULT_MAX_ENTRIES, EventSpecCache.DEFAULT_TTL_MS, 2);
+        EventSpecResponse spec = createTestSpec("s1", "b1");
+        cache.set("apiKey", "stream1", "TestEvent", spec);
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
         cache.get("apiKey", "stream1", "TestEvent");
+        cache.get("apiKey", "stream1", "TestEvent");
+        long weight = cache.weight();
+
+        EventSpecCacheEntry expired = cache.expiredEntry(key);
+        assertSame("Out of uses", spec, expired.spec);
+        cache.revalidated(key, spec, expired.plan);
+
+        assertSame(spec, cache.get("apiKey", "stream1", "TestEvent"));
+        assertSame("The plan is not compiled again", expired.plan, cache.peek("apiKey", "stream1", "TestEvent").plan);
+        assertEquals(1, cache.peek("apiKey", "stream1", "TestEvent").eventCount);
+        assertEquals(weight, cache.weight());
+    }
+
+    @Test
+    public void revalidationDoesNotOverwriteNewerSpec() {
+        EventSpecResponse old = createTestSpec("s1", "b1");
+        EventSpecResponse newer = createTestSpec("s2", "b1");
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
+        cache.set(key, old);
+        cache.set(key, newer);
+
+        cache.revalidated(key, old, null);
+
+        assertSame(newer, cache.get("apiKey", "stream1", "TestEvent"));
+    }
+
+    @Test
+    public void revalidationCachesSpecDroppedInTheMeantime() {
+        EventSpecResponse spec = createTestSpec("s1", "b1");
+        EventSpecKey key = new EventSpecKey("apiKey", "stream1", "TestEvent");
+        cache.set(key, spec);
+        cache.clear();
+
+        cache.revalidated(key, spec, null);
+
+        assertSame(spec, cache.get("apiKey", "stream1", "TestEvent"));
+        assertTrue(cache.weight() > 0);
+    }
+
+    // =========================================================================
+    // VALIDATION PLAN
+    // =========================================================================
+
+    @Test
+    public void cachedSpecCarriesItsCompiledPlan() {
+        cache.set("apiKey", "stream1", "TestEvent", createTestSpec("s1", "b1"));
+
+        ValidationPlan plan = cache.peek("apiKey", "stream1", "TestEvent").plan;
+
+        assertNotNull(plan);
+        assertEquals("s1", plan.metadata.schemaId);
+        assertEquals(1, plan.eventIds.size());
+    }
+
+    @Test
+    public void malformedSpecIsCachedWithoutPlan() {
+        EventSpecResponse spec = createTestSpec("s1", "b1");
+        spec.events.get(0).variantIds = null;
+
+        cache.set("apiKey", "stream1", "TestEvent", spec);
 
-        int globalCount = globalCountField.getInt(cache);
-        assertEquals("globalEventCount should be reset to 0 after eviction", 0, globalCount);
+        assertSame(spec, cache.get("apiKey", "stream1", "TestEvent"));
+        assertNull(cache.peek("apiKey", "stream1", "TestEvent").plan);
     }
 }
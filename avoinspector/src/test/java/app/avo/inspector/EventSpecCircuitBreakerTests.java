@@ -0,0 +1,101 @@
+package app.avo.inspector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static app.avo.inspector.EventSpecCircuitBreaker.Permit;
+import static org.junit.Assert.assertEquals;
+
+public class EventSpecCircuitBreakerTests {
+
+    private EventSpecCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new EventSpecCircuitBreaker();
+        breaker.setLimits(3, 50);
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            assertEquals(Permit.REGULAR, breaker.tryAcquire());
+            breaker.onFailure(Permit.REGULAR);
+        }
+    }
+
+    @Test
+    public void closedUntilFailureThreshold() {
+        fail(2);
+
+        assertEquals(EventSpecFetchCircuitState.CLOSED, breaker.getState());
+        assertEquals(Permit.REGULAR, breaker.tryAcquire());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        fail(2);
+        breaker.onSuccess(Permit.REGULAR);
+        fail(2);
+
+        assertEquals(EventSpecFetchCircuitState.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        fail(3);
+
+        assertEquals(EventSpecFetchCircuitState.OPEN, breaker.getState());
+        assertEquals(Permit.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void singleTrialAfterCoolDown() throws Exception {
+        fail(3);
+        Thread.sleep(60);
+
+        assertEquals(EventSpecFetchCircuitState.HALF_OPEN, breaker.getState());
+        assertEquals(Permit.TRIAL, breaker.tryAcquire());
+        assertEquals("Only one trial at a time", Permit.REJECTED, breaker.tryAcquire());
+        assertEquals(EventSpecFetchCircuitState.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void successfulTrialClosesCircuit() throws Exception {
+        fail(3);
+        Thread.sleep(60);
+        assertEquals(Permit.TRIAL, breaker.tryAcquire());
+
+        breaker.onSuccess(Permit.TRIAL);
+
+        assertEquals(EventSpecFetchCircuitState.CLOSED, breaker.getState());
+        assertEquals(Permit.REGULAR, breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedTrialOpensCircuitAgain() throws Exception {
+        fail(3);
+        Thread.sleep(60);
+        assertEquals(Permit.TRIAL, breaker.tryAcquire());
+
+        breaker.onFailure(Permit.TRIAL);
+
+        assertEquals(EventSpecFetchCircuitState.OPEN, breaker.getState());
+        assertEquals(Permit.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void successOfAFetchStartedBeforeTheCircuitOpenedKeepsItOpen() throws Exception {
+        assertEquals(Permit.REGULAR, breaker.tryAcquire());
+        fail(3);
+
+        breaker.onSuccess(Permit.REGULAR);
+
+        assertEquals(EventSpecFetchCircuitState.OPEN, breaker.getState());
+        Thread.sleep(60);
+        assertEquals(Permit.TRIAL, breaker.tryAcquire());
+
+        breaker.onSuccess(Permit.REGULAR);
+
+        assertEquals("Only the trial closes it", EventSpecFetchCircuitState.HALF_OPEN, breaker.getState());
+    }
+}
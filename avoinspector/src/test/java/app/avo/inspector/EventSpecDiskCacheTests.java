@@ -0,0 +1,451 @@
+package app.avo.inspector;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EventSpecDiskCacheTests {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock Application mockApplication;
+    @Mock PackageManager mockPackageManager;
+    @Mock PackageInfo mockPackageInfo;
+    @Mock ApplicationInfo mockApplicationInfo;
+    @Mock SharedPreferences mockSharedPrefs;
+    @Mock SharedPreferences.Editor mockEditor;
+
+    private AvoStorage prevAvoStorage;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mockPackageInfo.versionName = "1.0.0";
+        mockApplicationInfo.packageName = "testPckg";
+
+        when(mockApplication.getPackageManager()).thenReturn(mockPackageManager);
+        when(mockApplication.getPackageName()).thenReturn("");
+        when(mockPackageManager.getPackageInfo(anyString(), anyInt())).thenReturn(mockPackageInfo);
+        when(mockApplication.getApplicationInfo()).thenReturn(mockApplicationInfo);
+        when(mockApplication.getSharedPreferences(anyString(), anyInt())).thenReturn(mockSharedPrefs);
+        when(mockSharedPrefs.edit()).thenReturn(mockEditor);
+        when(mockEditor.putString(anyString(), anyString())).thenReturn(mockEditor);
+        when(mockApplication.getApplicationContext()).thenReturn(mockApplication);
+        when(mockApplication.getContentResolver()).thenReturn(mock(ContentResolver.class));
+        when(mockApplication.getCacheDir()).thenReturn(folder.getRoot());
+
+        prevAvoStorage = AvoInspector.avoStorage;
+        AvoAnonymousId.clearCache();
+        AvoStorage mockStorage = mock(AvoStorage.class);
+        when(mockStorage.isInitialized()).thenReturn(true);
+        when(mockStorage.getItem(any())).thenReturn("testStreamId");
+        AvoInspector.avoStorage = mockStorage;
+
+        directory = new File(folder.getRoot(), "specs");
+    }
+
+    @After
+    public void tearDown() {
+        AvoInspector.avoStorage = prevAvoStorage;
+        AvoAnonymousId.clearCache();
+    }
+
+    private EventSpecResponse createSpec(String branchId) {
+        PropertyConstraints child = new PropertyConstraints();
+        child.type = "int";
+        child.required = true;
+        child.minMaxRanges = Collections.singletonMap("0,10", Collections.singletonList("evt_1"));
+
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.type = "object";
+        constraints.required = false;
+        constraints.isList = true;
+        constraints.pinnedValues = Collections.singletonMap("pinned", Arrays.asList("evt_1", "var_1"));
+        constraints.allowedValues = Collections.singletonMap("[\"a\",\"b\"]", Collections.singletonList("evt_1"));
+        constraints.regexPatterns = Collections.singletonMap("^a.*$", Collections.singletonList("var_1"));
+        constraints.children = Collections.singletonMap("count", child);
+
+        EventSpecEntry entry = new EventSpecEntry();
+        entry.branchId = branchId;
+        entry.baseEventId = "evt_1";
+        entry.variantIds = Collections.singletonList("var_1");
+        entry.props = new HashMap<>();
+        entry.props.put("items", constraints);
+
+        EventSpecResponse spec = new EventSpecResponse();
+        spec.events = new ArrayList<>();
+        spec.events.add(entry);
+        spec.metadata = new EventSpecMetadata();
+        spec.metadata.schemaId = "schema_1";
+        spec.metadata.branchId = branchId;
+        spec.metadata.latestActionId = "action_1";
+        spec.metadata.sourceId = "source_1";
+        return spec;
+    }
+
+    @Test
+    public void persistedSpecReadsBackWithAllConstraints() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory);
+        cache.write("apiKey", "stream1", "Event", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        EventSpecResponse read = new EventSpecDiskCache(directory).read("apiKey", "stream1", "Event");
+
+        assertNotNull(read);
+        assertEquals("schema_1", read.metadata.schemaId);
+        assertEquals("main", read.metadata.branchId);
+        assertEquals("source_1", read.metadata.sourceId);
+        EventSpecEntry entry = read.events.get(0);
+        assertEquals("evt_1", entry.baseEventId);
+        assertEquals(Collections.singletonList("var_1"), entry.variantIds);
+        PropertyConstraints items = entry.props.get("items");
+        assertEquals("object", items.type);
+        assertFalse(items.required);
+        assertTrue(items.isList);
+        assertEquals(Arrays.asList("evt_1", "var_1"), items.pinnedValues.get("pinned"));
+        assertEquals(Collections.singletonList("evt_1"), items.allowedValues.get("[\"a\",\"b\"]"));
+        assertEquals(Collections.singletonList("var_1"), items.regexPatterns.get("^a.*$"));
+        PropertyConstraints count = items.children.get("count");
+        assertEquals("int", count.type);
+        assertTrue(count.required);
+        assertNull(count.isList);
+        assertEquals(Collections.singletonList("evt_1"), count.minMaxRanges.get("0,10"));
+    }
+
+    @Test
+    public void specsAreKeyedByApiKeyStreamAndEvent() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory);
+        cache.write("apiKey", "stream1", "Event", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        assertNull(cache.read("otherKey", "stream1", "Event"));
+        assertNull(cache.read("apiKey", "stream2", "Event"));
+        assertNull(cache.read("apiKey", "stream1", "Other"));
+        assertNotNull(cache.read("apiKey", "stream1", "Event"));
+    }
+
+    @Test
+    public void branchChangeDropsPersistedSpecs() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory);
+        cache.write("apiKey", "stream1", "Event1", createSpec("main"));
+        cache.write("apiKey", "stream1", "Event2", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        cache.write("apiKey", "stream1", "Event2", createSpec("feature"));
+        cache.awaitPendingWrites();
+
+        EventSpecDiskCache restarted = new EventSpecDiskCache(directory);
+        assertNull(restarted.read("apiKey", "stream1", "Event1"));
+        assertEquals("feature", restarted.read("apiKey", "stream1", "Event2").metadata.branchId);
+    }
+
+    @Test
+    public void specsFromAnotherBranchAreIgnored() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory);
+        cache.write("apiKey", "stream1", "Event", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        cache.onBranch("feature");
+
+        assertNull(cache.read("apiKey", "stream1", "Event"));
+    }
+
+    @Test
+    public void corruptFileIsAMiss() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory);
+        cache.write("apiKey", "stream1", "Event", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".json")) {
+                try (FileOutputStream output = new FileOutputStream(file)) {
+                    output.write("{\"version\":1,\"spe".getBytes("UTF-8"));
+                }
+            }
+        }
+
+        assertNull(new EventSpecDiskCache(directory).read("apiKey", "stream1", "Event"));
+    }
+
+    private AvoInspector startInspector(List<EventSpecRevalidationCallback> pendingFetches, AvoNetworkCallsHandler mockNetworkHandler) throws Exception {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenReturn(new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            pendingFetches.add(invocation.getArgument(1));
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        // The persisted specs are loaded in the background
+        sut.eventSpecDiskCache.awaitPendingWrites();
+        return sut;
+    }
+
+    private void trackTestEvent(AvoInspector sut) {
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("items", new ArrayList<>());
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+    }
+
+    @Test
+    public void coldStartValidatesWithPreloadedSpec() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        List<EventSpecRevalidationCallback> pendingFetches = new ArrayList<>();
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        AvoInspector sut = startInspector(pendingFetches, mockNetworkHandler);
+
+        trackTestEvent(sut);
+
+        // Fetched moments ago, so it is still fresh
+        verify(mockNetworkHandler).reportValidatedEvent(any());
+        assertEquals(0, pendingFetches.size());
+        assertEquals("main", sut.currentBranchId);
+    }
+
+    @Test
+    public void preloadedSpecKeepsItsFetchTime() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        long beforeWrite = System.currentTimeMillis();
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+        Thread.sleep(5);
+
+        AvoInspector sut = startInspector(new ArrayList<EventSpecRevalidationCallback>(), mock(AvoNetworkCallsHandler.class));
+
+        EventSpecCacheEntry entry = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        assertNotNull(entry);
+        assertTrue(entry.timestamp >= beforeWrite);
+        assertTrue(entry.timestamp < System.currentTimeMillis());
+    }
+
+    @Test
+    public void expiredPreloadedSpecIsServedWhileRefreshedInBackground() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        List<EventSpecRevalidationCallback> pendingFetches = new ArrayList<>();
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        AvoInspector sut = startInspector(pendingFetches, mockNetworkHandler);
+        sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent").timestamp -= EventSpecCache.DEFAULT_TTL_MS + 1_000;
+
+        trackTestEvent(sut);
+        trackTestEvent(sut);
+
+        // Validated right away with the persisted copy, stale while revalidate being off, and refreshed once
+        verify(mockNetworkHandler, times(2)).reportValidatedEvent(any());
+        assertEquals(1, pendingFetches.size());
+    }
+
+    @Test
+    public void expiredPreloadedSpecIsRevalidatedInsteadOfDownloaded() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        EventSpecResponse spec = createSpec("main");
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", spec);
+        previousLaunch.awaitPendingWrites();
+
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        AvoInspector sut = startInspector(new ArrayList<EventSpecRevalidationCallback>(), mockNetworkHandler);
+        final List<String> knownVersions = new ArrayList<>();
+        doAnswer(invocation -> {
+            FetchEventSpecParams params = invocation.getArgument(0);
+            knownVersions.add(params.knownVersion);
+            EventSpecRevalidationCallback callback = invocation.getArgument(1);
+            callback.onNotModified();
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+        EventSpecCacheEntry expired = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        expired.timestamp -= EventSpecCache.DEFAULT_TTL_MS + 1_000;
+
+        trackTestEvent(sut);
+
+        assertEquals(Collections.singletonList(AvoEventSpecFetcher.specVersion(spec)), knownVersions);
+        verify(mockNetworkHandler).reportValidatedEvent(any());
+        EventSpecCacheEntry renewed = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        assertSame(expired.spec, renewed.spec);
+        assertTrue(renewed.timestamp > expired.timestamp);
+
+        // The next launch gets the renewed fetch time too
+        sut.eventSpecDiskCache.awaitPendingWrites();
+        EventSpecDiskCache.PersistedSpec[] preloaded = new EventSpecDiskCache.PersistedSpec[1];
+        EventSpecDiskCache nextLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        nextLaunch.preload("apiKey", "testStreamId", 10, persisted -> preloaded[0] = persisted);
+        nextLaunch.awaitPendingWrites();
+        assertTrue(preloaded[0].fetchedAt > expired.timestamp);
+    }
+
+    @Test
+    public void preloadedSpecIsOnlyServedStaleShortlyAfterTheLaunch() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        List<EventSpecRevalidationCallback> pendingFetches = new ArrayList<>();
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        AvoInspector sut = startInspector(pendingFetches, mockNetworkHandler);
+        EventSpecCacheEntry entry = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        long pastWindow = EventSpecCache.DEFAULT_TTL_MS + EventSpecCache.DEFAULT_MAX_STALENESS_MS + 1_000;
+        entry.timestamp -= pastWindow;
+        entry.preloadedAt -= pastWindow;
+
+        trackTestEvent(sut);
+
+        // Held back for a fetch, instead of being validated with the persisted copy again
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+        assertEquals(1, pendingFetches.size());
+
+        pendingFetches.get(0).onFetchFailed();
+
+        verify(sut.avoBatcher).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+    }
+
+    @Test
+    public void persistedSpecOlderThanMaxAgeIsNotLoaded() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        long tooOld = System.currentTimeMillis() - EventSpecDiskCache.MAX_SPEC_AGE_MS - 1_000;
+        previousLaunch.write("apiKey", "testStreamId", "Old", createSpec("main"), tooOld);
+        previousLaunch.write("apiKey", "testStreamId", "Recent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        List<String> preloaded = new ArrayList<>();
+        EventSpecDiskCache restarted = EventSpecDiskCache.inDirectory(folder.getRoot());
+        restarted.preload("apiKey", "testStreamId", 10, persisted -> preloaded.add(persisted.eventName));
+        restarted.awaitPendingWrites();
+
+        assertEquals(Collections.singletonList("Recent"), preloaded);
+        assertFalse(restarted.specFile("apiKey", "testStreamId", "Old").exists());
+    }
+
+    @Test
+    public void preloadDoesNotReplaceSpecFetchedSinceStart() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        previousLaunch.write("apiKey", "testStreamId", "TestEvent", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        EventSpecDiskCache.PersistedSpec[] preloaded = new EventSpecDiskCache.PersistedSpec[1];
+        EventSpecDiskCache restarted = EventSpecDiskCache.inDirectory(folder.getRoot());
+        restarted.preload("apiKey", "testStreamId", 10, persisted -> preloaded[0] = persisted);
+        restarted.awaitPendingWrites();
+        assertNotNull(preloaded[0]);
+        assertEquals("TestEvent", preloaded[0].eventName);
+
+        EventSpecCache cache = new EventSpecCache();
+        EventSpecKey key = new EventSpecKey("apiKey", "testStreamId", "TestEvent");
+        EventSpecResponse fetched = createSpec("main");
+        cache.set(key, fetched);
+        cache.seed(key, preloaded[0].spec, null, preloaded[0].fetchedAt);
+
+        assertSame(fetched, cache.get("apiKey", "testStreamId", "TestEvent"));
+    }
+
+    @Test
+    public void preloadKeepsTheMostRecentSpecs() throws Exception {
+        EventSpecDiskCache previousLaunch = EventSpecDiskCache.inDirectory(folder.getRoot());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            previousLaunch.write("apiKey", "testStreamId", "Event" + i, createSpec("main"));
+        }
+        previousLaunch.write("otherKey", "testStreamId", "Other", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(previousLaunch.specFile("apiKey", "testStreamId", "Event" + i).setLastModified(now - 3_000 + i * 1_000));
+        }
+
+        List<String> preloaded = new ArrayList<>();
+        EventSpecDiskCache restarted = EventSpecDiskCache.inDirectory(folder.getRoot());
+        restarted.preload("apiKey", "testStreamId", 2, persisted -> preloaded.add(persisted.eventName));
+        restarted.awaitPendingWrites();
+
+        assertEquals(Arrays.asList("Event1", "Event2"), preloaded);
+    }
+
+    @Test
+    public void leastRecentlyWrittenFilesAreDeletedOverCapacity() throws Exception {
+        EventSpecDiskCache cache = new EventSpecDiskCache(directory, 2);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 2; i++) {
+            cache.write("apiKey", "stream1", "Event" + i, createSpec("main"));
+            cache.awaitPendingWrites();
+            assertTrue(cache.specFile("apiKey", "stream1", "Event" + i).setLastModified(now - 3_000 + i * 1_000));
+        }
+        cache.write("otherKey", "stream1", "Other", createSpec("main"));
+
+        cache.write("apiKey", "stream1", "Event2", createSpec("main"));
+        cache.awaitPendingWrites();
+
+        assertNull(cache.read("apiKey", "stream1", "Event0"));
+        assertNotNull(cache.read("apiKey", "stream1", "Event1"));
+        assertNotNull(cache.read("apiKey", "stream1", "Event2"));
+        // Counted per apiKey
+        assertNotNull(cache.read("otherKey", "stream1", "Other"));
+    }
+
+    @Test
+    public void preloadDeletesTheFilesOfOtherStreams() throws Exception {
+        EventSpecDiskCache previousLaunch = new EventSpecDiskCache(directory);
+        previousLaunch.write("apiKey", "stream1", "Event", createSpec("main"));
+        previousLaunch.write("apiKey", "stream2", "Event", createSpec("main"));
+        previousLaunch.write("otherKey", "stream1", "Event", createSpec("main"));
+        previousLaunch.awaitPendingWrites();
+
+        EventSpecDiskCache restarted = new EventSpecDiskCache(directory);
+        restarted.preload("apiKey", "stream2", 10, persisted -> {});
+        restarted.awaitPendingWrites();
+
+        assertFalse(restarted.specFile("apiKey", "stream1", "Event").exists());
+        assertNotNull(restarted.read("apiKey", "stream2", "Event"));
+        // Another inspector's files are left alone
+        assertNotNull(restarted.read("otherKey", "stream1", "Event"));
+    }
+
+    @Test
+    public void noCacheDirectoryDisablesPersistence() {
+        when(mockApplication.getCacheDir()).thenReturn(null);
+
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        assertNull(sut.eventSpecDiskCache);
+        assertNotNull(sut.eventSpecCache);
+    }
+}
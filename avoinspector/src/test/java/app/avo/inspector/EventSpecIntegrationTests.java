@@ -76,7 +76,6 @@ public class EventSpecIntegrationTests {
     public void tearDown() {
         AvoInspector.avoStorage = prevAvoStorage;
         AvoAnonymousId.clearCache();
-        AvoDeduplicator.clearEvents();
     }
 
     // =========================================================================
@@ -0,0 +1,264 @@
+package app.avo.inspector;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class EventSpecPrefetchTests {
+
+    @Mock Application mockApplication;
+    @Mock PackageManager mockPackageManager;
+    @Mock PackageInfo mockPackageInfo;
+    @Mock ApplicationInfo mockApplicationInfo;
+    @Mock SharedPreferences mockSharedPrefs;
+    @Mock SharedPreferences.Editor mockEditor;
+
+    private AvoStorage prevAvoStorage;
+
+    // Stand-in for the event spec endpoint, over HTTP: "Known" events have a spec, "Unknown" ones don't
+    // and "Broken" ones fail
+    private HttpServer standInEndpoint;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private static final String SPEC_JSON = "{\"events\":[{\"b\":\"branch1\",\"id\":\"event1\",\"vids\":[],"
+            + "\"p\":{\"userId\":{\"t\":\"string\"}}}],"
+            + "\"metadata\":{\"schemaId\":\"schema1\",\"branchId\":\"branch1\",\"latestActionId\":\"action1\"}}";
+
+    private void answer(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            Thread.sleep(50);
+            String query = exchange.getRequestURI().getRawQuery();
+            String eventName = URLDecoder.decode(query.substring(query.indexOf("eventName=") + "eventName=".length()), "UTF-8");
+            if (eventName.startsWith("Broken")) {
+                exchange.sendResponseHeaders(503, -1);
+            } else if (eventName.startsWith("Known")) {
+                byte[] body = SPEC_JSON.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mockPackageInfo.versionName = "1.0.0";
+        mockApplicationInfo.packageName = "testPckg";
+
+        when(mockApplication.getPackageManager()).thenReturn(mockPackageManager);
+        when(mockApplication.getPackageName()).thenReturn("");
+        when(mockPackageManager.getPackageInfo(anyString(), anyInt())).thenReturn(mockPackageInfo);
+        when(mockApplication.getApplicationInfo()).thenReturn(mockApplicationInfo);
+        when(mockApplication.getSharedPreferences(anyString(), anyInt())).thenReturn(mockSharedPrefs);
+        when(mockSharedPrefs.edit()).thenReturn(mockEditor);
+        when(mockEditor.putString(anyString(), anyString())).thenReturn(mockEditor);
+        when(mockEditor.remove(anyString())).thenReturn(mockEditor);
+        when(mockApplication.getApplicationContext()).thenReturn(mockApplication);
+        when(mockApplication.getContentResolver()).thenReturn(mock(ContentResolver.class));
+
+        prevAvoStorage = AvoInspector.avoStorage;
+        AvoAnonymousId.clearCache();
+        AvoStorage mockStorage = mock(AvoStorage.class);
+        when(mockStorage.isInitialized()).thenReturn(true);
+        when(mockStorage.getItem(any())).thenReturn("testStreamId");
+        AvoInspector.avoStorage = mockStorage;
+
+        standInEndpoint = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        standInEndpoint.createContext("/trackingPlan/eventSpec", this::answer);
+        standInEndpoint.setExecutor(Executors.newCachedThreadPool());
+        standInEndpoint.start();
+    }
+
+    @After
+    public void tearDown() {
+        standInEndpoint.stop(0);
+        AvoInspector.avoStorage = prevAvoStorage;
+        AvoAnonymousId.clearCache();
+    }
+
+    // =========================================================================
+    // HELPERS
+    // =========================================================================
+
+    private AvoInspector createInspector(AvoInspectorEnv env) {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, env);
+        sut.eventSpecFetcher = new AvoEventSpecFetcher(5000, env.getName(),
+                "http://127.0.0.1:" + standInEndpoint.getAddress().getPort());
+        return sut;
+    }
+
+    private int[] prefetch(AvoInspector sut, List<String> eventNames) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] outcome = new int[3];
+        sut.prefetchEventSpecs(eventNames, (fetched, withoutSpec, failed) -> {
+            outcome[0] = fetched;
+            outcome[1] = withoutSpec;
+            outcome[2] = failed;
+            latch.countDown();
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return outcome;
+    }
+
+    // =========================================================================
+    // Prefetch
+    // =========================================================================
+
+    @Test
+    public void prefetchWarmsCacheWithBoundedParallelFetches() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Dev);
+        List<String> eventNames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            eventNames.add("Known" + i);
+        }
+
+        int[] outcome = prefetch(sut, eventNames);
+
+        assertArrayEquals(new int[]{10, 0, 0}, outcome);
+        assertEquals(10, requests.get());
+        assertTrue("At most " + EventSpecPrefetch.DEFAULT_MAX_CONCURRENT_FETCHES + " fetches at a time, was " + maxInFlight.get(),
+                maxInFlight.get() <= EventSpecPrefetch.DEFAULT_MAX_CONCURRENT_FETCHES);
+        assertTrue("Fetches run in parallel", maxInFlight.get() > 1);
+        for (String eventName : eventNames) {
+            assertNotNull(sut.eventSpecCache.get("apiKey", "testStreamId", eventName));
+        }
+    }
+
+    @Test
+    public void prefetchedSpecIsUsedOnFirstTrack() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Dev);
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenReturn(new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        prefetch(sut, Collections.singletonList("KnownEvent"));
+
+        HashMap<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("KnownEvent", eventProps);
+
+        // Validated synchronously against the prefetched spec, without another request
+        verify(mockNetworkHandler).reportValidatedEvent(any());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void prefetchReportsEventsWithoutSpecAndFailures() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Staging);
+
+        int[] outcome = prefetch(sut, Arrays.asList("Known1", "Unknown1", "Unknown2", "Broken1", "Known2"));
+
+        assertArrayEquals(new int[]{2, 2, 1}, outcome);
+        assertEquals(2, sut.eventSpecCache.size());
+        assertEquals(3, sut.eventSpecCache.negativeSize());
+        EventSpecCache.NegativeEntry failure =
+                (EventSpecCache.NegativeEntry) sut.eventSpecCache.peek("apiKey", "testStreamId", "Broken1");
+        assertEquals(1, failure.failures);
+    }
+
+    @Test
+    public void prefetchSkipsCachedAndDuplicateEvents() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Dev);
+        sut.eventSpecCache.set("apiKey", "testStreamId", "KnownCached", new EventSpecResponse());
+
+        int[] outcome = prefetch(sut, Arrays.asList("KnownCached", "KnownNew", "KnownNew"));
+
+        assertArrayEquals(new int[]{1, 0, 0}, outcome);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void prefetchWithNothingToFetchCompletes() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Dev);
+
+        int[] outcome = prefetch(sut, Collections.<String>emptyList());
+
+        assertArrayEquals(new int[]{0, 0, 0}, outcome);
+    }
+
+    @Test
+    public void prefetchDoesNotFetchInProd() throws Exception {
+        AvoInspector sut = createInspector(AvoInspectorEnv.Prod);
+
+        int[] outcome = prefetch(sut, Arrays.asList("Known1", "Known2"));
+
+        assertArrayEquals(new int[]{0, 0, 0}, outcome);
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void fetchesAnsweredOnTheCallingThreadDoNotNest() {
+        List<String> eventNames = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            eventNames.add("Event" + i);
+        }
+        final int[] stackDepths = {Integer.MAX_VALUE, 0};
+        final int[] outcome = new int[3];
+
+        // Like the fetcher with an open circuit: every fetch fails before returning
+        new EventSpecPrefetch(eventNames, (eventName, callback) -> {
+            int depth = Thread.currentThread().getStackTrace().length;
+            stackDepths[0] = Math.min(stackDepths[0], depth);
+            stackDepths[1] = Math.max(stackDepths[1], depth);
+            callback.onFetchFailed();
+        }, (fetched, withoutSpec, failed) -> {
+            outcome[0] = fetched;
+            outcome[1] = withoutSpec;
+            outcome[2] = failed;
+        }).start(EventSpecPrefetch.DEFAULT_MAX_CONCURRENT_FETCHES);
+
+        assertArrayEquals(new int[]{0, 0, 10_000}, outcome);
+        assertEquals(stackDepths[0], stackDepths[1]);
+    }
+}
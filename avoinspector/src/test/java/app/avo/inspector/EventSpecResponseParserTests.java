@@ -0,0 +1,270 @@
+package app.avo.inspector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parity of the streaming parser with the JSONObject based one it replaces on the network path.
+ */
+public class EventSpecResponseParserTests {
+
+    // =========================================================================
+    // HELPERS
+    // =========================================================================
+
+    private static EventSpecResponse parseWithJsonObject(String json) throws Exception {
+        EventSpecResponseWire wire = DefaultEventSpecRequestClient.parseResponse(new JSONObject(json));
+        EventSpecResponse response = AvoEventSpecFetcher.parseEventSpecResponse(wire);
+        // parseEventSpecResponse always creates a list, keep the metadata check of the original pipeline
+        assertEquals(AvoEventSpecFetcher.hasExpectedShape(wire), AvoEventSpecFetcher.hasExpectedShape(response));
+        return response;
+    }
+
+    private static EventSpecResponse parseStreaming(String json) throws IOException {
+        return EventSpecResponseParser.parse(new StringReader(json));
+    }
+
+    private static void assertParity(String json) throws Exception {
+        assertSameSpec(parseWithJsonObject(json), parseStreaming(json));
+    }
+
+    private static void assertSameSpec(EventSpecResponse expected, EventSpecResponse actual) {
+        if (expected.metadata == null) {
+            assertNull(actual.metadata);
+        } else {
+            assertNotNull(actual.metadata);
+            assertEquals(expected.metadata.schemaId, actual.metadata.schemaId);
+            assertEquals(expected.metadata.branchId, actual.metadata.branchId);
+            assertEquals(expected.metadata.latestActionId, actual.metadata.latestActionId);
+            assertEquals(expected.metadata.sourceId, actual.metadata.sourceId);
+        }
+        assertEquals(expected.events.size(), actual.events.size());
+        for (int i = 0; i < expected.events.size(); i++) {
+            EventSpecEntry expectedEntry = expected.events.get(i);
+            EventSpecEntry actualEntry = actual.events.get(i);
+            assertEquals(expectedEntry.branchId, actualEntry.branchId);
+            assertEquals(expectedEntry.baseEventId, actualEntry.baseEventId);
+            assertEquals(expectedEntry.variantIds, actualEntry.variantIds);
+            assertSameConstraints(expectedEntry.props, actualEntry.props);
+        }
+    }
+
+    private static void assertSameConstraints(Map<String, PropertyConstraints> expected,
+                                              Map<String, PropertyConstraints> actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String name : expected.keySet()) {
+            PropertyConstraints expectedConstraints = expected.get(name);
+            PropertyConstraints actualConstraints = actual.get(name);
+            assertEquals(name, expectedConstraints.type, actualConstraints.type);
+            assertEquals(name, expectedConstraints.required, actualConstraints.required);
+            assertEquals(name, expectedConstraints.isList, actualConstraints.isList);
+            assertEquals(name, expectedConstraints.pinnedValues, actualConstraints.pinnedValues);
+            assertEquals(name, expectedConstraints.allowedValues, actualConstraints.allowedValues);
+            assertEquals(name, expectedConstraints.regexPatterns, actualConstraints.regexPatterns);
+            assertEquals(name, expectedConstraints.minMaxRanges, actualConstraints.minMaxRanges);
+            assertSameConstraints(expectedConstraints.children, actualConstraints.children);
+        }
+    }
+
+    // =========================================================================
+    // Parity
+    // =========================================================================
+
+    @Test
+    public void fullSpecParity() throws Exception {
+        assertParity("{"
+                + "\"events\": [{"
+                + "  \"b\": \"branch1\", \"id\": \"evt_1\", \"vids\": [\"v1\", \"v2\"],"
+                + "  \"p\": {"
+                + "    \"method\": {\"t\": \"string\", \"r\": true, \"v\": {\"[\\\"email\\\",\\\"sso\\\"]\": [\"evt_1\"]}},"
+                + "    \"screen\": {\"t\": \"string\", \"r\": false, \"p\": {\"Home\": [\"v1\"]}},"
+                + "    \"code\": {\"t\": \"string\", \"rx\": {\"^[A-Z]{3}$\": [\"evt_1\", \"v2\"]}},"
+                + "    \"price\": {\"t\": \"float\", \"r\": true, \"minmax\": {\"0,100\": [\"evt_1\"]}},"
+                + "    \"items\": {\"t\": \"object\", \"l\": true, \"children\": {"
+                + "      \"name\": {\"t\": \"string\", \"r\": true},"
+                + "      \"tags\": {\"t\": \"list\", \"children\": {\"label\": {\"t\": \"string\"}}}"
+                + "    }}"
+                + "  }"
+                + "}, {"
+                + "  \"b\": \"branch1\", \"id\": \"evt_2\", \"vids\": [], \"p\": {}"
+                + "}],"
+                + "\"metadata\": {\"schemaId\": \"schema1\", \"branchId\": \"branch1\", \"latestActionId\": \"action1\", \"sourceId\": \"source1\"}"
+                + "}");
+    }
+
+    @Test
+    public void missingOptionalFieldsParity() throws Exception {
+        assertParity("{\"events\": [{\"id\": \"evt_1\", \"p\": {\"a\": {}}}, {}],"
+                + " \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\"}}");
+        assertParity("{}");
+        assertParity("{\"events\": []}");
+    }
+
+    @Test
+    public void unexpectedValueTypesParity() throws Exception {
+        assertParity("{\"events\": [1, \"x\", null, [], {\"b\": null, \"id\": 42, \"vids\": [\"v1\", null, 7, true],"
+                + " \"p\": {\"notAnObject\": 1, \"a\": {\"t\": null, \"r\": \"true\", \"l\": null,"
+                + "  \"p\": null, \"v\": [], \"rx\": {\"x\": \"notAList\", \"y\": [\"v\"]}, \"minmax\": 5, \"children\": null},"
+                + "  \"b\": {\"r\": \"no\", \"l\": \"TRUE\", \"children\": {\"c\": 1, \"d\": {\"t\": \"int\"}}}}}],"
+                + " \"metadata\": {\"schemaId\": null, \"branchId\": \"b\", \"latestActionId\": 3, \"sourceId\": null}}");
+        assertParity("{\"events\": {\"b\": \"x\"}, \"metadata\": []}");
+    }
+
+    @Test
+    public void unknownFieldsAreSkippedParity() throws Exception {
+        assertParity("{\"version\": 2, \"extra\": {\"nested\": [{\"a\": [1, 2, {\"b\": null}]}]},"
+                + " \"events\": [{\"id\": \"evt_1\", \"future\": [true, false], \"p\": {\"a\": {\"t\": \"int\", \"hint\": {\"x\": 1}}}}],"
+                + " \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\", \"other\": -1.5e3}}");
+    }
+
+    @Test
+    public void escapesAndUnicodeParity() throws Exception {
+        assertParity("{\"events\": [{\"id\": \"quote\\\" backslash\\\\ slash\\/ tab\\t newline\\n \\u00e9\\u4e2d\","
+                + " \"vids\": [\"caf\u00e9\", \"\\ud83d\\ude00\", \"\"],"
+                + " \"p\": {\"na\\\"me\": {\"t\": \"string\", \"v\": {\"[\\\"a,b\\\",\\\"c\\\"]\": [\"x\"]}}}}],"
+                + " \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\"}}");
+    }
+
+    @Test
+    public void largeGeneratedSpecParity() throws Exception {
+        Random random = new Random(42);
+        JSONArray events = new JSONArray();
+        for (int e = 0; e < 100; e++) {
+            JSONObject entry = new JSONObject();
+            entry.put("b", "branch" + random.nextInt(3));
+            entry.put("id", "evt_" + e);
+            entry.put("vids", new JSONArray(Arrays.asList("v" + e, "w" + e)));
+            entry.put("p", generateProps(random, 0));
+            events.put(entry);
+        }
+        JSONObject metadata = new JSONObject();
+        metadata.put("schemaId", "schema");
+        metadata.put("branchId", "branch0");
+        metadata.put("latestActionId", "action");
+        JSONObject json = new JSONObject();
+        json.put("events", events);
+        json.put("metadata", metadata);
+
+        String body = json.toString(2);
+        assertTrue(body.length() > 100_000);
+        assertParity(body);
+    }
+
+    private static JSONObject generateProps(Random random, int depth) throws Exception {
+        JSONObject props = new JSONObject();
+        int count = depth == 0 ? 15 : 3;
+        for (int i = 0; i < count; i++) {
+            JSONObject constraints = new JSONObject();
+            constraints.put("t", new String[]{"string", "int", "float", "boolean", "object"}[random.nextInt(5)]);
+            constraints.put("r", random.nextBoolean());
+            if (random.nextBoolean()) {
+                constraints.put("l", random.nextBoolean());
+            }
+            if (random.nextInt(3) == 0) {
+                JSONObject allowed = new JSONObject();
+                List<String> values = new ArrayList<>();
+                for (int v = 0; v < 20; v++) {
+                    values.add("\"value " + random.nextInt(1000) + "\"");
+                }
+                allowed.put(values.toString(), new JSONArray(Arrays.asList("evt_" + random.nextInt(100))));
+                constraints.put("v", allowed);
+            }
+            if (random.nextInt(4) == 0) {
+                constraints.put("minmax", new JSONObject().put(random.nextInt(10) + "," + random.nextInt(1000), new JSONArray().put("evt_1")));
+            }
+            if (depth < 2 && random.nextInt(4) == 0) {
+                constraints.put("children", generateProps(random, depth + 1));
+            }
+            props.put("prop" + depth + "_" + i, constraints);
+        }
+        return props;
+    }
+
+    @Test
+    public void persistedSpecRoundTrips() throws Exception {
+        String json = "{\"events\": [{\"b\": \"b\", \"id\": \"evt_1\", \"vids\": [\"v1\"], \"p\": {"
+                + "\"a\": {\"t\": \"object\", \"r\": true, \"l\": false, \"p\": {\"x\": [\"evt_1\"]},"
+                + " \"children\": {\"c\": {\"t\": \"string\", \"rx\": {\".*\": [\"v1\"]}}}}}}],"
+                + " \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\", \"sourceId\": \"src\"}}";
+        EventSpecResponse spec = parseStreaming(json);
+
+        assertSameSpec(spec, parseStreaming(EventSpecDiskCache.toJson(spec).toString()));
+    }
+
+    // =========================================================================
+    // Streaming specifics
+    // =========================================================================
+
+    @Test
+    public void readsAcrossBufferBoundaries() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            longValue.append(i % 10);
+        }
+        final String json = "{\"events\": [{\"id\": \"" + longValue + "\\u00e9\"}],"
+                + " \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\"}}";
+
+        // Hands out one character per read, so every token spans reads
+        Reader trickle = new Reader() {
+            private int pos = 0;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (pos == json.length()) {
+                    return -1;
+                }
+                buffer[offset] = json.charAt(pos++);
+                return 1;
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        EventSpecResponse spec = EventSpecResponseParser.parse(trickle);
+
+        assertEquals(longValue + "\u00e9", spec.events.get(0).baseEventId);
+        assertEquals("s", spec.metadata.schemaId);
+    }
+
+    @Test
+    public void shapeIsCheckedLikeTheWirePipeline() throws Exception {
+        assertTrue(AvoEventSpecFetcher.hasExpectedShape(parseStreaming(
+                "{\"events\": [], \"metadata\": {\"schemaId\": \"s\", \"branchId\": \"b\", \"latestActionId\": \"a\"}}")));
+        assertFalse(AvoEventSpecFetcher.hasExpectedShape(parseStreaming(
+                "{\"events\": []}")));
+        assertFalse(AvoEventSpecFetcher.hasExpectedShape(parseStreaming(
+                "{\"events\": [], \"metadata\": {\"schemaId\": \"s\", \"latestActionId\": \"a\"}}")));
+    }
+
+    @Test
+    public void malformedBodiesThrow() {
+        String[] bodies = {"", "not json", "[]", "{\"events\": [", "{\"events\": [}", "{\"a\" 1}",
+                "{\"a\": \"unterminated}", "{\"a\": 1} trailing"};
+        for (String body : bodies) {
+            try {
+                parseStreaming(body);
+                fail("Expected an IOException for: " + body);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+}
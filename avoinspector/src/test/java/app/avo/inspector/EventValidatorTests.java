@@ -2,7 +2,6 @@ package app.avo.inspector;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.junit.Before;
 import org.junit.Test;
 
 import java.util.*;
@@ -17,12 +16,6 @@ public class EventValidatorTests {
     // HELPER METHODS
     // =========================================================================
 
-    @Before
-    public void setUp() {
-        // Clear static caches between tests to avoid cross-test contamination
-        EventValidator.clearCaches();
-    }
-
     private EventSpecMetadata createMetadata(String schemaId, String branchId) {
         EventSpecMetadata metadata = new EventSpecMetadata();
         metadata.schemaId = schemaId;
@@ -663,7 +656,7 @@ public class EventValidatorTests {
         EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
         EventSpecResponse spec = createSpec(Collections.singletonList(entry));
 
-        // Value "CA" would fail if validated, but depth >= MAX_CHILD_DEPTH (2) stops it
+        // Value "CA" would fail if validated, but depth >= DEFAULT_MAX_DEPTH (2) stops it
         Map<String, Object> countryMap = new HashMap<>();
         countryMap.put("country", "CA");
         Map<String, Object> addressMap = new HashMap<>();
@@ -709,6 +702,85 @@ public class EventValidatorTests {
         assertTrue(statusResult.failedEventIds.contains("evt_1"));
     }
 
+    @Test
+    public void depthLimitIsConfigurable() {
+        Map<String, PropertyConstraints> children = new HashMap<>();
+        children.put("status", createPinnedValueConstraints(singleMapping("pending", "evt_1")));
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("order", createNestedConstraints(children));
+        EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
+        EventSpecResponse spec = createSpec(Collections.singletonList(entry));
+
+        Map<String, Object> orderMap = new HashMap<>();
+        orderMap.put("status", "shipped");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("order", orderMap);
+
+        EventValidationContext context = new EventValidationContext();
+        context.setLimits(1, EventValidationContext.DEFAULT_MAX_NODES, EventValidationContext.DEFAULT_TIME_BUDGET_MS);
+        ValidationResult result = EventValidator.validateEvent(properties, ValidationPlan.compile(spec, context));
+
+        // status is at depth 1, past the limit
+        assertNull(result.propertyResults.get("order").children);
+        assertFalse(result.partial);
+    }
+
+    // =========================================================================
+    // 18. VALIDATION BUDGET
+    // =========================================================================
+
+    @Test
+    public void validationWithinBudgetIsComplete() {
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("tags", createListConstraints(singleMapping("[\"a\",\"b\"]", "evt_1")));
+        EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
+        EventSpecResponse spec = createSpec(Collections.singletonList(entry));
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("tags", Arrays.asList("a", "b", "c"));
+        EventValidationContext context = new EventValidationContext();
+
+        ValidationResult result = EventValidator.validateEvent(properties, ValidationPlan.compile(spec, context));
+
+        assertFalse(result.partial);
+        assertEquals(Collections.singletonList("evt_1"), result.propertyResults.get("tags").failedEventIds);
+        assertEquals(0, context.partialValidationCount());
+    }
+
+    @Test
+    public void validationStopsWhenTheNodeBudgetRunsOut() {
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("tags", createListConstraints(singleMapping("[\"a\"]", "evt_1")));
+        props.put("status", createPinnedValueConstraints(singleMapping("active", "evt_1")));
+        EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
+        EventSpecResponse spec = createSpec(Collections.singletonList(entry));
+
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tags.add("a");
+        }
+        // Fails only on the last item, which is past the budget
+        tags.add("b");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("tags", tags);
+        properties.put("status", "inactive");
+        properties.put("unknown", "value");
+        EventValidationContext context = new EventValidationContext();
+
+        context.setLimits(EventValidationContext.DEFAULT_MAX_DEPTH, 50, EventValidationContext.DEFAULT_TIME_BUDGET_MS);
+        ValidationResult result = EventValidator.validateEvent(properties, ValidationPlan.compile(spec, context));
+
+        assertTrue(result.partial);
+        assertEquals(1, context.partialValidationCount());
+        // Other owners keep their own limits
+        assertFalse(EventValidator.validateEvent(properties, spec).partial);
+        assertEquals(3, result.propertyResults.size());
+        // The cut short list doesn't claim that evt_1 passed
+        PropertyValidationResult tagsResult = result.propertyResults.get("tags");
+        assertNull(tagsResult.failedEventIds);
+        assertNull(tagsResult.passedEventIds);
+    }
+
     // =========================================================================
     // ADDITIONAL TESTS: Optional null handling
     // =========================================================================
@@ -921,6 +993,45 @@ public class EventValidatorTests {
         assertTrue(qtyFail.failedEventIds.contains("evt_1"));
     }
 
+    @Test
+    public void listOfObjectsStopsCheckingChildrenThatFailedEveryEvent() {
+        Map<String, PropertyConstraints> children = new HashMap<>();
+        children.put("quantity", createMinMaxConstraints(singleMapping("1,99", "evt_1")));
+        children.put("item_type", createAllowedValuesConstraints(
+                singleMapping("[\"product\"]", "evt_1")));
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("items", createListOfObjectsConstraints(children));
+        EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
+        EventSpecResponse spec = createSpec(Collections.singletonList(entry));
+
+        final List<String> readChildren = new ArrayList<>();
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> item = new HashMap<String, Object>() {
+                @Override
+                public Object get(Object key) {
+                    readChildren.add((String) key);
+                    return super.get(key);
+                }
+            };
+            // Only the first item fails the quantity, only the last one the item_type
+            item.put("quantity", i == 0 ? 100 : 5);
+            item.put("item_type", i == 2 ? "service" : "product");
+            items.add(item);
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("items", items);
+
+        ValidationResult result = EventValidator.validateEvent(properties, spec);
+
+        Map<String, PropertyValidationResult> childResults = result.propertyResults.get("items").children;
+        assertEquals(Collections.singletonList("evt_1"), childResults.get("quantity").failedEventIds);
+        assertEquals(Collections.singletonList("evt_1"), childResults.get("item_type").failedEventIds);
+        // quantity failed every event on the first item, so the other items are not read for it
+        assertEquals(1, Collections.frequency(readChildren, "quantity"));
+        assertEquals(3, Collections.frequency(readChildren, "item_type"));
+    }
+
     // =========================================================================
     // ADDITIONAL TESTS: Invalid regex gracefully handled
     // =========================================================================
@@ -1136,6 +1247,62 @@ public class EventValidatorTests {
         assertNull(pvr.failedEventIds);
     }
 
+    @Test
+    public void pinnedValuesCompareLikeTheValueStringForm() {
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("count", createPinnedValueConstraints(singleMapping("5", "evt_1")));
+        props.put("ratio", createPinnedValueConstraints(singleMapping("1.5", "evt_1")));
+        props.put("flag", createPinnedValueConstraints(singleMapping("true", "evt_1")));
+        props.put("data", createPinnedValueConstraints(singleMapping("{\"a\":1}", "evt_1")));
+        EventSpecEntry entry = createEntry("evt_1", Collections.emptyList(), props);
+        EventSpecResponse spec = createSpec(Collections.singletonList(entry));
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("count", 5L);
+        properties.put("ratio", 1.5f);
+        properties.put("flag", true);
+        properties.put("data", Collections.singletonMap("a", 1));
+        ValidationResult result = EventValidator.validateEvent(properties, spec);
+        for (String name : properties.keySet()) {
+            assertNull(name, result.propertyResults.get(name).failedEventIds);
+        }
+
+        // 5.0 is "5.0", not "5"
+        properties.put("count", 5.0);
+        properties.put("flag", "false");
+        result = EventValidator.validateEvent(properties, spec);
+        assertNotNull(result.propertyResults.get("count").failedEventIds);
+        assertNotNull(result.propertyResults.get("flag").failedEventIds);
+    }
+
+    @Test
+    public void regexMatchResultsAreRememberedPerPattern() {
+        Map<String, List<String>> patterns = new HashMap<>();
+        patterns.put("^[a-z]+$", Collections.singletonList("evt_1"));
+        patterns.put("^[0-9]+$", Collections.singletonList("evt_2"));
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put("code", createRegexConstraints(patterns));
+        EventSpecResponse spec = createSpec(Arrays.asList(
+                createEntry("evt_1", Collections.emptyList(), props),
+                createEntry("evt_2", Collections.emptyList(), new HashMap<>())));
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("code", "abc");
+
+        EventValidationContext context = new EventValidationContext();
+        ValidationPlan plan = ValidationPlan.compile(spec, context);
+
+        // The second validation is served by the match cache and must agree with the first
+        for (int i = 0; i < 2; i++) {
+            PropertyValidationResult pvr = EventValidator.validateEvent(properties, plan).propertyResults.get("code");
+            assertEquals(Collections.singletonList("evt_2"), pvr.failedEventIds);
+        }
+
+        context.setRegexMatchCacheSize(0);
+        PropertyValidationResult pvr = EventValidator.validateEvent(properties, plan).propertyResults.get("code");
+        assertEquals(Collections.singletonList("evt_2"), pvr.failedEventIds);
+    }
+
     // =========================================================================
     // EDGE CASES: checkMinMax
     // =========================================================================
@@ -1293,7 +1460,7 @@ public class EventValidatorTests {
         Map<String, Object> properties = new HashMap<>();
         properties.put("field", "Hello");
 
-        // Should not throw — the PatternSyntaxException is caught in checkRegexPatterns
+        // Should not throw — the PatternSyntaxException is caught when the spec is compiled
         ValidationResult result = EventValidator.validateEvent(properties, spec);
         assertNotNull(result);
         // The invalid pattern is skipped, so no eventIds are failed by it
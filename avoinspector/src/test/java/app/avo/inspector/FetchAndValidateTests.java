@@ -1,6 +1,7 @@
 package app.avo.inspector;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
@@ -10,12 +11,15 @@ import android.content.pm.PackageManager;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -65,7 +69,6 @@ public class FetchAndValidateTests {
     public void tearDown() {
         AvoInspector.avoStorage = prevAvoStorage;
         AvoAnonymousId.clearCache();
-        AvoDeduplicator.clearEvents();
     }
 
     // =========================================================================
@@ -357,4 +360,333 @@ public class FetchAndValidateTests {
         // Cache should still contain the entry (not cleared)
         assertTrue(sut.eventSpecCache.contains("apiKey", "testStreamId", "TestEvent"));
     }
+
+    // =========================================================================
+    // Stale while revalidate
+    // =========================================================================
+
+    @Test
+    public void staleSpecValidatesImmediatelyAndRefreshesInBackground() throws Exception {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+        sut.setEventSpecStaleWhileRevalidate(true, 60_000);
+        sut.setEventSpecCacheLimits(EventSpecCache.DEFAULT_MAX_ENTRIES, 1, 0);
+
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenReturn(new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<EventSpecFetchCallback> pendingFetches = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            pendingFetches.add(invocation.getArgument(1));
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        sut.eventSpecCache.set("apiKey", "testStreamId", "TestEvent", createTestEventSpecResponse());
+        Thread.sleep(5);
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        // Both events validated against the stale spec, with a single refresh in flight
+        verify(mockNetworkHandler, times(2)).reportValidatedEvent(any());
+        assertEquals(1, pendingFetches.size());
+
+        EventSpecResponse refreshed = createTestEventSpecResponse();
+        refreshed.metadata.schemaId = "schema2";
+        pendingFetches.get(0).onResult(refreshed);
+
+        assertEquals("schema2", sut.eventSpecCache.get("apiKey", "testStreamId", "TestEvent").metadata.schemaId);
+    }
+
+    // =========================================================================
+    // Conditional revalidation
+    // =========================================================================
+
+    @Test
+    public void expiredSpecIsRevalidatedInsteadOfDownloaded() throws Exception {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+        sut.setEventSpecCacheLimits(EventSpecCache.DEFAULT_MAX_ENTRIES, 1, 0);
+
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenReturn(new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<String> knownVersions = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            FetchEventSpecParams params = invocation.getArgument(0);
+            knownVersions.add(params.knownVersion);
+            EventSpecRevalidationCallback callback = invocation.getArgument(1);
+            callback.onNotModified();
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        EventSpecResponse spec = createTestEventSpecResponse();
+        sut.eventSpecCache.set("apiKey", "testStreamId", "TestEvent", spec);
+        EventSpecCacheEntry expired = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        expired.timestamp -= 1_000;
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        // Validated against the cached spec, which starts a new TTL
+        assertEquals(1, knownVersions.size());
+        assertEquals(AvoEventSpecFetcher.specVersion(spec), knownVersions.get(0));
+        verify(mockNetworkHandler).reportValidatedEvent(any());
+        EventSpecCacheEntry renewed = sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        assertSame(spec, renewed.spec);
+        assertTrue(renewed.timestamp > expired.timestamp);
+    }
+
+    // =========================================================================
+    // Coalesced delivery
+    // =========================================================================
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void eventsWaitingForTheSameFetchAreValidatedAndSentTogether() {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenAnswer(invocation -> new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<EventSpecFetchCallback> callbacks = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> eventProps = new HashMap<>();
+            eventProps.put("userId", "user" + i);
+            sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        }
+
+        // One fetch and one callback for the three events
+        assertEquals(1, callbacks.size());
+        verify(mockNetworkHandler, never()).reportValidatedEvents(any());
+
+        EventSpecResponse spec = createTestEventSpecResponse();
+        callbacks.get(0).onResult(spec);
+
+        ArgumentCaptor<List<Map<String, Object>>> sent = ArgumentCaptor.forClass(List.class);
+        verify(mockNetworkHandler).reportValidatedEvents(sent.capture());
+        assertEquals(3, sent.getValue().size());
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+        verify(mockNetworkHandler, times(3)).bodyForValidatedEventSchemaCall(
+                eq("TestEvent"), any(), any(), any(), any(), eq("testStreamId"), any());
+        assertSame(spec, sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent").spec);
+
+        // The next miss fetches again instead of waiting for the completed fetch
+        sut.eventSpecCache.clear();
+        sut.trackSchemaFromEvent("TestEvent", new HashMap<String, Object>());
+        assertEquals(2, callbacks.size());
+    }
+
+    @Test
+    public void eventsWaitingForAFailedFetchAreAllSentWithoutValidation() {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<EventSpecFetchFailureCallback> callbacks = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        callbacks.get(0).onFetchFailed();
+
+        assertEquals(1, callbacks.size());
+        verify(mockBatcher, times(2)).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+        verify(mockNetworkHandler, never()).reportValidatedEvents(any());
+        assertEquals(1, ((EventSpecCache.NegativeEntry) sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent")).failures);
+    }
+
+    @Test
+    public void notModifiedWithoutACachedSpecSendsTheEventsWithoutValidation() {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<EventSpecRevalidationCallback> callbacks = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        callbacks.get(0).onNotModified();
+
+        verify(mockBatcher, times(1)).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+        assertNull(sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent"));
+
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        assertEquals(2, callbacks.size());
+    }
+
+    // =========================================================================
+    // Fetch failure backoff
+    // =========================================================================
+
+    @Test
+    public void fetchFailureIsNotCachedAsNoSpecAndBacksOff() {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            EventSpecFetchFailureCallback callback = invocation.getArgument(1);
+            callback.onFetchFailed();
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        // Both sent without validation, the second one without fetching while backing off
+        verify(mockBatcher, times(2)).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+        verify(sut.eventSpecFetcher, times(1)).fetch(any(), any());
+
+        EventSpecCache.NegativeEntry failure =
+                (EventSpecCache.NegativeEntry) sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent");
+        assertEquals(1, failure.failures);
+        assertEquals(EventSpecCache.DEFAULT_FAILURE_BACKOFF_MS, failure.lifetimeMs);
+
+        failure.timestamp -= EventSpecCache.DEFAULT_FAILURE_BACKOFF_MS + 1_000;
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        verify(sut.eventSpecFetcher, times(2)).fetch(any(), any());
+    }
+
+    @Test
+    public void fetchRejectedByTheOpenCircuitDoesNotBackOff() {
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doAnswer(invocation -> {
+            EventSpecFetchFailureCallback callback = invocation.getArgument(1);
+            callback.onFetchRejected();
+            return null;
+        }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        // Both sent without validation, and each one tries to fetch
+        verify(mockBatcher, times(2)).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+        verify(mockNetworkHandler, never()).reportValidatedEvent(any());
+        verify(sut.eventSpecFetcher, times(2)).fetch(any(), any());
+        assertNull(sut.eventSpecCache.peek("apiKey", "testStreamId", "TestEvent"));
+    }
+
+    @Test
+    public void fetchThatThrowsDoesNotStrandWaitingEvents() {
+        // Staging, so that the error is not rethrown like in dev
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Staging);
+
+        AvoNetworkCallsHandler mockNetworkHandler = mock(AvoNetworkCallsHandler.class);
+        when(mockNetworkHandler.bodyForValidatedEventSchemaCall(
+                anyString(), any(), any(), any(), any(), anyString(), any()
+        )).thenReturn(new HashMap<String, Object>());
+        AvoBatcher mockBatcher = mock(AvoBatcher.class);
+        when(mockBatcher.getNetworkCallsHandler()).thenReturn(mockNetworkHandler);
+        sut.avoBatcher = mockBatcher;
+
+        final List<EventSpecFetchCallback> callbacks = new ArrayList<>();
+        sut.eventSpecFetcher = mock(AvoEventSpecFetcher.class);
+        doThrow(new RejectedExecutionException("rejected"))
+                .doAnswer(invocation -> {
+                    callbacks.add(invocation.getArgument(1));
+                    return null;
+                }).when(sut.eventSpecFetcher).fetch(any(), any());
+
+        Map<String, Object> eventProps = new HashMap<>();
+        eventProps.put("userId", "user123");
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+
+        verify(mockBatcher).batchTrackEventSchema(eq("TestEvent"), any(), eq(null), eq(null), any());
+
+        // The next miss starts its own fetch instead of waiting for the one that threw
+        sut.trackSchemaFromEvent("TestEvent", (Map<String, ?>) eventProps);
+        assertEquals(1, callbacks.size());
+        callbacks.get(0).onResult(createTestEventSpecResponse());
+
+        verify(mockNetworkHandler).reportValidatedEvent(any());
+    }
+
+    // =========================================================================
+    // Memory pressure
+    // =========================================================================
+
+    @Test
+    public void memoryPressureShrinksEventSpecCache() {
+        ArgumentCaptor<ComponentCallbacks2> componentCallbackCaptor = ArgumentCaptor.forClass(ComponentCallbacks2.class);
+        AvoInspector sut = new AvoInspector("apiKey", mockApplication, AvoInspectorEnv.Dev);
+        verify(mockApplication).registerComponentCallbacks(componentCallbackCaptor.capture());
+        ComponentCallbacks2 componentCallbacks = componentCallbackCaptor.getValue();
+
+        for (int i = 0; i < 4; i++) {
+            sut.eventSpecCache.set("apiKey", "testStreamId", "Event" + i, createTestEventSpecResponse());
+        }
+        long fullWeight = sut.eventSpecCache.weight();
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(fullWeight, sut.eventSpecCache.weight());
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(sut.eventSpecCache.weight() <= fullWeight / 2);
+        assertEquals(2, sut.eventSpecCache.size());
+
+        componentCallbacks.onLowMemory();
+        assertEquals(0, sut.eventSpecCache.size());
+        assertEquals(0, sut.eventSpecCache.weight());
+    }
 }
@@ -0,0 +1,161 @@
+package app.avo.inspector;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TypeInferrerTests {
+
+    enum Plan { FREE, PRO }
+
+    AvoSchemaExtractor sut;
+
+    @Before
+    public void setUp() {
+        sut = new AvoSchemaExtractor();
+    }
+
+    @Test
+    public void infersCommonNumericAndBooleanTypes() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("atomicInt", new AtomicInteger(1));
+        props.put("atomicLong", new AtomicLong(1));
+        props.put("bigInt", BigInteger.ONE);
+        props.put("bigDecimal", new BigDecimal("1.5"));
+        props.put("atomicBoolean", new AtomicBoolean(true));
+        props.put("builder", new StringBuilder("str"));
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("int", schema.get("atomicInt").getReportedName());
+        assertEquals("int", schema.get("atomicLong").getReportedName());
+        assertEquals("int", schema.get("bigInt").getReportedName());
+        assertEquals("float", schema.get("bigDecimal").getReportedName());
+        assertEquals("boolean", schema.get("atomicBoolean").getReportedName());
+        assertEquals("string", schema.get("builder").getReportedName());
+    }
+
+    @Test
+    public void infersPrimitiveArrays() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("longs", new long[]{1, 2});
+        props.put("shorts", new short[]{1});
+        props.put("bytes", new byte[]{1});
+        props.put("chars", new char[]{'a'});
+        props.put("boxedLongs", new Long[]{1L});
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("list<int>", schema.get("longs").getReportedName());
+        assertEquals("list<int>", schema.get("shorts").getReportedName());
+        assertEquals("list<int>", schema.get("bytes").getReportedName());
+        assertEquals("list<string>", schema.get("chars").getReportedName());
+        assertEquals(2, ((AvoEventSchemaType.AvoList) schema.get("boxedLongs")).subtypes.size());
+    }
+
+    @Test
+    public void setsAreExtractedAsLists() {
+        Set<Object> set = new LinkedHashSet<>();
+        set.add("a");
+        set.add("b");
+        Map<String, Object> props = new HashMap<>();
+        props.put("set", set);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("list<string>", schema.get("set").getReportedName());
+    }
+
+    @Test
+    public void unregisteredTypesAreUnknown() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("plan", Plan.PRO);
+        props.put("date", new Date());
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("unknown", schema.get("plan").getReportedName());
+        assertEquals("unknown", schema.get("date").getReportedName());
+    }
+
+    @Test
+    public void customInferrersMatchSubclasses() {
+        sut.registerTypeInferrer(Enum.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+        sut.registerTypeInferrer(Date.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                return new AvoEventSchemaType.AvoInt();
+            }
+        });
+        Map<String, Object> props = new HashMap<>();
+        props.put("plan", Plan.PRO);
+        props.put("date", new java.sql.Date(0));
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("string", schema.get("plan").getReportedName());
+        assertEquals("int", schema.get("date").getReportedName());
+    }
+
+    @Test
+    public void customInferrersOverrideBuiltIns() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("value", 1L);
+        assertEquals("int", sut.extractSchema(props, false).get("value").getReportedName());
+
+        sut.registerTypeInferrer(Long.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+
+        assertEquals("string", sut.extractSchema(props, false).get("value").getReportedName());
+    }
+
+    @Test
+    public void customInferrersOverrideContainers() {
+        sut.registerTypeInferrer(LinkedHashSet.class, new AvoTypeInferrer() {
+            @NonNull
+            @Override
+            public AvoEventSchemaType inferType(@NonNull Object value) {
+                return new AvoEventSchemaType.AvoString();
+            }
+        });
+        Set<Object> set = new LinkedHashSet<>();
+        set.add(1);
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("set", set);
+        Map<String, Object> props = new HashMap<>();
+        props.put("set", set);
+        props.put("nested", nested);
+
+        Map<String, AvoEventSchemaType> schema = sut.extractSchema(props, false);
+
+        assertEquals("string", schema.get("set").getReportedName());
+        AvoEventSchemaType.AvoObject object = (AvoEventSchemaType.AvoObject) schema.get("nested");
+        assertEquals("string", object.children.get("set").getReportedName());
+    }
+}
@@ -0,0 +1,281 @@
+package app.avo.inspector;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ValidationPlanTests {
+
+    // =========================================================================
+    // HELPERS
+    // =========================================================================
+
+    private EventSpecEntry createEntry(String baseEventId, List<String> variantIds,
+                                       Map<String, PropertyConstraints> props) {
+        EventSpecEntry entry = new EventSpecEntry();
+        entry.branchId = "branch_1";
+        entry.baseEventId = baseEventId;
+        entry.variantIds = variantIds;
+        entry.props = props;
+        return entry;
+    }
+
+    private EventSpecResponse createSpec(EventSpecEntry... events) {
+        EventSpecResponse spec = new EventSpecResponse();
+        spec.events = Arrays.asList(events);
+        spec.metadata = new EventSpecMetadata();
+        spec.metadata.schemaId = "schema_1";
+        spec.metadata.branchId = "branch_1";
+        spec.metadata.latestActionId = "action_1";
+        return spec;
+    }
+
+    private Map<String, List<String>> mapping(String key, String... eventIds) {
+        Map<String, List<String>> map = new HashMap<>();
+        map.put(key, new ArrayList<>(Arrays.asList(eventIds)));
+        return map;
+    }
+
+    private Map<String, PropertyConstraints> props(String name, PropertyConstraints constraints) {
+        Map<String, PropertyConstraints> props = new HashMap<>();
+        props.put(name, constraints);
+        return props;
+    }
+
+    // =========================================================================
+    // Compilation
+    // =========================================================================
+
+    @Test
+    public void collectsEventIdsInSpecOrder() {
+        ValidationPlan plan = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Arrays.asList("v_1", "v_2"), new HashMap<String, PropertyConstraints>()),
+                createEntry("evt_2", Collections.<String>emptyList(), new HashMap<String, PropertyConstraints>())));
+
+        assertEquals(Arrays.asList("evt_1", "v_1", "v_2", "evt_2"), plan.eventIds);
+        assertEquals("schema_1", plan.metadata.schemaId);
+    }
+
+    @Test
+    public void parsesConstraintValuesOnce() {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.pinnedValues = mapping("fixed", "evt_1");
+        constraints.allowedValues = mapping("[\"a\",\"b\"]", "evt_1");
+        constraints.regexPatterns = mapping("^[a-z]+$", "evt_1");
+        constraints.minMaxRanges = mapping("0,", "evt_1");
+
+        ValidationPlan.Property property = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Collections.<String>emptyList(), props("field", constraints)))).properties.get("field");
+
+        assertTrue(property.pinnedValues.get(0).value.contains("fixed"));
+        assertEquals(1, property.pinnedValues.get(0).value.size());
+        assertTrue(property.allowedValues.get(0).value.contains("a"));
+        assertTrue(property.allowedValues.get(0).value.contains("b"));
+        assertEquals(2, property.allowedValues.get(0).value.size());
+        assertTrue(property.regexPatterns.get(0).value.matcher("abc").find());
+        assertEquals(0.0, property.minMaxRanges.get(0).value[0], 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, property.minMaxRanges.get(0).value[1], 0.0);
+        assertNull(property.children);
+        assertFalse(property.isList);
+    }
+
+    @Test
+    public void invalidConstraintValuesAreCompiledAway() {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.allowedValues = mapping("not json", "evt_1");
+        constraints.regexPatterns = mapping("(?=.*[A-Z]).*", "evt_1");
+        constraints.minMaxRanges = mapping("a,b", "evt_1");
+
+        ValidationPlan plan = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Collections.<String>emptyList(), props("field", constraints))));
+        ValidationPlan.Property property = plan.properties.get("field");
+
+        // Invalid allowed values never fail, invalid regexes and ranges still fail values of the wrong type
+        assertTrue(property.allowedValues.isEmpty());
+        assertNull(property.regexPatterns.get(0).value);
+        assertEquals(Collections.singletonList("evt_1"), plan.toEventIds(property.regexPatterns.get(0).eventIds));
+        assertNull(property.minMaxRanges.get(0).value);
+    }
+
+    @Test
+    public void mergesConstraintsOfAllEventsWithoutChangingSpec() {
+        PropertyConstraints first = new PropertyConstraints();
+        first.pinnedValues = mapping("a", "evt_1");
+        first.children = props("child", new PropertyConstraints());
+        PropertyConstraints second = new PropertyConstraints();
+        second.pinnedValues = mapping("a", "evt_2");
+        second.children = props("other", new PropertyConstraints());
+        EventSpecResponse spec = createSpec(
+                createEntry("evt_1", Collections.<String>emptyList(), props("field", first)),
+                createEntry("evt_2", Collections.<String>emptyList(), props("field", second)));
+
+        ValidationPlan plan = ValidationPlan.compile(spec);
+        ValidationPlan.Property property = plan.properties.get("field");
+
+        assertEquals(1, property.pinnedValues.size());
+        assertEquals(Arrays.asList("evt_1", "evt_2"), plan.toEventIds(property.pinnedValues.get(0).eventIds));
+        assertEquals(new HashSet<>(Arrays.asList("child", "other")), property.children.keySet());
+        assertEquals(Collections.singletonList("evt_1"), first.pinnedValues.get("a"));
+        assertEquals(1, first.children.size());
+    }
+
+    @Test
+    public void planIsImmutable() {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.pinnedValues = mapping("a", "evt_1");
+        ValidationPlan plan = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Collections.<String>emptyList(), props("field", constraints))));
+
+        try {
+            plan.properties.clear();
+            fail("Properties are read only");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            plan.properties.get("field").pinnedValues.clear();
+            fail("Constraints are read only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    // =========================================================================
+    // Event ID sets
+    // =========================================================================
+
+    @Test
+    public void eventIdsAreIndexedInSpecOrder() {
+        ValidationPlan plan = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Arrays.asList("v_1", "v_2"), new HashMap<String, PropertyConstraints>()),
+                createEntry("evt_2", Collections.<String>emptyList(), new HashMap<String, PropertyConstraints>())));
+        BitSet failed = new BitSet();
+        failed.set(1);
+        failed.set(3);
+
+        assertEquals(Arrays.asList("v_1", "evt_2"), plan.toEventIds(failed));
+        assertEquals(Arrays.asList("evt_1", "v_2"), plan.passedEventIds(failed));
+        assertEquals(2, plan.passedCount(failed));
+    }
+
+    @Test
+    public void idsOnlyFoundInConstraintsAreIndexedAfterSpecIds() {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.pinnedValues = mapping("a", "evt_1", "evt_unknown");
+        ValidationPlan plan = ValidationPlan.compile(createSpec(
+                createEntry("evt_1", Collections.singletonList("v_1"), props("field", constraints))));
+        BitSet failed = (BitSet) plan.properties.get("field").pinnedValues.get(0).eventIds.clone();
+
+        assertEquals(Arrays.asList("evt_1", "evt_unknown"), plan.toEventIds(failed));
+        assertEquals(Collections.singletonList("v_1"), plan.passedEventIds(failed));
+
+        plan.retainSpecIds(failed);
+        assertEquals(Collections.singletonList("evt_1"), plan.toEventIds(failed));
+    }
+
+    @Test
+    public void validatesLikeTheSpecItWasCompiledFrom() {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.allowedValues = mapping("[\"a\",\"b\"]", "evt_1");
+        constraints.minMaxRanges = mapping("0,10", "evt_2");
+        EventSpecResponse spec = createSpec(
+                createEntry("evt_1", Collections.<String>emptyList(), props("field", constraints)),
+                createEntry("evt_2", Collections.<String>emptyList(), new HashMap<String, PropertyConstraints>()));
+        ValidationPlan plan = ValidationPlan.compile(spec);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("field", "c");
+
+        assertEquals(EventValidator.validateEvent(properties, spec).propertyResults.get("field").failedEventIds,
+                EventValidator.validateEvent(properties, plan).propertyResults.get("field").failedEventIds);
+        assertEquals(new HashSet<>(Arrays.asList("evt_1", "evt_2")),
+                new HashSet<>(EventValidator.validateEvent(properties, plan).propertyResults.get("field").failedEventIds));
+    }
+
+    // =========================================================================
+    // Result memo
+    // =========================================================================
+
+    private ValidationPlan createPlanWithPinnedField() {
+        return createPlanWithPinnedField(new EventValidationContext());
+    }
+
+    private ValidationPlan createPlanWithPinnedField(EventValidationContext context) {
+        PropertyConstraints constraints = new PropertyConstraints();
+        constraints.pinnedValues = mapping("a", "evt_1");
+        PropertyConstraints other = new PropertyConstraints();
+        other.pinnedValues = mapping("a", "evt_1");
+        Map<String, PropertyConstraints> props = props("field", constraints);
+        props.put("other", other);
+        EventSpecResponse spec = createSpec(createEntry("evt_1", Collections.<String>emptyList(), props));
+        return ValidationPlan.compile(spec, context);
+    }
+
+    private PropertyValidationResult validateField(ValidationPlan plan, String name, Object value) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(name, value);
+        return EventValidator.validateEvent(properties, plan).propertyResults.get(name);
+    }
+
+    @Test
+    public void repeatedValuesReuseTheirResult() {
+        ValidationPlan plan = createPlanWithPinnedField();
+
+        PropertyValidationResult first = validateField(plan, "field", "b");
+
+        assertEquals(Collections.singletonList("evt_1"), first.failedEventIds);
+        assertSame(first, validateField(plan, "field", "b"));
+        assertNotSame(first, validateField(plan, "field", "c"));
+        // Same value of another property
+        assertNotSame(first, validateField(plan, "other", "b"));
+    }
+
+    @Test
+    public void memoizedResultsCantBeModified() {
+        ValidationPlan plan = createPlanWithPinnedField();
+
+        PropertyValidationResult result = validateField(plan, "field", "b");
+
+        try {
+            result.failedEventIds.add("evt_2");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void onlyShortScalarsAreMemoized() {
+        ValidationPlan plan = createPlanWithPinnedField();
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i <= ValidationPlan.MAX_MEMOIZED_VALUE_LENGTH; i++) {
+            longValue.append('x');
+        }
+
+        assertNotSame(validateField(plan, "field", longValue.toString()),
+                validateField(plan, "field", longValue.toString()));
+        assertTrue(ValidationPlan.isMemoizable(null));
+        assertTrue(ValidationPlan.isMemoizable(5L));
+        assertFalse(ValidationPlan.isMemoizable(new java.math.BigDecimal("5")));
+        assertFalse(ValidationPlan.isMemoizable(Collections.singletonList("a")));
+    }
+
+    @Test
+    public void memoIsNotSharedBetweenPlans() {
+        PropertyValidationResult first = validateField(createPlanWithPinnedField(), "field", "b");
+
+        assertNotSame(first, validateField(createPlanWithPinnedField(), "field", "b"));
+    }
+
+    @Test
+    public void memoCanBeDisabled() {
+        EventValidationContext context = new EventValidationContext();
+        context.setMaxMemoizedResults(0);
+        ValidationPlan plan = createPlanWithPinnedField(context);
+
+        assertNotSame(validateField(plan, "field", "b"), validateField(plan, "field", "b"));
+        // Plans of other owners still memoize
+        ValidationPlan other = createPlanWithPinnedField();
+        assertSame(validateField(other, "field", "b"), validateField(other, "field", "b"));
+    }
+}
@@ -0,0 +1,121 @@
+package app.avo.inspector;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ValueSetTests {
+
+    // =========================================================================
+    // Scalars
+    // =========================================================================
+
+    @Test
+    public void stringsMatchExactly() {
+        ValueSet values = ValueSet.of(Arrays.asList("a", "5"));
+
+        assertTrue(values.contains("a"));
+        assertTrue(values.contains("5"));
+        assertFalse(values.contains("A"));
+        assertFalse(values.contains(" 5"));
+    }
+
+    @Test
+    public void integralNumbersMatchTheirDecimalForm() {
+        ValueSet values = ValueSet.of(Arrays.asList("5", "-12", "9223372036854775807"));
+
+        assertTrue(values.contains(5));
+        assertTrue(values.contains(5L));
+        assertTrue(values.contains((short) 5));
+        assertTrue(values.contains((byte) -12));
+        assertTrue(values.contains(Long.MAX_VALUE));
+        assertFalse(values.contains(6));
+        assertFalse(values.contains(5.0));
+        assertFalse(values.contains(5.0f));
+    }
+
+    @Test
+    public void nonCanonicalNumbersDoNotMatch() {
+        // String.valueOf never prints these, so no number matches them
+        ValueSet values = ValueSet.of(Arrays.asList("05", "+5", "1e2", "1.50", "5.", " 5"));
+
+        assertFalse(values.contains(5));
+        assertFalse(values.contains(100.0));
+        assertFalse(values.contains(1.5));
+        assertFalse(values.contains(5.0));
+        assertTrue(values.contains("1.50"));
+    }
+
+    @Test
+    public void floatingPointNumbersMatchTheirOwnStringForm() {
+        ValueSet values = ValueSet.of(Arrays.asList("1.5", "5.0", "0.1", "NaN", "-0.0"));
+
+        assertTrue(values.contains(1.5));
+        assertTrue(values.contains(1.5f));
+        assertTrue(values.contains(5.0));
+        assertTrue(values.contains(0.1));
+        assertTrue(values.contains(0.1f));
+        assertTrue(values.contains(Double.NaN));
+        assertTrue(values.contains(-0.0));
+        assertFalse(values.contains(0.0));
+        assertFalse(values.contains(5));
+        // (double) 0.1f is 0.10000000149011612
+        assertFalse(values.contains((double) 0.1f));
+    }
+
+    @Test
+    public void booleansAndNullMatchTheirLiterals() {
+        ValueSet values = ValueSet.of(Arrays.asList("true", "null"));
+
+        assertTrue(values.contains(true));
+        assertFalse(values.contains(false));
+        assertTrue(values.contains(null));
+        assertTrue(values.contains("null"));
+        assertFalse(ValueSet.of("false").contains(null));
+    }
+
+    @Test
+    public void otherNumbersFallBackToTheirStringForm() {
+        ValueSet values = ValueSet.of(Arrays.asList("1.50", "7"));
+
+        assertTrue(values.contains(new BigDecimal("1.50")));
+        assertFalse(values.contains(new BigDecimal("1.5")));
+        assertTrue(values.contains(new java.util.concurrent.atomic.AtomicInteger(7)));
+    }
+
+    // =========================================================================
+    // Parity with the string comparison
+    // =========================================================================
+
+    @Test
+    public void matchesExactlyWhenTheStringFormMatches() {
+        List<String> specValues = Arrays.asList("0", "1", "-1", "1.0", "-1.0", "0.0", "-0.0", "1.5", "0.1",
+                "1.0E10", "1.0E-5", "Infinity", "-Infinity", "NaN", "true", "false", "null", "3.4028235E38");
+        Object[] runtimeValues = {0, 1, -1, 1L, 0L, 1.0, -1.0, 0.0, -0.0, 1.5, 0.1, 1e10, 1e-5, 0.1f, 1.5f, 1.0f,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN, Float.NaN, Float.MAX_VALUE,
+                (double) Float.MAX_VALUE, true, false, null, (short) 1, (byte) 0};
+
+        for (String specValue : specValues) {
+            ValueSet values = ValueSet.of(specValue);
+            for (Object runtimeValue : runtimeValues) {
+                assertEquals(specValue + " vs " + runtimeValue,
+                        specValue.equals(String.valueOf(runtimeValue)), values.contains(runtimeValue));
+            }
+        }
+    }
+
+    @Test
+    public void nonScalarsAreComparedByTheirStringForm() {
+        assertTrue(ValueSet.isScalar(null));
+        assertTrue(ValueSet.isScalar("a"));
+        assertTrue(ValueSet.isScalar(1.5));
+        assertTrue(ValueSet.isScalar(false));
+        assertFalse(ValueSet.isScalar(Collections.emptyMap()));
+        assertFalse(ValueSet.isScalar(Collections.emptyList()));
+        assertFalse(ValueSet.isScalar(new int[0]));
+        assertFalse(ValueSet.isScalar(new Object()));
+    }
+}
@@ -69,8 +69,6 @@ public class VisualDebuggerTests {
 		when(mockApplication.getApplicationContext()).thenReturn(mockApplication);
 		when(mockApplication.getContentResolver()).thenReturn(mock(ContentResolver.class));
 
-		AvoDeduplicator.clearEvents();
-
 		Map<String, Number> nestedMap = new ConcurrentHashMap<>();
 		short sh = 1;
 		byte bt = 2;